@@ -0,0 +1,139 @@
+package renetik.android.midi.bluetooth.benchmark;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import renetik.android.midi.bluetooth.device.MidiInputDevice;
+import renetik.android.midi.bluetooth.listener.OnMidiInputEventListener;
+
+/**
+ * MIDI input device without Bluetooth, sums up the received events
+ */
+final class BenchmarkMidiInputDevice extends MidiInputDevice implements OnMidiInputEventListener {
+    // summed up event values, to keep the events alive
+    long checksum;
+    // the number of received events, polled by the other thread
+    volatile int receivedCount;
+
+    @Override
+    public void setOnMidiInputEventListener(@Nullable OnMidiInputEventListener midiInputEventListener) {
+        // the device itself is the listener
+    }
+
+    @NonNull
+    @Override
+    public String deviceName() {
+        return "benchmark";
+    }
+
+    @NonNull
+    @Override
+    public String deviceAddress() {
+        return "00:00:00:00:00:00";
+    }
+
+    private void received(int value) {
+        checksum += value;
+        receivedCount++;
+    }
+
+    @Override
+    public void onMidiSystemExclusive(@NonNull MidiInputDevice sender, @NonNull byte[] systemExclusive) {
+        received(systemExclusive.length);
+    }
+
+    @Override
+    public void onMidiNoteOff(@NonNull MidiInputDevice sender, int channel, int note, int velocity) {
+        received(note);
+    }
+
+    @Override
+    public void onMidiNoteOn(@NonNull MidiInputDevice sender, int channel, int note, int velocity) {
+        received(note + velocity);
+    }
+
+    @Override
+    public void onMidiPolyphonicAftertouch(@NonNull MidiInputDevice sender, int channel, int note, int pressure) {
+        received(pressure);
+    }
+
+    @Override
+    public void onMidiControlChange(@NonNull MidiInputDevice sender, int channel, int function, int value) {
+        received(value);
+    }
+
+    @Override
+    public void onMidiProgramChange(@NonNull MidiInputDevice sender, int channel, int program) {
+        received(program);
+    }
+
+    @Override
+    public void onMidiChannelAftertouch(@NonNull MidiInputDevice sender, int channel, int pressure) {
+        received(pressure);
+    }
+
+    @Override
+    public void onMidiPitchWheel(@NonNull MidiInputDevice sender, int channel, int amount) {
+        received(amount);
+    }
+
+    @Override
+    public void onMidiTimeCodeQuarterFrame(@NonNull MidiInputDevice sender, int timing) {
+        received(timing);
+    }
+
+    @Override
+    public void onMidiSongSelect(@NonNull MidiInputDevice sender, int song) {
+        received(song);
+    }
+
+    @Override
+    public void onMidiSongPositionPointer(@NonNull MidiInputDevice sender, int position) {
+        received(position);
+    }
+
+    @Override
+    public void onMidiTuneRequest(@NonNull MidiInputDevice sender) {
+        received(1);
+    }
+
+    @Override
+    public void onMidiTimingClock(@NonNull MidiInputDevice sender) {
+        received(1);
+    }
+
+    @Override
+    public void onMidiStart(@NonNull MidiInputDevice sender) {
+        received(1);
+    }
+
+    @Override
+    public void onMidiContinue(@NonNull MidiInputDevice sender) {
+        received(1);
+    }
+
+    @Override
+    public void onMidiStop(@NonNull MidiInputDevice sender) {
+        received(1);
+    }
+
+    @Override
+    public void onMidiActiveSensing(@NonNull MidiInputDevice sender) {
+        received(1);
+    }
+
+    @Override
+    public void onMidiReset(@NonNull MidiInputDevice sender) {
+        received(1);
+    }
+
+    @Override
+    public void onRPNMessage(@NonNull MidiInputDevice sender, int channel, int function, int value) {
+        received(value);
+    }
+
+    @Override
+    public void onNRPNMessage(@NonNull MidiInputDevice sender, int channel, int function, int value) {
+        received(value);
+    }
+}
@@ -0,0 +1,66 @@
+package renetik.android.midi.bluetooth.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+import renetik.android.midi.bluetooth.util.BleMidiParser;
+import renetik.android.midi.bluetooth.util.ReferenceBleMidiParser;
+
+/**
+ * {@link BleMidiParser#parse(byte[])} throughput, one BLE packet per operation<br />
+ * Events are dispatched immediately, to measure the decoder without the thread handoff.<br />
+ * parseReference measures the state machine parser before the table-driven decoder, on the same packets.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BleMidiParserBenchmark {
+    @Param({MidiTraffic.NOTES, MidiTraffic.PITCH_BEND, MidiTraffic.RUNNING_STATUS, MidiTraffic.SYSTEM_EXCLUSIVE})
+    public String traffic;
+
+    private BenchmarkMidiInputDevice device;
+    private BleMidiParser parser;
+    private ReferenceBleMidiParser referenceParser;
+    private byte[][] packets;
+    private int packetIndex;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        device = new BenchmarkMidiInputDevice();
+        device.setImmediateDispatch(true);
+        parser = new BleMidiParser(device);
+        parser.setMidiInputEventListener(device);
+        referenceParser = new ReferenceBleMidiParser(device, device);
+        packets = MidiTraffic.packets(traffic);
+        packetIndex = 0;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        parser.stop();
+    }
+
+    @Benchmark
+    public long parse() {
+        parser.parse(packets[packetIndex]);
+        packetIndex = (packetIndex + 1) % packets.length;
+        return device.checksum;
+    }
+
+    @Benchmark
+    public long parseReference() {
+        referenceParser.parse(packets[packetIndex]);
+        packetIndex = (packetIndex + 1) % packets.length;
+        return device.checksum;
+    }
+}
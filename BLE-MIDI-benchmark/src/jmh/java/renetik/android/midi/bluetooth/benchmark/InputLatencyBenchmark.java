@@ -0,0 +1,61 @@
+package renetik.android.midi.bluetooth.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+import renetik.android.midi.bluetooth.util.BleMidiParser;
+import renetik.android.midi.bluetooth.util.JitterBuffer;
+
+/**
+ * Latency from {@link BleMidiParser#parse(byte[])} to the note-on callback<br />
+ * Compares the immediate dispatching with the queued dispatching through MidiInputDispatcher, without jitter buffering.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class InputLatencyBenchmark {
+    @Param({"true", "false"})
+    public boolean immediateDispatch;
+
+    private BenchmarkMidiInputDevice device;
+    private BleMidiParser parser;
+    private final byte[] packet = {(byte) 0x80, (byte) 0x80, (byte) 0x90, 60, 100};
+    private int timestamp;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        device = new BenchmarkMidiInputDevice();
+        device.setImmediateDispatch(immediateDispatch);
+        device.getJitterBuffer().setMode(JitterBuffer.MODE_NONE);
+        parser = new BleMidiParser(device);
+        parser.setMidiInputEventListener(device);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        parser.stop();
+    }
+
+    @Benchmark
+    public int noteOn() {
+        timestamp = (timestamp + 1) & 0x7f;
+        packet[1] = (byte) (0x80 | (timestamp == 0x77 ? 0x76 : timestamp));
+
+        final int receivedCount = device.receivedCount;
+        parser.parse(packet);
+        while (device.receivedCount == receivedCount) {
+            Thread.onSpinWait();
+        }
+        return receivedCount;
+    }
+}
@@ -0,0 +1,132 @@
+package renetik.android.midi.bluetooth.benchmark;
+
+import androidx.annotation.NonNull;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import renetik.android.midi.bluetooth.device.MidiOutputDevice;
+
+/**
+ * {@link MidiOutputDevice} send path throughput, from multiple producer threads<br />
+ * The device transfers to nowhere, to measure the buffering and BLE MIDI encoding.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MidiOutputDeviceBenchmark {
+    // 1024 bytes with 2 timestamps, 19 bytes after the header in each packet
+    private static final int SYSTEM_EXCLUSIVE_PACKET_COUNT = 54;
+
+    private BenchmarkMidiOutputDevice device;
+    private final byte[] systemExclusive = new byte[1024];
+    // 4 notes chord, packed as sendMidiMessages(int[], int, int)
+    private final int[] chordMessages = {0x643c90, 0x644090, 0x644390, 0x644890};
+    // same chord as MIDI byte stream, with running status
+    private final byte[] chordStream = {(byte) 0x90, 60, 100, 64, 100, 67, 100, 72, 100};
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        device = new BenchmarkMidiOutputDevice();
+        systemExclusive[0] = (byte) 0xf0;
+        systemExclusive[systemExclusive.length - 1] = (byte) 0xf7;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        device.stop();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void noteOn() {
+        device.sendMidiNoteOn(0, 60, 100);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void controlChange() {
+        device.sendMidiControlChange(0, 1, 64);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void pitchWheel() {
+        device.sendMidiPitchWheel(0, 8192);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void chordPerMessage() {
+        device.sendMidiNoteOn(0, 60, 100);
+        device.sendMidiNoteOn(0, 64, 100);
+        device.sendMidiNoteOn(0, 67, 100);
+        device.sendMidiNoteOn(0, 72, 100);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void chordPackedMessages() {
+        device.sendMidiMessages(chordMessages, 0, chordMessages.length);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void chordByteStream() {
+        device.sendMidiMessages(chordStream, 0, chordStream.length);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void systemExclusive() {
+        final int transferCount = device.transferCount;
+        device.sendMidiSystemExclusive(systemExclusive);
+        // SysEx is sent asynchronously, wait for the transfer thread
+        while (device.transferCount - transferCount < SYSTEM_EXCLUSIVE_PACKET_COUNT) {
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * MIDI output device without Bluetooth, counts the transferred bytes
+     */
+    static final class BenchmarkMidiOutputDevice extends MidiOutputDevice {
+        final LongAdder transferredBytes = new LongAdder();
+        // the number of transfers, polled by the other thread
+        volatile int transferCount;
+
+        @Override
+        protected void transferData(@NonNull byte[] writeBuffer) {
+            transferredBytes.add(writeBuffer.length);
+            transferCount++;
+        }
+
+        @NonNull
+        @Override
+        public String getDeviceName() {
+            return "benchmark";
+        }
+
+        @NonNull
+        @Override
+        public String getDeviceAddress() {
+            return "00:00:00:00:00:00";
+        }
+
+        @Override
+        public int getBufferSize() {
+            return 20;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package renetik.android.midi.bluetooth.benchmark;
+
+import androidx.annotation.NonNull;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Recorded-like BLE MIDI packets for the benchmarks<br />
+ * Packets are 20 bytes at most: the default MTU, as sent by most BLE MIDI devices.
+ */
+final class MidiTraffic {
+    static final String NOTES = "notes";
+    static final String PITCH_BEND = "pitchBend";
+    static final String RUNNING_STATUS = "runningStatus";
+    static final String SYSTEM_EXCLUSIVE = "systemExclusive";
+
+    private static final int PACKET_SIZE = 20;
+    private static final int PACKET_COUNT = 1024;
+    private static final int SYSTEM_EXCLUSIVE_SIZE = 4096;
+
+    private MidiTraffic() {
+    }
+
+    /**
+     * Creates the packets
+     *
+     * @param traffic {@link #NOTES}, {@link #PITCH_BEND}, {@link #RUNNING_STATUS}, or {@link #SYSTEM_EXCLUSIVE}
+     * @return the packets, with increasing timestamps
+     */
+    @NonNull
+    static byte[][] packets(@NonNull String traffic) {
+        switch (traffic) {
+            case NOTES:
+                return notes();
+            case PITCH_BEND:
+                return pitchBend();
+            case RUNNING_STATUS:
+                return runningStatus();
+            case SYSTEM_EXCLUSIVE:
+                return systemExclusive();
+            default:
+                throw new IllegalArgumentException("Unknown traffic: " + traffic);
+        }
+    }
+
+    /**
+     * Dense chords: 4 note messages per packet, each with timestamp
+     */
+    @NonNull
+    private static byte[][] notes() {
+        final byte[][] packets = new byte[PACKET_COUNT][];
+        for (int i = 0; i < PACKET_COUNT; i++) {
+            final ByteArrayOutputStream packet = new ByteArrayOutputStream();
+            final int timestamp = i * 2;
+            packet.write(header(timestamp));
+            for (int j = 0; j < 4; j++) {
+                packet.write(timestampLow(timestamp));
+                packet.write(i % 2 == 0 ? 0x90 : 0x80);
+                packet.write(48 + j * 4);
+                packet.write(i % 2 == 0 ? 100 : 0);
+            }
+            packets[i] = packet.toByteArray();
+        }
+        return packets;
+    }
+
+    /**
+     * Pitch bend stream: running status with timestamps, 6 messages per packet
+     */
+    @NonNull
+    private static byte[][] pitchBend() {
+        final byte[][] packets = new byte[PACKET_COUNT][];
+        for (int i = 0; i < PACKET_COUNT; i++) {
+            final ByteArrayOutputStream packet = new ByteArrayOutputStream();
+            final int timestamp = i * 2;
+            packet.write(header(timestamp));
+            packet.write(timestampLow(timestamp));
+            packet.write(0xe0);
+            for (int j = 0; j < 6; j++) {
+                final int amount = (i * 6 + j) & 0x3fff;
+                if (j > 0) {
+                    packet.write(timestampLow(timestamp));
+                }
+                packet.write(amount & 0x7f);
+                packet.write((amount >> 7) & 0x7f);
+            }
+            packets[i] = packet.toByteArray();
+        }
+        return packets;
+    }
+
+    /**
+     * Running status without timestamps: 8 note-ons per packet
+     */
+    @NonNull
+    private static byte[][] runningStatus() {
+        final byte[][] packets = new byte[PACKET_COUNT][];
+        for (int i = 0; i < PACKET_COUNT; i++) {
+            final ByteArrayOutputStream packet = new ByteArrayOutputStream();
+            final int timestamp = i * 2;
+            packet.write(header(timestamp));
+            packet.write(timestampLow(timestamp));
+            packet.write(0x90);
+            for (int j = 0; j < 8; j++) {
+                packet.write((i + j) & 0x7f);
+                packet.write(j % 2 == 0 ? 100 : 0);
+            }
+            packets[i] = packet.toByteArray();
+        }
+        return packets;
+    }
+
+    /**
+     * Large SysEx: 4 KB message split into continuation packets
+     */
+    @NonNull
+    private static byte[][] systemExclusive() {
+        final int timestamp = 100;
+        final ByteArrayOutputStream message = new ByteArrayOutputStream();
+        message.write(timestampLow(timestamp));
+        message.write(0xf0);
+        for (int i = 0; i < SYSTEM_EXCLUSIVE_SIZE - 2; i++) {
+            message.write(i & 0x7f);
+        }
+        message.write(timestampLow(timestamp));
+        message.write(0xf7);
+        final byte[] body = message.toByteArray();
+
+        final int packetCount = (body.length + PACKET_SIZE - 2) / (PACKET_SIZE - 1);
+        final byte[][] packets = new byte[packetCount][];
+        for (int i = 0; i < packetCount; i++) {
+            final int offset = i * (PACKET_SIZE - 1);
+            final int length = Math.min(PACKET_SIZE - 1, body.length - offset);
+            packets[i] = new byte[length + 1];
+            packets[i][0] = (byte) header(timestamp);
+            System.arraycopy(body, offset, packets[i], 1, length);
+        }
+        return packets;
+    }
+
+    private static int header(int timestamp) {
+        return 0x80 | ((timestamp >> 7) & 0x3f);
+    }
+
+    private static int timestampLow(int timestamp) {
+        // 0xF7 is avoided, as the senders do
+        final int low = timestamp & 0x7f;
+        return 0x80 | (low == 0x77 ? 0x76 : low);
+    }
+}
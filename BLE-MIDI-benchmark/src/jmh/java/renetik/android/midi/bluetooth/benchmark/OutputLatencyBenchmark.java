@@ -0,0 +1,51 @@
+package renetik.android.midi.bluetooth.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+import renetik.android.midi.bluetooth.device.MidiOutputDevice;
+
+/**
+ * Latency from sending a message to {@link MidiOutputDevice}'s transferData call<br />
+ * The sample time mode reports the latency distribution, with and without the batch window.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class OutputLatencyBenchmark {
+    @Param({"0", "2"})
+    public int batchWindowMillis;
+
+    private MidiOutputDeviceBenchmark.BenchmarkMidiOutputDevice device;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        device = new MidiOutputDeviceBenchmark.BenchmarkMidiOutputDevice();
+        device.setBatchWindowMillis(batchWindowMillis);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        device.stop();
+    }
+
+    @Benchmark
+    public int noteOn() {
+        final int transferCount = device.transferCount;
+        device.sendMidiNoteOn(0, 60, 100);
+        while (device.transferCount == transferCount) {
+            Thread.onSpinWait();
+        }
+        return transferCount;
+    }
+}
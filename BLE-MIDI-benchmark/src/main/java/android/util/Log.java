@@ -0,0 +1,16 @@
+package android.util;
+
+/**
+ * Plain JVM replacement of Android's Log, for the methods used by the library<br />
+ * The messages are written to the standard error.
+ */
+public final class Log {
+    private Log() {
+    }
+
+    public static int e(String tag, String message, Throwable throwable) {
+        System.err.println("E/" + tag + ": " + message);
+        throwable.printStackTrace();
+        return 0;
+    }
+}
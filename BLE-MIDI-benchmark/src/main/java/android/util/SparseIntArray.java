@@ -0,0 +1,49 @@
+package android.util;
+
+import java.util.Arrays;
+
+/**
+ * Plain JVM replacement of Android's SparseIntArray, for the methods used by the library<br />
+ * Keys are kept sorted, and looked up with binary search as the platform implementation does.
+ */
+public class SparseIntArray {
+    private int[] keys = new int[10];
+    private int[] values = new int[10];
+    private int size = 0;
+
+    public int get(int key) {
+        return get(key, 0);
+    }
+
+    public int get(int key, int valueIfKeyNotFound) {
+        final int index = Arrays.binarySearch(keys, 0, size, key);
+        return index < 0 ? valueIfKeyNotFound : values[index];
+    }
+
+    public void put(int key, int value) {
+        int index = Arrays.binarySearch(keys, 0, size, key);
+        if (index >= 0) {
+            values[index] = value;
+            return;
+        }
+
+        index = ~index;
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        System.arraycopy(keys, index, keys, index + 1, size - index);
+        System.arraycopy(values, index, values, index + 1, size - index);
+        keys[index] = key;
+        values[index] = value;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+}
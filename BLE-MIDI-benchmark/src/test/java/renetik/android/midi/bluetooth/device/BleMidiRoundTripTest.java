@@ -0,0 +1,369 @@
+package renetik.android.midi.bluetooth.device;
+
+import androidx.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import renetik.android.midi.bluetooth.util.BleMidiParser;
+import renetik.android.midi.bluetooth.util.MidiClock;
+import renetik.android.midi.bluetooth.util.ParserTimestamps;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Encodes MIDI messages with {@link BleMidiPacketBuilder}, {@link BleMidiSystemExclusivePacketizer} and {@link MidiOutputDevice},
+ * and decodes the packets with {@link BleMidiParser}<br />
+ * The decoded events and timestamps must be the sent ones.
+ */
+public class BleMidiRoundTripTest {
+    private static final int BUFFER_SIZE = 20;
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private RecordingMidiInputDevice inputDevice;
+    private BleMidiParser parser;
+    private final List<String> expectedEvents = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        inputDevice = new RecordingMidiInputDevice();
+        inputDevice.setImmediateDispatch(true);
+        parser = new BleMidiParser(inputDevice);
+        parser.setMidiInputEventListener(inputDevice);
+        inputDevice.recordTimestamps(ParserTimestamps.of(parser));
+    }
+
+    @After
+    public void tearDown() {
+        parser.stop();
+    }
+
+    @Test
+    public void runningStatusRestartsInEachPacket() {
+        final BleMidiPacketBuilder builder = new BleMidiPacketBuilder();
+        for (int note = 40; note < 70; note++) {
+            builder.append(100, BUFFER_SIZE, 3, 0x90, note, 100);
+            expect("noteOn 0 " + note + " 100", 100);
+        }
+
+        final List<byte[]> packets = toPackets(builder);
+        assertTrue("one packet", packets.size() > 1);
+        for (byte[] packet : packets) {
+            // header, timestamp, then the status again: the receiver doesn't keep the running status across packets
+            assertEquals(Arrays.toString(packet), 0x90, packet[2] & 0xff);
+            for (int i = 3; i < packet.length; i++) {
+                assertTrue(Arrays.toString(packet), (packet[i] & 0x80) == 0);
+            }
+        }
+        assertDecoded(packets);
+    }
+
+    @Test
+    public void timestampIsOmittedForSameTime() {
+        final BleMidiPacketBuilder builder = new BleMidiPacketBuilder();
+        final long timestamp = (3 << 7) | 0x10;
+        builder.append(timestamp, BUFFER_SIZE, 3, 0x90, 60, 100);
+        builder.append(timestamp, BUFFER_SIZE, 3, 0x90, 64, 100);
+        builder.append(timestamp + 1, BUFFER_SIZE, 3, 0x90, 67, 100);
+        builder.append(timestamp + 1, BUFFER_SIZE, 3, 0xb0, 1, 64);
+        expect("noteOn 0 60 100", timestamp);
+        expect("noteOn 0 64 100", timestamp);
+        expect("noteOn 0 67 100", timestamp + 1);
+        expect("controlChange 0 1 64", timestamp + 1);
+
+        final List<byte[]> packets = toPackets(builder);
+        assertEquals(1, packets.size());
+        assertArrayEquals(toBytes(0x83, 0x90, 0x90, 60, 100, 64, 100, 0x91, 67, 100, 0x91, 0xb0, 1, 64), packets.get(0));
+        assertDecoded(packets);
+    }
+
+    @Test
+    public void timestampF7IsSentAsF6() {
+        final long timestamp = (5 << 7) | 0x77;
+        final BleMidiPacketBuilder builder = new BleMidiPacketBuilder();
+        builder.append(timestamp, BUFFER_SIZE, 3, 0x90, 60, 100);
+        builder.append(timestamp, BUFFER_SIZE, 1, 0xf8, 0, 0);
+        expect("noteOn 0 60 100", timestamp - 1);
+        expect("timingClock", timestamp - 1);
+
+        final List<byte[]> packets = toPackets(builder);
+        assertArrayEquals(toBytes(0x85, 0xf6, 0x90, 60, 100, 0xf6, 0xf8), packets.get(0));
+
+        // SysEx: 0xF7 as the timestamp before the end of the message would end it early
+        final byte[] systemExclusive = toBytes(0xf0, 0x7d, 1, 2, 3, 0xf7);
+        final BleMidiSystemExclusivePacketizer packetizer = new BleMidiSystemExclusivePacketizer();
+        packetizer.start(systemExclusive);
+        while (packetizer.isActive()) {
+            final byte[] packet = new byte[packetizer.getNextPacketLength(BUFFER_SIZE)];
+            packetizer.writePacket(timestamp, packet);
+            packets.add(packet);
+        }
+        assertArrayEquals(toBytes(0x85, 0xf6, 0xf0, 0x7d, 1, 2, 3, 0xf6, 0xf7), packets.get(1));
+        expect("sysex " + Arrays.toString(systemExclusive), timestamp - 1);
+
+        assertDecoded(packets);
+    }
+
+    @Test
+    public void earlierTimestampStartsNewPacket() {
+        // the message sent with sendAt is followed by the immediate message of the earlier time
+        final BleMidiPacketBuilder builder = new BleMidiPacketBuilder();
+        final long timestamp = (4 << 7) | 0x20;
+        builder.append(timestamp + 10, BUFFER_SIZE, 3, 0x90, 60, 100);
+        builder.append(timestamp, BUFFER_SIZE, 3, 0x90, 64, 100);
+        builder.append(timestamp, BUFFER_SIZE, 3, 0x80, 64, 0);
+        expect("noteOn 0 60 100", timestamp + 10);
+        expect("noteOn 0 64 100", timestamp);
+        expect("noteOff 0 64 0", timestamp);
+
+        // in one packet, the receiver would read the smaller timestamp low as the wrap around
+        final List<byte[]> packets = toPackets(builder);
+        assertEquals(2, packets.size());
+        assertArrayEquals(toBytes(0x84, 0xaa, 0x90, 60, 100), packets.get(0));
+        assertArrayEquals(toBytes(0x84, 0xa0, 0x90, 64, 100, 0xa0, 0x80, 64, 0), packets.get(1));
+        assertDecoded(packets);
+    }
+
+    @Test
+    public void systemExclusiveAcrossPackets() {
+        final Random random = new Random(1);
+        final List<byte[]> packets = new ArrayList<>();
+        final BleMidiSystemExclusivePacketizer packetizer = new BleMidiSystemExclusivePacketizer();
+        for (int length = 2; length < 80; length++) {
+            final byte[] systemExclusive = new byte[length];
+            systemExclusive[0] = (byte) 0xf0;
+            for (int i = 1; i < length - 1; i++) {
+                systemExclusive[i] = (byte) random.nextInt(128);
+            }
+            systemExclusive[length - 1] = (byte) 0xf7;
+
+            final long timestamp = random.nextInt(MidiOutputDevice.MAX_TIMESTAMP);
+            packetizer.start(systemExclusive);
+            while (packetizer.isActive()) {
+                final byte[] packet = new byte[packetizer.getNextPacketLength(BUFFER_SIZE)];
+                packetizer.writePacket(timestamp, packet);
+                assertTrue(packet.length <= BUFFER_SIZE);
+                packets.add(packet);
+            }
+            expect("sysex " + Arrays.toString(systemExclusive), decodedTimestamp(timestamp));
+        }
+        assertDecoded(packets);
+    }
+
+    @Test
+    public void randomMessages() {
+        final Random random = new Random(2);
+        final BleMidiPacketBuilder builder = new BleMidiPacketBuilder();
+        final List<byte[]> packets = new ArrayList<>();
+        long timestamp = 8000;
+        for (int i = 0; i < 5000; i++) {
+            if (random.nextInt(4) == 0) {
+                // wraps around at 8192
+                timestamp = (timestamp + random.nextInt(20)) & (MidiOutputDevice.MAX_TIMESTAMP - 1);
+            }
+            final int bufferSize = random.nextBoolean() ? BUFFER_SIZE : 5 + random.nextInt(100);
+            appendRandomMessage(random, builder, timestamp, bufferSize);
+
+            if (random.nextInt(50) == 0) {
+                packets.addAll(toPackets(builder));
+                builder.clear();
+            }
+        }
+        packets.addAll(toPackets(builder));
+
+        assertDecoded(packets);
+    }
+
+    @Test
+    public void midiOutputDevice() throws InterruptedException {
+        final RecordingMidiOutputDevice outputDevice = new RecordingMidiOutputDevice(MidiClock.SYSTEM, BUFFER_SIZE);
+        try {
+            for (int note = 40; note < 80; note++) {
+                outputDevice.sendMidiNoteOn(1, note, note);
+                outputDevice.sendMidiControlChange(1, 7, note);
+                outputDevice.sendMidiPitchWheel(1, note * 100);
+                outputDevice.sendMidiNoteOff(1, note, 0);
+                expectWithoutTimestamp("noteOn 1 " + note + " " + note);
+                expectWithoutTimestamp("controlChange 1 7 " + note);
+                expectWithoutTimestamp("pitchWheel 1 " + note * 100);
+                expectWithoutTimestamp("noteOff 1 " + note + " 0");
+            }
+            final byte[] systemExclusive = new byte[300];
+            systemExclusive[0] = (byte) 0xf0;
+            for (int i = 1; i < systemExclusive.length - 1; i++) {
+                systemExclusive[i] = (byte) (i & 0x7f);
+            }
+            systemExclusive[systemExclusive.length - 1] = (byte) 0xf7;
+            outputDevice.sendMidiSystemExclusive(systemExclusive);
+            expectWithoutTimestamp("sysex " + Arrays.toString(systemExclusive));
+
+            // the SysEx is sent after the short messages, wait for its end
+            List<byte[]> packets = outputDevice.waitForPackets(1, TIMEOUT_MILLIS);
+            while (!packets.isEmpty() && !endsWithSystemExclusive(packets.get(packets.size() - 1))) {
+                final int size = packets.size();
+                packets = outputDevice.waitForPackets(size + 1, TIMEOUT_MILLIS);
+                assertTrue("timed out", packets.size() > size);
+            }
+            assertFalse("timed out", packets.isEmpty());
+
+            for (byte[] packet : packets) {
+                assertTrue(packet.length <= BUFFER_SIZE);
+                parser.parse(packet);
+            }
+            final List<String> events = new ArrayList<>();
+            for (String event : inputDevice.getEvents()) {
+                events.add(event.substring(0, event.lastIndexOf(" @")));
+            }
+            assertEquals(expectedEvents, events);
+        } finally {
+            outputDevice.stop();
+        }
+    }
+
+    @Test
+    public void scheduledMessagesKeepOrder() throws InterruptedException {
+        final RecordingMidiOutputDevice outputDevice = new RecordingMidiOutputDevice(MidiClock.SYSTEM, BUFFER_SIZE);
+        try {
+            // the note off of the previous note, and the note on of the next one at the same time
+            final long nanoTime = MidiClock.SYSTEM.nanoTime() + TimeUnit.MILLISECONDS.toNanos(outputDevice.getLookaheadMillis() + 20);
+            outputDevice.sendAt(nanoTime, 0x91, 60, 100);
+            outputDevice.sendAt(nanoTime, 0x81, 60, 0);
+            outputDevice.sendAt(nanoTime, 0x91, 60, 90);
+            outputDevice.sendAt(nanoTime, 0xb1, 64, 0);
+            expectWithoutTimestamp("noteOn 1 60 100");
+            expectWithoutTimestamp("noteOff 1 60 0");
+            expectWithoutTimestamp("noteOn 1 60 90");
+            expectWithoutTimestamp("controlChange 1 64 0");
+
+            // the messages may be released in more than one packet
+            int packetCount = 0;
+            while (inputDevice.getEventCount() < expectedEvents.size()) {
+                final List<byte[]> packets = outputDevice.waitForPackets(packetCount + 1, TIMEOUT_MILLIS);
+                assertTrue("timed out", packets.size() > packetCount);
+                for (; packetCount < packets.size(); packetCount++) {
+                    parser.parse(packets.get(packetCount));
+                }
+            }
+            final List<String> events = new ArrayList<>();
+            for (String event : inputDevice.getEvents()) {
+                events.add(event.substring(0, event.lastIndexOf(" @")));
+            }
+            assertEquals(expectedEvents, events);
+        } finally {
+            outputDevice.stop();
+        }
+    }
+
+    /**
+     * Appends the random message, and its expected event
+     */
+    private void appendRandomMessage(@NonNull Random random, @NonNull BleMidiPacketBuilder builder, long timestamp, int bufferSize) {
+        final int channel = random.nextInt(3);
+        final int data1 = random.nextInt(128);
+        final int data2 = random.nextInt(128);
+        final long decodedTimestamp = decodedTimestamp(timestamp);
+        switch (random.nextInt(12)) {
+            case 0:
+            case 1:
+            case 2:
+                builder.append(timestamp, bufferSize, 3, 0x90 | channel, data1, data2);
+                expect((data2 == 0 ? "noteOff " : "noteOn ") + channel + " " + data1 + " " + data2, decodedTimestamp);
+                break;
+            case 3:
+            case 4:
+                builder.append(timestamp, bufferSize, 3, 0x80 | channel, data1, data2);
+                expect("noteOff " + channel + " " + data1 + " " + data2, decodedTimestamp);
+                break;
+            case 5: {
+                // not RPN/NRPN controllers, they are decoded to more events
+                final int controller = new int[]{1, 7, 10, 11, 64, 74, 120, 123}[random.nextInt(8)];
+                builder.append(timestamp, bufferSize, 3, 0xb0 | channel, controller, data2);
+                expect("controlChange " + channel + " " + controller + " " + data2, decodedTimestamp);
+                break;
+            }
+            case 6:
+                builder.append(timestamp, bufferSize, 3, 0xe0 | channel, data1, data2);
+                expect("pitchWheel " + channel + " " + (data1 | (data2 << 7)), decodedTimestamp);
+                break;
+            case 7:
+                builder.append(timestamp, bufferSize, 3, 0xa0 | channel, data1, data2);
+                expect("polyphonicAftertouch " + channel + " " + data1 + " " + data2, decodedTimestamp);
+                break;
+            case 8:
+                builder.append(timestamp, bufferSize, 2, 0xc0 | channel, data1, 0);
+                expect("programChange " + channel + " " + data1, decodedTimestamp);
+                break;
+            case 9:
+                builder.append(timestamp, bufferSize, 2, 0xd0 | channel, data1, 0);
+                expect("channelAftertouch " + channel + " " + data1, decodedTimestamp);
+                break;
+            case 10:
+                builder.append(timestamp, bufferSize, 1, 0xf8, 0, 0);
+                expect("timingClock", decodedTimestamp);
+                break;
+            default:
+                builder.append(timestamp, bufferSize, 3, 0xf2, data1, data2);
+                expect("songPositionPointer " + (data1 | (data2 << 7)), decodedTimestamp);
+                break;
+        }
+    }
+
+    private void expect(@NonNull String event, long timestamp) {
+        expectedEvents.add(event + " @" + timestamp);
+    }
+
+    private void expectWithoutTimestamp(@NonNull String event) {
+        expectedEvents.add(event);
+    }
+
+    private void assertDecoded(@NonNull List<byte[]> packets) {
+        for (byte[] packet : packets) {
+            parser.parse(packet);
+        }
+        assertEquals(expectedEvents, inputDevice.getEvents());
+    }
+
+    /**
+     * Obtains the timestamp read by the receiver
+     *
+     * @param timestamp 13bits BLE MIDI timestamp
+     * @return the timestamp, 0x77 of the lower 7bits is sent as 0x76
+     */
+    private static long decodedTimestamp(long timestamp) {
+        return (timestamp & 0x7f) == 0x77 ? timestamp - 1 : timestamp;
+    }
+
+    private static boolean endsWithSystemExclusive(@NonNull byte[] packet) {
+        return packet[packet.length - 1] == (byte) 0xf7;
+    }
+
+    @NonNull
+    private static List<byte[]> toPackets(@NonNull BleMidiPacketBuilder builder) {
+        final List<byte[]> packets = new ArrayList<>();
+        for (int i = 0; i < builder.getPacketCount(); i++) {
+            final byte[] packet = new byte[builder.getPacketLength(i)];
+            builder.copyPacket(i, packet);
+            packets.add(packet);
+        }
+        return packets;
+    }
+
+    @NonNull
+    private static byte[] toBytes(int... values) {
+        final byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+}
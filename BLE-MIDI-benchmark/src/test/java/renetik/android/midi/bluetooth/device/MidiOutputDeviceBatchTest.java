@@ -0,0 +1,93 @@
+package renetik.android.midi.bluetooth.device;
+
+import androidx.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import renetik.android.midi.bluetooth.util.MidiClock;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the batch sending of {@link MidiOutputDevice#sendMidiMessages(int[], int, int)} and {@link MidiOutputDevice#sendMidiMessages(byte[], int, int)}<br />
+ * A chord sent together must arrive in one packet, with running status and one timestamp.
+ * The JMH MidiOutputDeviceBenchmark compares the cost with the sending per message.
+ */
+public class MidiOutputDeviceBatchTest {
+    private static final int BUFFER_SIZE = 20;
+    private static final long TIMEOUT_MILLIS = 5000;
+    // no more packets for this time
+    private static final long IDLE_MILLIS = 100;
+
+    // 4 notes chord: C, E, G, C
+    private static final int[] CHORD_MESSAGES = {0x643c90, 0x644090, 0x644390, 0x644890};
+    private static final byte[] CHORD_STREAM = {(byte) 0x90, 60, 100, 64, 100, 67, 100, 72, 100};
+    // the packet after the header and the timestamp
+    private static final byte[] CHORD_PACKET_BODY = {(byte) 0x90, 60, 100, 64, 100, 67, 100, 72, 100};
+
+    // the time stays still, all of the messages have the same timestamp
+    private final RecordingMidiOutputDevice device = new RecordingMidiOutputDevice(new MidiClock() {
+        @Override
+        public long nanoTime() {
+            return 0;
+        }
+    }, BUFFER_SIZE);
+
+    @After
+    public void tearDown() {
+        device.stop();
+    }
+
+    @Test
+    public void packedChordIsOnePacket() throws InterruptedException {
+        device.sendMidiMessages(CHORD_MESSAGES, 0, CHORD_MESSAGES.length);
+        assertChordPacket(waitForIdle());
+    }
+
+    @Test
+    public void streamChordIsOnePacket() throws InterruptedException {
+        device.sendMidiMessages(CHORD_STREAM, 0, CHORD_STREAM.length);
+        assertChordPacket(waitForIdle());
+    }
+
+    @Test
+    public void invalidMessageSendsNothing() throws InterruptedException {
+        final int[] messages = Arrays.copyOf(CHORD_MESSAGES, CHORD_MESSAGES.length + 1);
+        // data byte as the status
+        messages[CHORD_MESSAGES.length] = 0x643c;
+        try {
+            device.sendMidiMessages(messages, 0, messages.length);
+            fail("invalid message is sent");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(0, device.waitForPackets(1, IDLE_MILLIS).size());
+    }
+
+    private static void assertChordPacket(@NonNull List<byte[]> packets) {
+        assertEquals("packets", 1, packets.size());
+        final byte[] packet = packets.get(0);
+        // header and timestamp, at the time 0
+        assertEquals(0x80, packet[0] & 0xff);
+        assertEquals(0x80, packet[1] & 0xff);
+        assertArrayEquals(Arrays.toString(packet), CHORD_PACKET_BODY, Arrays.copyOfRange(packet, 2, packet.length));
+    }
+
+    @NonNull
+    private List<byte[]> waitForIdle() throws InterruptedException {
+        List<byte[]> packets = device.waitForPackets(1, TIMEOUT_MILLIS);
+        while (true) {
+            final List<byte[]> morePackets = device.waitForPackets(packets.size() + 1, IDLE_MILLIS);
+            if (morePackets.size() == packets.size()) {
+                return packets;
+            }
+            packets = morePackets;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package renetik.android.midi.bluetooth.device;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import renetik.android.midi.bluetooth.util.BleMidiParser;
+import renetik.android.midi.bluetooth.util.MidiClock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives a fader and pitch bend at about 1 kHz over a slow link, with and without the controller coalescing<br />
+ * Coalescing must send fewer packets, count every merged message, and keep the newest values.
+ */
+public class MidiOutputDeviceCoalescingTest {
+    private static final int BUFFER_SIZE = 20;
+    private static final int STEP_COUNT = 200;
+    // the time of one BLE write, the messages pile up meanwhile
+    private static final long TRANSFER_MILLIS = 7;
+    // no packets for this time: all of the messages have been transferred
+    private static final long IDLE_MILLIS = 100;
+
+    /**
+     * The result of one run
+     */
+    private static final class Result {
+        int packetCount;
+        long coalescedMessageCount;
+        RecordingMidiInputDevice receivedEvents;
+    }
+
+    @Test
+    public void coalescingSendsFewerPacketsWithNewestValues() throws InterruptedException {
+        final Result plain = run(false);
+        final Result coalesced = run(true);
+
+        assertEquals(0, plain.coalescedMessageCount);
+        assertEquals(STEP_COUNT * 2, plain.receivedEvents.getEventCount());
+
+        assertTrue("merged messages", coalesced.coalescedMessageCount > 0);
+        assertEquals("every message is sent or merged", STEP_COUNT * 2, coalesced.receivedEvents.getEventCount() + coalesced.coalescedMessageCount);
+        assertTrue("packets " + coalesced.packetCount + " coalesced, " + plain.packetCount + " plain", coalesced.packetCount < plain.packetCount);
+
+        // the newest values arrive last
+        final List<String> events = coalesced.receivedEvents.getEvents();
+        assertEquals("controlChange 0 7 " + fader(STEP_COUNT - 1), lastEvent(events, "controlChange"));
+        assertEquals("pitchWheel 0 " + pitchWheel(STEP_COUNT - 1), lastEvent(events, "pitchWheel"));
+    }
+
+    @NonNull
+    private static Result run(boolean coalescing) throws InterruptedException {
+        final RecordingMidiOutputDevice device = new RecordingMidiOutputDevice(MidiClock.SYSTEM, BUFFER_SIZE);
+        device.setControllerCoalescing(coalescing);
+        device.setTransferCallback(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(TRANSFER_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        final List<byte[]> packets;
+        try {
+            for (int i = 0; i < STEP_COUNT; i++) {
+                device.sendMidiControlChange(0, 7, fader(i));
+                device.sendMidiPitchWheel(0, pitchWheel(i));
+                Thread.sleep(1);
+            }
+            packets = waitForIdle(device);
+        } finally {
+            device.stop();
+        }
+
+        final Result result = new Result();
+        result.packetCount = packets.size();
+        result.coalescedMessageCount = device.getCoalescedMessageCount();
+        result.receivedEvents = new RecordingMidiInputDevice();
+        result.receivedEvents.setImmediateDispatch(true);
+        final BleMidiParser parser = new BleMidiParser(result.receivedEvents);
+        parser.setMidiInputEventListener(result.receivedEvents);
+        try {
+            for (byte[] packet : packets) {
+                parser.parse(packet);
+            }
+        } finally {
+            parser.stop();
+        }
+        return result;
+    }
+
+    @NonNull
+    private static List<byte[]> waitForIdle(@NonNull RecordingMidiOutputDevice device) throws InterruptedException {
+        List<byte[]> packets = device.waitForPackets(0, 0);
+        while (true) {
+            final List<byte[]> morePackets = device.waitForPackets(packets.size() + 1, IDLE_MILLIS);
+            if (morePackets.size() == packets.size()) {
+                return packets;
+            }
+            packets = morePackets;
+        }
+    }
+
+    @NonNull
+    private static String lastEvent(@NonNull List<String> events, @NonNull String kind) {
+        for (int i = events.size() - 1; i >= 0; i--) {
+            if (events.get(i).startsWith(kind)) {
+                return events.get(i);
+            }
+        }
+        return "";
+    }
+
+    private static int fader(int step) {
+        return step % 128;
+    }
+
+    private static int pitchWheel(int step) {
+        return step * 40;
+    }
+}
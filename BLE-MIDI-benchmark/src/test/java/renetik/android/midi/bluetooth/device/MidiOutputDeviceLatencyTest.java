@@ -0,0 +1,113 @@
+package renetik.android.midi.bluetooth.device;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import renetik.android.midi.bluetooth.util.MidiClock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures the latency from sending a message to {@link MidiOutputDevice#transferData(byte[])}, with the batch window<br />
+ * The JMH OutputLatencyBenchmark reports the same distribution in detail.
+ */
+public class MidiOutputDeviceLatencyTest {
+    private static final int BUFFER_SIZE = 20;
+    private static final int MESSAGE_COUNT = 200;
+    private static final long TIMEOUT_MILLIS = 5000;
+    // the scheduling delay allowed on top of the batch window
+    private static final long EPSILON_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    /**
+     * The clock moved only by the test
+     */
+    private static final class ManualClock implements MidiClock {
+        private volatile long nanoTime = TimeUnit.SECONDS.toNanos(1);
+
+        @Override
+        public long nanoTime() {
+            return nanoTime;
+        }
+
+        void advance(long nanos) {
+            nanoTime += nanos;
+        }
+    }
+
+    @Test
+    public void batchWindowFollowsClock() throws InterruptedException {
+        final ManualClock clock = new ManualClock();
+        final RecordingMidiOutputDevice device = new RecordingMidiOutputDevice(clock, BUFFER_SIZE);
+        device.setBatchWindowMillis(2);
+        try {
+            for (int i = 0; i < 20; i++) {
+                final long sendTime = clock.nanoTime();
+                device.sendMidiNoteOn(0, 60, 100);
+
+                // 3ms in real time, but not in the clock
+                assertEquals("sent before the batch window", i, device.waitForPackets(i + 1, 3).size());
+                clock.advance(TimeUnit.MILLISECONDS.toNanos(1));
+                assertEquals("sent before the batch window", i, device.waitForPackets(i + 1, 3).size());
+                clock.advance(TimeUnit.MILLISECONDS.toNanos(1));
+
+                assertEquals("not sent after the batch window", i + 1, device.waitForPackets(i + 1, TIMEOUT_MILLIS).size());
+                assertEquals(TimeUnit.MILLISECONDS.toNanos(2), device.getTransferTime(i) - sendTime);
+            }
+        } finally {
+            device.stop();
+        }
+    }
+
+    @Test
+    public void latencyWithoutBatchWindow() throws InterruptedException {
+        final long[] latencies = measureLatencies(0);
+        assertTrue("p99 " + latencies[percentileIndex(99)], latencies[percentileIndex(99)] <= EPSILON_NANOS);
+    }
+
+    @Test
+    public void latencyWithBatchWindow() throws InterruptedException {
+        final long batchWindowNanos = TimeUnit.MILLISECONDS.toNanos(2);
+        final long[] latencies = measureLatencies(2);
+        // the first message of the batch waits for the whole window
+        assertTrue("min " + latencies[0], latencies[0] >= batchWindowNanos);
+        assertTrue("p99 " + latencies[percentileIndex(99)], latencies[percentileIndex(99)] <= batchWindowNanos + EPSILON_NANOS);
+    }
+
+    /**
+     * Sends the messages one by one, each after the transfer of the previous one
+     *
+     * @param batchWindowMillis the batch window
+     * @return the sorted latencies in nanoseconds
+     * @throws InterruptedException the thread is interrupted
+     */
+    @NonNull
+    private static long[] measureLatencies(int batchWindowMillis) throws InterruptedException {
+        final MidiClock clock = MidiClock.SYSTEM;
+        final RecordingMidiOutputDevice device = new RecordingMidiOutputDevice(clock, BUFFER_SIZE);
+        device.setBatchWindowMillis(batchWindowMillis);
+        final long[] latencies = new long[MESSAGE_COUNT];
+        try {
+            for (int i = 0; i < MESSAGE_COUNT; i++) {
+                final long sendTime = clock.nanoTime();
+                device.sendMidiNoteOn(0, 60, 100);
+                final List<byte[]> packets = device.waitForPackets(i + 1, TIMEOUT_MILLIS);
+                assertEquals("timed out", i + 1, packets.size());
+                latencies[i] = device.getTransferTime(i) - sendTime;
+            }
+        } finally {
+            device.stop();
+        }
+        Arrays.sort(latencies);
+        return latencies;
+    }
+
+    private static int percentileIndex(int percentile) {
+        return (MESSAGE_COUNT - 1) * percentile / 100;
+    }
+}
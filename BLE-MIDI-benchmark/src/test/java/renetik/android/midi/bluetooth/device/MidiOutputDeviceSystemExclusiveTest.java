@@ -0,0 +1,116 @@
+package renetik.android.midi.bluetooth.device;
+
+import androidx.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import renetik.android.midi.bluetooth.util.MidiClock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the SysEx lane of {@link MidiOutputDevice}<br />
+ * The invalid SysEx is rejected on the caller's thread, and the continuous short messages don't hold back the SysEx.
+ */
+public class MidiOutputDeviceSystemExclusiveTest {
+    private static final int BUFFER_SIZE = 20;
+    private static final long TIMEOUT_MILLIS = 5000;
+    private static final int MAX_SHORT_MESSAGES = 10000;
+
+    private RecordingMidiOutputDevice device;
+
+    @Before
+    public void setUp() {
+        device = new RecordingMidiOutputDevice(MidiClock.SYSTEM, BUFFER_SIZE);
+    }
+
+    @After
+    public void tearDown() {
+        device.stop();
+    }
+
+    @Test
+    public void invalidSystemExclusiveIsRejected() throws InterruptedException {
+        assertRejected(new byte[0]);
+        assertRejected(toBytes(0xf0));
+        assertRejected(toBytes(0xf7));
+        assertRejected(toBytes(0x7d, 1, 0xf7));
+        assertRejected(toBytes(0xf0, 0x7d, 1));
+        assertRejected(toBytes(0xf0, 0x7d, 0x90, 0xf7));
+
+        // the device keeps working
+        device.sendMidiSystemExclusive(toBytes(0xf0, 0xf7));
+        device.sendMidiNoteOn(0, 60, 100);
+        assertEquals(2, device.waitForPackets(2, TIMEOUT_MILLIS).size());
+        assertEquals(0, device.getDroppedPacketCount());
+    }
+
+    @Test
+    public void systemExclusiveTakesTurnWithShortMessages() throws InterruptedException {
+        // a fader moving without a break: a new message is waiting whenever a packet has been transferred
+        final AtomicInteger value = new AtomicInteger();
+        device.setTransferCallback(new Runnable() {
+            @Override
+            public void run() {
+                if (value.get() < MAX_SHORT_MESSAGES) {
+                    device.sendMidiControlChange(0, 7, value.incrementAndGet() & 0x7f);
+                }
+            }
+        });
+        device.sendMidiControlChange(0, 7, 0);
+        assertTrue("timed out", device.waitForPackets(10, TIMEOUT_MILLIS).size() >= 10);
+
+        final byte[] systemExclusive = new byte[100];
+        systemExclusive[0] = (byte) 0xf0;
+        systemExclusive[systemExclusive.length - 1] = (byte) 0xf7;
+        device.sendMidiSystemExclusive(systemExclusive);
+        // the packets transferred after the SysEx has been queued
+        final int sentIndex = device.waitForPackets(0, 0).size();
+
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        int endIndex;
+        while ((endIndex = indexOfSystemExclusiveEnd(device.waitForPackets(0, 0))) < 0) {
+            assertTrue("timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        device.setTransferCallback(null);
+
+        // the short messages waiting, then the SysEx of 100 bytes in packets of 20 bytes
+        assertTrue("SysEx held back by " + (endIndex - sentIndex) + " packets", endIndex - sentIndex < 20);
+    }
+
+    private void assertRejected(@NonNull byte[] systemExclusive) {
+        try {
+            device.sendMidiSystemExclusive(systemExclusive);
+            fail("accepted");
+        } catch (IllegalArgumentException expected) {
+            // the message is not queued
+        }
+    }
+
+    private static int indexOfSystemExclusiveEnd(@NonNull List<byte[]> packets) {
+        for (int i = 0; i < packets.size(); i++) {
+            final byte[] packet = packets.get(i);
+            if (packet[packet.length - 1] == (byte) 0xf7) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @NonNull
+    private static byte[] toBytes(int... values) {
+        final byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,62 @@
+package renetik.android.midi.bluetooth.device;
+
+import org.junit.After;
+import org.junit.Test;
+
+import renetik.android.midi.bluetooth.util.MidiClock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the transfer results of {@link MidiOutputDevice}<br />
+ * A subclass implementing only {@link MidiOutputDevice#transferData(byte[])} must keep working, with each transfer regarded as succeeded.
+ */
+public class MidiOutputDeviceTransferTest {
+    private static final int BUFFER_SIZE = 20;
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private final RecordingMidiOutputDevice device = new RecordingMidiOutputDevice(MidiClock.SYSTEM, BUFFER_SIZE);
+
+    @After
+    public void tearDown() {
+        device.stop();
+    }
+
+    @Test
+    public void transferWithoutResultIsDelivered() throws InterruptedException {
+        for (int i = 0; i < 10; i++) {
+            device.sendMidiNoteOn(0, 60 + i, 100);
+            assertEquals(i + 1, device.waitForPackets(i + 1, TIMEOUT_MILLIS).size());
+        }
+        waitForDeliveredPackets(10);
+        assertEquals(0, device.getRetriedPacketCount());
+        assertEquals(0, device.getDroppedPacketCount());
+    }
+
+    @Test
+    public void busyTransferIsRetried() throws InterruptedException {
+        device.setBusyCount(3);
+        device.sendMidiNoteOn(0, 60, 100);
+
+        assertEquals(1, device.waitForPackets(1, TIMEOUT_MILLIS).size());
+        waitForDeliveredPackets(1);
+        assertEquals(3, device.getRetriedPacketCount());
+        assertEquals(0, device.getDroppedPacketCount());
+    }
+
+    /**
+     * Waits for the delivered count, updated after the transfer has been recorded
+     *
+     * @param count the number of packets
+     * @throws InterruptedException the thread is interrupted
+     */
+    private void waitForDeliveredPackets(long count) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (device.getDeliveredPacketCount() < count) {
+            assertTrue("timed out, delivered: " + device.getDeliveredPacketCount(), System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        assertEquals(count, device.getDeliveredPacketCount());
+    }
+}
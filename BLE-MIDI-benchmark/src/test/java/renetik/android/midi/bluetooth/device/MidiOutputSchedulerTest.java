@@ -0,0 +1,59 @@
+package renetik.android.midi.bluetooth.device;
+
+import androidx.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import renetik.android.midi.bluetooth.util.MidiClock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the devices sharing {@link MidiOutputScheduler}<br />
+ * A failing transfer of one device must not stop the output of the other devices.
+ */
+public class MidiOutputSchedulerTest {
+    private static final int BUFFER_SIZE = 20;
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private final List<MidiOutputDevice> devices = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (MidiOutputDevice device : devices) {
+            device.stop();
+        }
+    }
+
+    @Test
+    public void failingTransferDoesNotStopOtherDevices() throws InterruptedException {
+        final RecordingMidiOutputDevice failingDevice = createDevice();
+        failingDevice.setThrowing(true);
+        final RecordingMidiOutputDevice device = createDevice();
+
+        for (int note = 40; note < 60; note++) {
+            failingDevice.sendMidiNoteOn(0, note, 100);
+            device.sendMidiNoteOn(0, note, 100);
+            // one packet for each message
+            assertEquals("packets", note - 39, device.waitForPackets(note - 39, TIMEOUT_MILLIS).size());
+        }
+        assertTrue("dropped packets", failingDevice.getDroppedPacketCount() > 0);
+
+        // the failing device recovers when its transfer succeeds again
+        failingDevice.setThrowing(false);
+        failingDevice.sendMidiNoteOn(0, 60, 100);
+        assertEquals(1, failingDevice.waitForPackets(1, TIMEOUT_MILLIS).size());
+    }
+
+    @NonNull
+    private RecordingMidiOutputDevice createDevice() {
+        final RecordingMidiOutputDevice device = new RecordingMidiOutputDevice(MidiClock.SYSTEM, BUFFER_SIZE);
+        devices.add(device);
+        return device;
+    }
+}
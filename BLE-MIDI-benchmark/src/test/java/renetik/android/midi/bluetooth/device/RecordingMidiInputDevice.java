@@ -0,0 +1,277 @@
+package renetik.android.midi.bluetooth.device;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntSupplier;
+
+import renetik.android.midi.bluetooth.listener.OnMidiInputEventListener;
+
+/**
+ * MIDI input device without Bluetooth, records the received events as text<br />
+ * With {@link #recordTimestamps(IntSupplier)}, each event is followed by the parser's timestamp.
+ * Without recording, the events are only counted, not to allocate.
+ */
+public final class RecordingMidiInputDevice extends MidiInputDevice implements OnMidiInputEventListener {
+    private final List<String> events = new ArrayList<>();
+    private boolean recording = true;
+    private volatile boolean throwing = false;
+    // written by the dispatching thread only, polled by the other thread
+    private volatile int eventCount;
+    private volatile Thread eventThread = null;
+    @Nullable
+    private IntSupplier timestamp = null;
+
+    @Override
+    public void setOnMidiInputEventListener(@Nullable OnMidiInputEventListener midiInputEventListener) {
+        // the device itself is the listener
+    }
+
+    @NonNull
+    @Override
+    public String deviceName() {
+        return "recording";
+    }
+
+    @NonNull
+    @Override
+    public String deviceAddress() {
+        return "00:00:00:00:00:00";
+    }
+
+    /**
+     * Sets the recording mode
+     *
+     * @param recording true: records the events(default), false: counts the events only
+     */
+    public void setRecording(boolean recording) {
+        this.recording = recording;
+    }
+
+    /**
+     * Makes the listener throw, as a failing application listener
+     *
+     * @param throwing true: each event is counted, then {@link IllegalStateException} is thrown
+     */
+    public void setThrowing(boolean throwing) {
+        this.throwing = throwing;
+    }
+
+    /**
+     * Records the timestamp with the events
+     *
+     * @param timestamp the timestamp of the parser which fires the events synchronously, see ParserTimestamps
+     */
+    public void recordTimestamps(@NonNull IntSupplier timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Obtains the recorded events
+     *
+     * @return the events in the received order
+     */
+    @NonNull
+    public List<String> getEvents() {
+        return events;
+    }
+
+    /**
+     * Obtains the number of the received events, with or without recording
+     *
+     * @return the number of events
+     */
+    public int getEventCount() {
+        return eventCount;
+    }
+
+    /**
+     * Obtains the thread which fired the last event
+     *
+     * @return the thread, null if no events
+     */
+    @Nullable
+    public Thread getEventThread() {
+        return eventThread;
+    }
+
+    private void countEvent() {
+        eventCount++;
+        eventThread = Thread.currentThread();
+        if (throwing) {
+            throw new IllegalStateException("listener failure");
+        }
+    }
+
+    private void received(@NonNull String event) {
+        final IntSupplier timestamp = this.timestamp;
+        if (timestamp == null) {
+            events.add(event);
+            return;
+        }
+        events.add(event + " @" + timestamp.getAsInt());
+    }
+
+    @Override
+    public void onMidiSystemExclusive(@NonNull MidiInputDevice sender, @NonNull byte[] systemExclusive) {
+        countEvent();
+        if (recording) {
+            received("sysex " + Arrays.toString(systemExclusive));
+        }
+    }
+
+    @Override
+    public void onMidiNoteOff(@NonNull MidiInputDevice sender, int channel, int note, int velocity) {
+        countEvent();
+        if (recording) {
+            received("noteOff " + channel + " " + note + " " + velocity);
+        }
+    }
+
+    @Override
+    public void onMidiNoteOn(@NonNull MidiInputDevice sender, int channel, int note, int velocity) {
+        countEvent();
+        if (recording) {
+            received("noteOn " + channel + " " + note + " " + velocity);
+        }
+    }
+
+    @Override
+    public void onMidiPolyphonicAftertouch(@NonNull MidiInputDevice sender, int channel, int note, int pressure) {
+        countEvent();
+        if (recording) {
+            received("polyphonicAftertouch " + channel + " " + note + " " + pressure);
+        }
+    }
+
+    @Override
+    public void onMidiControlChange(@NonNull MidiInputDevice sender, int channel, int function, int value) {
+        countEvent();
+        if (recording) {
+            received("controlChange " + channel + " " + function + " " + value);
+        }
+    }
+
+    @Override
+    public void onMidiProgramChange(@NonNull MidiInputDevice sender, int channel, int program) {
+        countEvent();
+        if (recording) {
+            received("programChange " + channel + " " + program);
+        }
+    }
+
+    @Override
+    public void onMidiChannelAftertouch(@NonNull MidiInputDevice sender, int channel, int pressure) {
+        countEvent();
+        if (recording) {
+            received("channelAftertouch " + channel + " " + pressure);
+        }
+    }
+
+    @Override
+    public void onMidiPitchWheel(@NonNull MidiInputDevice sender, int channel, int amount) {
+        countEvent();
+        if (recording) {
+            received("pitchWheel " + channel + " " + amount);
+        }
+    }
+
+    @Override
+    public void onMidiTimeCodeQuarterFrame(@NonNull MidiInputDevice sender, int timing) {
+        countEvent();
+        if (recording) {
+            received("timeCodeQuarterFrame " + timing);
+        }
+    }
+
+    @Override
+    public void onMidiSongSelect(@NonNull MidiInputDevice sender, int song) {
+        countEvent();
+        if (recording) {
+            received("songSelect " + song);
+        }
+    }
+
+    @Override
+    public void onMidiSongPositionPointer(@NonNull MidiInputDevice sender, int position) {
+        countEvent();
+        if (recording) {
+            received("songPositionPointer " + position);
+        }
+    }
+
+    @Override
+    public void onMidiTuneRequest(@NonNull MidiInputDevice sender) {
+        countEvent();
+        if (recording) {
+            received("tuneRequest");
+        }
+    }
+
+    @Override
+    public void onMidiTimingClock(@NonNull MidiInputDevice sender) {
+        countEvent();
+        if (recording) {
+            received("timingClock");
+        }
+    }
+
+    @Override
+    public void onMidiStart(@NonNull MidiInputDevice sender) {
+        countEvent();
+        if (recording) {
+            received("start");
+        }
+    }
+
+    @Override
+    public void onMidiContinue(@NonNull MidiInputDevice sender) {
+        countEvent();
+        if (recording) {
+            received("continue");
+        }
+    }
+
+    @Override
+    public void onMidiStop(@NonNull MidiInputDevice sender) {
+        countEvent();
+        if (recording) {
+            received("stop");
+        }
+    }
+
+    @Override
+    public void onMidiActiveSensing(@NonNull MidiInputDevice sender) {
+        countEvent();
+        if (recording) {
+            received("activeSensing");
+        }
+    }
+
+    @Override
+    public void onMidiReset(@NonNull MidiInputDevice sender) {
+        countEvent();
+        if (recording) {
+            received("reset");
+        }
+    }
+
+    @Override
+    public void onRPNMessage(@NonNull MidiInputDevice sender, int channel, int function, int value) {
+        countEvent();
+        if (recording) {
+            received("rpn " + channel + " " + function + " " + value);
+        }
+    }
+
+    @Override
+    public void onNRPNMessage(@NonNull MidiInputDevice sender, int channel, int function, int value) {
+        countEvent();
+        if (recording) {
+            received("nrpn " + channel + " " + function + " " + value);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package renetik.android.midi.bluetooth.device;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import renetik.android.midi.bluetooth.util.MidiClock;
+
+/**
+ * MIDI output device without Bluetooth, records the transferred packets with the time of the transfer
+ */
+public final class RecordingMidiOutputDevice extends MidiOutputDevice {
+    private final MidiClock clock;
+    private final int bufferSize;
+    // accessed with synchronized(packets)
+    private final List<byte[]> packets = new ArrayList<>();
+    private final List<Long> transferTimes = new ArrayList<>();
+    private volatile boolean throwing = false;
+    // the transfers answered busy before the next one succeeds, accessed on the scheduler thread
+    private volatile int busyCount = 0;
+    @Nullable
+    private volatile Runnable transferCallback = null;
+
+    /**
+     * Constructor
+     *
+     * @param clock      the clock for BLE MIDI timestamp encoding, and the transfer time
+     * @param bufferSize the maximum packet size
+     */
+    public RecordingMidiOutputDevice(@NonNull MidiClock clock, int bufferSize) {
+        super(clock);
+        this.clock = clock;
+        this.bufferSize = bufferSize;
+    }
+
+    @Override
+    protected int transferDataWithResult(@NonNull byte[] writeBuffer) {
+        if (busyCount > 0) {
+            busyCount--;
+            return TRANSFER_BUSY;
+        }
+        // the default implementation, calls transferData
+        return super.transferDataWithResult(writeBuffer);
+    }
+
+    @Override
+    protected void transferData(@NonNull byte[] writeBuffer) {
+        if (throwing) {
+            throw new IllegalStateException("transfer failure");
+        }
+        synchronized (packets) {
+            packets.add(writeBuffer.clone());
+            transferTimes.add(clock.nanoTime());
+            packets.notifyAll();
+        }
+        final Runnable transferCallback = this.transferCallback;
+        if (transferCallback != null) {
+            transferCallback.run();
+        }
+    }
+
+    @NonNull
+    @Override
+    public String getDeviceName() {
+        return "recording";
+    }
+
+    @NonNull
+    @Override
+    public String getDeviceAddress() {
+        return "00:00:00:00:00:00";
+    }
+
+    @Override
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Makes the transfer throw, as a failing subclass
+     *
+     * @param throwing true: each transfer throws {@link IllegalStateException}, without recording the packet
+     */
+    public void setThrowing(boolean throwing) {
+        this.throwing = throwing;
+    }
+
+    /**
+     * Makes the next transfers busy, as the Bluetooth stack without the space for the packet
+     *
+     * @param busyCount the number of the transfers answered busy, before they are recorded again
+     */
+    public void setBusyCount(int busyCount) {
+        this.busyCount = busyCount;
+    }
+
+    /**
+     * Sets the callback run after each recorded transfer, on the scheduler thread
+     *
+     * @param transferCallback the callback, null to remove
+     */
+    public void setTransferCallback(@Nullable Runnable transferCallback) {
+        this.transferCallback = transferCallback;
+    }
+
+    /**
+     * Waits for the packets to be transferred
+     *
+     * @param count         the number of packets
+     * @param timeoutMillis the maximum time to wait
+     * @return the transferred packets, fewer than the count if timed out
+     * @throws InterruptedException the thread is interrupted
+     */
+    @NonNull
+    public List<byte[]> waitForPackets(int count, long timeoutMillis) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (packets) {
+            long waitMillis;
+            while (packets.size() < count && (waitMillis = deadline - System.currentTimeMillis()) > 0) {
+                packets.wait(waitMillis);
+            }
+            return new ArrayList<>(packets);
+        }
+    }
+
+    /**
+     * Obtains the time of the transfer
+     *
+     * @param index the packet index
+     * @return the time in {@link MidiClock#nanoTime()}
+     */
+    public long getTransferTime(int index) {
+        synchronized (packets) {
+            return transferTimes.get(index);
+        }
+    }
+}
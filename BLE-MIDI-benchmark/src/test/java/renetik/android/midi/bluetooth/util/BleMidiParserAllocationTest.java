@@ -0,0 +1,153 @@
+package renetik.android.midi.bluetooth.util;
+
+import androidx.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.TimeUnit;
+
+import renetik.android.midi.bluetooth.device.RecordingMidiInputDevice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks the steady state parsing allocates nothing, measured with {@link com.sun.management.ThreadMXBean#getThreadAllocatedBytes(long)}<br />
+ * The parser is warmed up with the same traffic first, to grow the queues and to compile the hot paths.
+ */
+public class BleMidiParserAllocationTest {
+    private static final int WARMUP_ROUNDS = 200;
+    private static final int MEASURED_ROUNDS = 200;
+    private static final int CYCLES_PER_ROUND = 7;
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    // one timestamp at index 1, followed by the messages with running status
+    private static final byte[][] PACKETS = {
+            toBytes(0x80, 0x80, 0x90, 60, 100, 64, 100, 67, 100, 72, 100),
+            toBytes(0x80, 0x80, 0x80, 60, 0, 64, 0, 67, 0, 72, 0),
+            toBytes(0x80, 0x80, 0xe0, 0, 64, 10, 64, 20, 64, 30, 64, 40, 64),
+            toBytes(0x80, 0x80, 0xb0, 1, 10, 1, 11, 101, 0, 100, 0, 6, 2, 38, 0),
+            toBytes(0x80, 0x80, 0xa0, 60, 20, 60, 30),
+            toBytes(0x80, 0x80, 0xd0, 40),
+            toBytes(0x80, 0x80, 0xf8),
+    };
+    // 4 + 4 + 5 + (6 + 2 RPN) + 2 + 1 + 1
+    private static final int EVENTS_PER_CYCLE = 25;
+
+    private com.sun.management.ThreadMXBean threadMXBean;
+    private RecordingMidiInputDevice device;
+    private BleMidiParser parser;
+    private int expectedEventCount = 0;
+
+    @Before
+    public void setUp() {
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue("thread allocation measurement is not available", bean instanceof com.sun.management.ThreadMXBean);
+        threadMXBean = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue("thread allocation measurement is not supported", threadMXBean.isThreadAllocatedMemorySupported());
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+
+        device = new RecordingMidiInputDevice();
+        device.setRecording(false);
+        parser = new BleMidiParser(device);
+        parser.setMidiInputEventListener(device);
+        // the events fire without waiting, the jitter is still measured
+        device.getJitterBuffer().setMode(JitterBuffer.MODE_NONE);
+    }
+
+    @After
+    public void tearDown() {
+        if (parser != null) {
+            parser.stop();
+        }
+    }
+
+    @Test
+    public void immediateDispatchDoesNotAllocate() {
+        device.setImmediateDispatch(true);
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            parseRound();
+        }
+
+        final long threadId = Thread.currentThread().getId();
+        final long allocatedBytes = threadMXBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            parseRound();
+        }
+        final long parsingAllocatedBytes = threadMXBean.getThreadAllocatedBytes(threadId) - allocatedBytes;
+
+        assertEquals("events", expectedEventCount, device.getEventCount());
+        assertEquals("allocated bytes while parsing", 0, parsingAllocatedBytes);
+    }
+
+    @Test
+    public void queuedDispatchDoesNotAllocate() throws InterruptedException {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            parseRound();
+            waitForEvents();
+        }
+
+        final long threadId = Thread.currentThread().getId();
+        final long dispatcherThreadId = device.getEventThread().getId();
+        final long dispatcherAllocatedBytes = threadMXBean.getThreadAllocatedBytes(dispatcherThreadId);
+        long parsingAllocatedBytes = 0;
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            final long allocatedBytes = threadMXBean.getThreadAllocatedBytes(threadId);
+            parseRound();
+            parsingAllocatedBytes += threadMXBean.getThreadAllocatedBytes(threadId) - allocatedBytes;
+            waitForEvents();
+        }
+        final long dispatchingAllocatedBytes = threadMXBean.getThreadAllocatedBytes(dispatcherThreadId) - dispatcherAllocatedBytes;
+
+        assertTrue("dispatched on the parsing thread", dispatcherThreadId != threadId);
+        assertEquals("allocated bytes while parsing", 0, parsingAllocatedBytes);
+        // the JVM itself has been seen to allocate a few hundred bytes once on the thread, an allocation for each event is 16 bytes or more
+        assertTrue("allocated bytes while dispatching: " + dispatchingAllocatedBytes, dispatchingAllocatedBytes < MEASURED_ROUNDS * CYCLES_PER_ROUND * EVENTS_PER_CYCLE);
+    }
+
+    /**
+     * Parses the packets, with the timestamps of the current time
+     */
+    private void parseRound() {
+        long timestamp = TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+        if ((timestamp & 0x7f) == 0x77) {
+            // 0xF7 is never sent as the timestamp
+            timestamp--;
+        }
+        for (int i = 0; i < CYCLES_PER_ROUND; i++) {
+            for (byte[] packet : PACKETS) {
+                packet[0] = (byte) (0x80 | ((timestamp >> 7) & 0x3f));
+                packet[1] = (byte) (0x80 | (timestamp & 0x7f));
+                parser.parse(packet);
+            }
+        }
+        expectedEventCount += CYCLES_PER_ROUND * EVENTS_PER_CYCLE;
+    }
+
+    /**
+     * Waits for the queued events of the parsed rounds to be dispatched
+     *
+     * @throws InterruptedException the thread is interrupted
+     */
+    private void waitForEvents() throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (device.getEventCount() < expectedEventCount) {
+            assertTrue("timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    @NonNull
+    private static byte[] toBytes(int... values) {
+        final byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+}
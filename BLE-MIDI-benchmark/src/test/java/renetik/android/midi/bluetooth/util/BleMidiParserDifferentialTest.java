@@ -0,0 +1,173 @@
+package renetik.android.midi.bluetooth.util;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import renetik.android.midi.bluetooth.device.RecordingMidiInputDevice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares {@link BleMidiParser} with {@link ReferenceBleMidiParser} on the recorded packets of ble-midi-corpus.txt<br />
+ * The events and their timestamps must be identical after each packet, for both the array and the direct buffer paths.<br />
+ * System Real Time messages interleaved in SysEx are decoded only by the later {@link BleMidiParser},
+ * the reference takes them as SysEx data. Those bytes are removed from the corpus, to compare the rest.
+ */
+public class BleMidiParserDifferentialTest {
+    private static final String CORPUS = "ble-midi-corpus.txt";
+    // System Real Time messages decoded in SysEx by BleMidiParser, 0xF9 and 0xFD are undefined
+    private static final boolean[] REALTIME = new boolean[256];
+
+    static {
+        for (int status : new int[]{0xf8, 0xfa, 0xfb, 0xfc, 0xfe, 0xff}) {
+            REALTIME[status] = true;
+        }
+    }
+
+    @Test
+    public void parsesCorpusAsReference() throws IOException {
+        final List<List<byte[]>> sessions = readCorpus();
+        assertTrue("empty corpus", sessions.size() > 0);
+
+        int packetCount = 0;
+        for (int session = 0; session < sessions.size(); session++) {
+            final RecordingMidiInputDevice referenceDevice = new RecordingMidiInputDevice();
+            final ReferenceBleMidiParser referenceParser = new ReferenceBleMidiParser(referenceDevice, referenceDevice);
+            referenceDevice.recordTimestamps(ParserTimestamps.of(referenceParser));
+
+            final RecordingMidiInputDevice device = newImmediateDevice();
+            final BleMidiParser parser = new BleMidiParser(device);
+            parser.setMidiInputEventListener(device);
+            device.recordTimestamps(ParserTimestamps.of(parser));
+
+            final RecordingMidiInputDevice bufferDevice = newImmediateDevice();
+            final BleMidiParser bufferParser = new BleMidiParser(bufferDevice);
+            bufferParser.setMidiInputEventListener(bufferDevice);
+            bufferDevice.recordTimestamps(ParserTimestamps.of(bufferParser));
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(512);
+
+            try {
+                final List<byte[]> packets = withoutSystemExclusiveRealtime(sessions.get(session));
+                for (int i = 0; i < packets.size(); i++) {
+                    final byte[] packet = packets.get(i);
+                    referenceParser.parse(packet);
+                    parser.parse(packet);
+                    buffer.clear();
+                    buffer.put(packet);
+                    buffer.flip();
+                    bufferParser.parse(buffer);
+
+                    final String message = "session " + (session + 1) + ", packet " + (i + 1) + ": " + Arrays.toString(packet);
+                    assertEquals(message, referenceDevice.getEvents(), device.getEvents());
+                    assertEquals(message, referenceDevice.getEvents(), bufferDevice.getEvents());
+                    referenceDevice.getEvents().clear();
+                    device.getEvents().clear();
+                    bufferDevice.getEvents().clear();
+                }
+                packetCount += packets.size();
+            } finally {
+                parser.stop();
+                bufferParser.stop();
+            }
+        }
+        assertTrue("too few packets: " + packetCount, packetCount >= 2000);
+    }
+
+    /**
+     * Removes System Real Time messages which {@link BleMidiParser} decodes in SysEx<br />
+     * Follows the SysEx of the packets without parsing the timestamps, so it may remove more than the parser decodes.
+     * A message is removed if it follows a byte of 0x80 or more in SysEx: the byte would be taken as its timestamp.
+     *
+     * @param packets the packets of a session
+     * @return the copy of the packets, without the messages
+     */
+    @NonNull
+    private static List<byte[]> withoutSystemExclusiveRealtime(@NonNull List<byte[]> packets) {
+        final List<byte[]> result = new ArrayList<>();
+        boolean inSystemExclusive = false;
+        // the last byte of SysEx except the removed ones, -1: SysEx has only 0xF0
+        int lastByte = -1;
+        for (byte[] packet : packets) {
+            final byte[] filtered = new byte[packet.length];
+            filtered[0] = packet[0];
+            int length = 1;
+            for (int i = 1; i < packet.length; i++) {
+                final int midiEvent = packet[i] & 0xff;
+                if (!inSystemExclusive) {
+                    if (midiEvent == 0xf0) {
+                        inSystemExclusive = true;
+                        lastByte = -1;
+                    }
+                } else if (midiEvent == 0xf7) {
+                    inSystemExclusive = false;
+                } else if (REALTIME[midiEvent] && lastByte >= 0x80) {
+                    continue;
+                } else {
+                    lastByte = midiEvent;
+                }
+                filtered[length++] = (byte) midiEvent;
+            }
+            result.add(Arrays.copyOf(filtered, length));
+        }
+        return result;
+    }
+
+    @NonNull
+    private static RecordingMidiInputDevice newImmediateDevice() {
+        final RecordingMidiInputDevice device = new RecordingMidiInputDevice();
+        device.setImmediateDispatch(true);
+        return device;
+    }
+
+    /**
+     * Reads the corpus: one packet per line in hex, an empty line starts a new session, '#' starts a comment line
+     *
+     * @return the packets of the sessions
+     * @throws IOException the corpus can't be read
+     */
+    @NonNull
+    private static List<List<byte[]>> readCorpus() throws IOException {
+        final List<List<byte[]>> sessions = new ArrayList<>();
+        final InputStream inputStream = BleMidiParserDifferentialTest.class.getResourceAsStream(CORPUS);
+        assertNotNull(CORPUS + " not found", inputStream);
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.US_ASCII))) {
+            List<byte[]> packets = null;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.startsWith("#")) {
+                    continue;
+                }
+                if (line.isEmpty()) {
+                    packets = null;
+                    continue;
+                }
+                if (packets == null) {
+                    packets = new ArrayList<>();
+                    sessions.add(packets);
+                }
+                final String[] values = line.split(" ");
+                final byte[] packet = new byte[values.length];
+                for (int i = 0; i < values.length; i++) {
+                    packet[i] = (byte) Integer.parseInt(values[i], 16);
+                }
+                packets.add(packet);
+            }
+        }
+        return sessions;
+    }
+}
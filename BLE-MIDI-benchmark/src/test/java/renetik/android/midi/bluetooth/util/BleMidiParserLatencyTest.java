@@ -0,0 +1,87 @@
+package renetik.android.midi.bluetooth.util;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import renetik.android.midi.bluetooth.device.RecordingMidiInputDevice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures the latency from {@link BleMidiParser#parse(byte[])} to the note-on callback, with and without the immediate dispatching<br />
+ * The JMH InputLatencyBenchmark reports the same distribution in detail.
+ */
+public class BleMidiParserLatencyTest {
+    private static final int EVENT_COUNT = 500;
+    private static final long TIMEOUT_NANOS = 5_000_000_000L;
+
+    @Test
+    public void immediateDispatchFiresOnCallingThread() {
+        final RecordingMidiInputDevice device = new RecordingMidiInputDevice();
+        device.setImmediateDispatch(true);
+        final BleMidiParser parser = new BleMidiParser(device);
+        parser.setMidiInputEventListener(device);
+        try {
+            parser.parse(noteOn(1));
+            assertEquals("fired before parse returns", 1, device.getEventCount());
+            assertSame(Thread.currentThread(), device.getEventThread());
+        } finally {
+            parser.stop();
+        }
+    }
+
+    @Test
+    public void immediateDispatchIsFasterThanQueued() {
+        final long[] immediateLatencies = measureLatencies(true);
+        final long[] queuedLatencies = measureLatencies(false);
+        final long immediateMedian = immediateLatencies[EVENT_COUNT / 2];
+        final long queuedMedian = queuedLatencies[EVENT_COUNT / 2];
+        assertTrue("median immediate " + immediateMedian + " ns, queued " + queuedMedian + " ns", immediateMedian < queuedMedian);
+    }
+
+    /**
+     * Parses the note-on packets one by one, each after the callback of the previous one
+     *
+     * @param immediateDispatch true: fires on the calling thread, false: through MidiInputDispatcher
+     * @return the sorted latencies in nanoseconds
+     */
+    @NonNull
+    private static long[] measureLatencies(boolean immediateDispatch) {
+        final RecordingMidiInputDevice device = new RecordingMidiInputDevice();
+        device.setRecording(false);
+        device.setImmediateDispatch(immediateDispatch);
+        device.getJitterBuffer().setMode(JitterBuffer.MODE_NONE);
+        final BleMidiParser parser = new BleMidiParser(device);
+        parser.setMidiInputEventListener(device);
+        final long[] latencies = new long[EVENT_COUNT];
+        try {
+            for (int i = 0; i < EVENT_COUNT; i++) {
+                final long parseTime = System.nanoTime();
+                parser.parse(noteOn(i));
+                long currentTime;
+                while (device.getEventCount() == i) {
+                    currentTime = System.nanoTime();
+                    assertTrue("timed out", currentTime - parseTime < TIMEOUT_NANOS);
+                    Thread.onSpinWait();
+                }
+                latencies[i] = System.nanoTime() - parseTime;
+            }
+        } finally {
+            parser.stop();
+        }
+        Arrays.sort(latencies);
+        return latencies;
+    }
+
+    @NonNull
+    private static byte[] noteOn(int index) {
+        // the timestamp changes with each packet, never 0xF7
+        final int timestamp = index % 0x70;
+        return new byte[]{(byte) 0x80, (byte) (0x80 | timestamp), (byte) 0x90, 60, 100};
+    }
+}
@@ -0,0 +1,83 @@
+package renetik.android.midi.bluetooth.util;
+
+import androidx.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import renetik.android.midi.bluetooth.device.MidiInputDevice;
+import renetik.android.midi.bluetooth.device.RecordingMidiInputDevice;
+import renetik.android.midi.bluetooth.listener.OnMidiSystemExclusiveStreamListener;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the order of streaming SysEx and the queued events<br />
+ * The streaming SysEx is delivered on the receiving thread, the events received before must fire first.
+ */
+public class BleMidiParserSystemExclusiveStreamTest {
+    // long enough not to fire the queued events by the dispatcher during the test
+    private static final int LATENCY_MILLIS = 10000;
+
+    private final RecordingMidiInputDevice device = new RecordingMidiInputDevice();
+    // the stream callbacks, with the number of the events fired before
+    private final List<String> streamEvents = new ArrayList<>();
+    private BleMidiParser parser;
+
+    @Before
+    public void setUp() {
+        device.getJitterBuffer().setMode(JitterBuffer.MODE_FIXED);
+        device.getJitterBuffer().setFixedLatencyMillis(LATENCY_MILLIS);
+        device.setOnMidiSystemExclusiveStreamListener(new OnMidiSystemExclusiveStreamListener() {
+            @Override
+            public void onMidiSystemExclusiveStart(@NonNull MidiInputDevice sender) {
+                streamEvents.add("start after " + device.getEventCount());
+            }
+
+            @Override
+            public void onMidiSystemExclusiveChunk(@NonNull MidiInputDevice sender, @NonNull byte[] data, int offset, int length) {
+                streamEvents.add("chunk " + Arrays.toString(Arrays.copyOfRange(data, offset, offset + length)) + " after " + device.getEventCount());
+            }
+
+            @Override
+            public void onMidiSystemExclusiveEnd(@NonNull MidiInputDevice sender) {
+                streamEvents.add("end after " + device.getEventCount());
+            }
+
+            @Override
+            public void onMidiSystemExclusiveAbort(@NonNull MidiInputDevice sender) {
+                streamEvents.add("abort after " + device.getEventCount());
+            }
+        });
+        parser = new BleMidiParser(device);
+        parser.setMidiInputEventListener(device);
+    }
+
+    @After
+    public void tearDown() {
+        parser.stop();
+    }
+
+    @Test
+    public void queuedEventsFireBeforeStream() {
+        parser.parse(new byte[]{(byte) 0x81, (byte) 0x81, (byte) 0x90, 60, 100});
+        assertEquals("queued", 0, device.getEventCount());
+
+        // SysEx in 2 packets, with Timing Clock between them
+        parser.parse(new byte[]{(byte) 0x81, (byte) 0x82, (byte) 0xf0, 0x01, 0x02});
+        parser.parse(new byte[]{(byte) 0x81, (byte) 0x83, (byte) 0xf8, 0x03, (byte) 0x84, (byte) 0xf7});
+
+        assertEquals(Arrays.asList("noteOn 0 60 100", "timingClock"), device.getEvents());
+        assertEquals(Arrays.asList(
+                "start after 1",
+                // the last byte of the packet is held, it may be the timestamp of 0xF7
+                "chunk [-16, 1] after 1",
+                "chunk [2, 3, -9] after 2",
+                "end after 2"), streamEvents);
+    }
+}
@@ -0,0 +1,38 @@
+package renetik.android.midi.bluetooth.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the settings of {@link JitterBuffer} take effect immediately, without waiting for the next samples
+ */
+public class JitterBufferTest {
+    private static final long NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void targetPercentileUpdatesDepth() {
+        final JitterBuffer jitterBuffer = new JitterBuffer();
+        jitterBuffer.setMode(JitterBuffer.MODE_ADAPTIVE);
+        jitterBuffer.setMaxLatencyMillis(1000);
+
+        // one event every 10ms, delayed 0-99ms in turn
+        long arrivalTime = TimeUnit.SECONDS.toNanos(1);
+        for (int i = 0; i < 128; i++) {
+            jitterBuffer.calculateFireTime(i * 10, arrivalTime + i * 10 * NANOS_PER_MILLI + (i * 37 % 100) * NANOS_PER_MILLI);
+        }
+        final long jitterNanos = jitterBuffer.getJitterNanos();
+        assertEquals(jitterNanos, jitterBuffer.getDepthNanos());
+
+        jitterBuffer.setTargetPercentile(50);
+        assertTrue("smaller jitter at 50%", jitterBuffer.getJitterNanos() < jitterNanos);
+        assertEquals(jitterBuffer.getJitterNanos(), jitterBuffer.getDepthNanos());
+
+        jitterBuffer.setTargetPercentile(95);
+        assertEquals(jitterNanos, jitterBuffer.getJitterNanos());
+        assertEquals(jitterNanos, jitterBuffer.getDepthNanos());
+    }
+}
@@ -0,0 +1,98 @@
+package renetik.android.midi.bluetooth.util;
+
+import androidx.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import renetik.android.midi.bluetooth.device.RecordingMidiInputDevice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the devices sharing {@link MidiInputDispatcher}<br />
+ * A failing listener of one device must not stop the events of the other devices.
+ */
+public class MidiInputDispatcherTest {
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private final List<BleMidiParser> parsers = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (BleMidiParser parser : parsers) {
+            parser.stop();
+        }
+    }
+
+    @Test
+    public void failingListenerDoesNotStopOtherDevices() throws InterruptedException {
+        final RecordingMidiInputDevice failingDevice = new RecordingMidiInputDevice();
+        failingDevice.setThrowing(true);
+        final BleMidiParser failingParser = createParser(failingDevice);
+        final RecordingMidiInputDevice device = new RecordingMidiInputDevice();
+        final BleMidiParser parser = createParser(device);
+
+        for (int note = 40; note < 60; note++) {
+            failingParser.parse(noteOn(note));
+            parser.parse(noteOn(note));
+        }
+        waitForEvents(failingDevice, 20);
+        waitForEvents(device, 20);
+
+        // the thread keeps serving after the failures
+        for (int note = 60; note < 80; note++) {
+            failingParser.parse(noteOn(note));
+            parser.parse(noteOn(note));
+        }
+        waitForEvents(failingDevice, 40);
+        waitForEvents(device, 40);
+        assertEquals(40, device.getEvents().size());
+        assertEquals("noteOn 0 79 100", device.getEvents().get(39));
+    }
+
+    @Test
+    public void lastStopJoinsThreads() throws InterruptedException {
+        final RecordingMidiInputDevice device = new RecordingMidiInputDevice();
+        final BleMidiParser parser = createParser(device);
+        parser.parse(noteOn(60));
+        waitForEvents(device, 1);
+
+        final Thread thread = device.getEventThread();
+        assertNotNull(thread);
+        assertTrue("daemon thread", thread.isDaemon());
+        assertEquals(1, MidiInputDispatcher.getInstance().getRegisteredDeviceCount());
+
+        parser.stop();
+        assertEquals(0, MidiInputDispatcher.getInstance().getRegisteredDeviceCount());
+        assertFalse("joined", thread.isAlive());
+    }
+
+    @NonNull
+    private BleMidiParser createParser(@NonNull RecordingMidiInputDevice device) {
+        final BleMidiParser parser = new BleMidiParser(device);
+        parser.setMidiInputEventListener(device);
+        device.getJitterBuffer().setMode(JitterBuffer.MODE_NONE);
+        parsers.add(parser);
+        return parser;
+    }
+
+    private static void waitForEvents(@NonNull RecordingMidiInputDevice device, int count) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (device.getEventCount() < count) {
+            assertTrue("timed out, events: " + device.getEventCount(), System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    @NonNull
+    private static byte[] noteOn(int note) {
+        return new byte[]{(byte) 0x80, (byte) 0x80, (byte) 0x90, (byte) note, 100};
+    }
+}
@@ -0,0 +1,46 @@
+package renetik.android.midi.bluetooth.util;
+
+import androidx.annotation.NonNull;
+
+import java.util.function.IntSupplier;
+
+/**
+ * Reads the timestamp of the last parsed event, for {@link renetik.android.midi.bluetooth.device.RecordingMidiInputDevice#recordTimestamps(IntSupplier)}<br />
+ * The parsers expose it package-private only, so the tests in the other packages read it through this class.
+ */
+public final class ParserTimestamps {
+    private ParserTimestamps() {
+    }
+
+    /**
+     * Reads the timestamp of {@link BleMidiParser}
+     *
+     * @param parser the parser
+     * @return the supplier of the last parsed timestamp
+     */
+    @NonNull
+    public static IntSupplier of(@NonNull final BleMidiParser parser) {
+        return new IntSupplier() {
+            @Override
+            public int getAsInt() {
+                return parser.getTimestamp();
+            }
+        };
+    }
+
+    /**
+     * Reads the timestamp of {@link ReferenceBleMidiParser}
+     *
+     * @param parser the parser
+     * @return the supplier of the last parsed timestamp
+     */
+    @NonNull
+    static IntSupplier of(@NonNull final ReferenceBleMidiParser parser) {
+        return new IntSupplier() {
+            @Override
+            public int getAsInt() {
+                return parser.getTimestamp();
+            }
+        };
+    }
+}
@@ -0,0 +1,543 @@
+package renetik.android.midi.bluetooth.util;
+
+import android.util.SparseIntArray;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+
+import renetik.android.midi.bluetooth.device.MidiInputDevice;
+import renetik.android.midi.bluetooth.listener.OnMidiInputEventListener;
+
+/**
+ * The state machine parser before the table-driven {@link BleMidiParser}, the reference of {@link BleMidiParserDifferentialTest}<br />
+ * Also compared in the JMH BleMidiParserBenchmark.
+ * Kept as it was, except the events are fired synchronously without the queue.
+ */
+public final class ReferenceBleMidiParser {
+    // for RPN/NRPN messages
+    private static final int RPN_STATUS_NONE = 0;
+    private static final int RPN_STATUS_RPN = 1;
+    private static final int RPN_STATUS_NRPN = 2;
+    // states
+    private static final int MIDI_STATE_TIMESTAMP = 0;
+    private static final int MIDI_STATE_WAIT = 1;
+    private static final int MIDI_STATE_SIGNAL_2BYTES_2 = 21;
+    private static final int MIDI_STATE_SIGNAL_3BYTES_2 = 31;
+    private static final int MIDI_STATE_SIGNAL_3BYTES_3 = 32;
+    private static final int MIDI_STATE_SIGNAL_SYSEX = 41;
+    // event kinds, combined with the status byte of Control Change
+    private static final int EVENT_RPN = 0x100;
+    private static final int EVENT_NRPN = 0x200;
+    private final SparseIntArray rpnCacheMsb = new SparseIntArray();
+    private final SparseIntArray rpnCacheLsb = new SparseIntArray();
+    private final SparseIntArray nrpnCacheMsb = new SparseIntArray();
+    private final SparseIntArray nrpnCacheLsb = new SparseIntArray();
+    // for SysEx messages
+    private final Object systemExclusiveLock = new Object();
+    private final ReusableByteArrayOutputStream systemExclusiveStream = new ReusableByteArrayOutputStream();
+    private final ReusableByteArrayOutputStream systemExclusiveRecoveryStream = new ReusableByteArrayOutputStream();
+    private final MidiInputDevice sender;
+    private final OnMidiInputEventListener midiInputEventListener;
+    // MIDI event message
+    private int midiEventKind;
+    private int midiEventNote;
+    private int midiEventVelocity;
+    private int rpnNrpnFunction;
+    private int rpnNrpnValueMsb;
+    private int rpnNrpnValueLsb;
+    private int rpnStatus = RPN_STATUS_NONE;
+    private int rpnFunctionMsb = 0x7f;
+    private int rpnFunctionLsb = 0x7f;
+    private int nrpnFunctionMsb = 0x7f;
+    private int nrpnFunctionLsb = 0x7f;
+    private int midiState;
+    private int timestamp = 0;
+
+    /**
+     * Constructor
+     *
+     * @param sender                 the sender
+     * @param midiInputEventListener the listener for MIDI events
+     */
+    public ReferenceBleMidiParser(@NonNull final MidiInputDevice sender, @NonNull final OnMidiInputEventListener midiInputEventListener) {
+        this.sender = sender;
+        this.midiInputEventListener = midiInputEventListener;
+
+        midiState = MIDI_STATE_TIMESTAMP;
+        midiEventKind = 0;
+        midiEventNote = 0;
+        midiEventVelocity = 0;
+    }
+
+    /**
+     * Obtains the timestamp of the last parsed event
+     *
+     * @return BLE MIDI timestamp
+     */
+    int getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Parses MIDI events
+     *
+     * @param header the header bits
+     * @param event  the event byte
+     */
+    private void parseMidiEvent(final int header, final byte event) {
+        final int midiEvent = event & 0xff;
+
+        if (midiState == MIDI_STATE_TIMESTAMP) {
+            if ((midiEvent & 0x80) == 0) {
+                // running status
+                midiState = MIDI_STATE_WAIT;
+            }
+
+            if (midiEvent == 0xf7) {
+                // is this end of SysEx???
+                synchronized (systemExclusiveLock) {
+                    if (systemExclusiveRecoveryStream.size() > 0) {
+                        // previous SysEx has been failed, due to timestamp was 0xF7
+                        // process SysEx again
+
+                        // last written byte is for timestamp
+                        int removed = systemExclusiveRecoveryStream.replaceLastByte(midiEvent);
+                        if (removed >= 0) {
+                            timestamp = ((header & 0x3f) << 7) | (removed & 0x7f);
+
+                            dispatchEvent(0xf0, 0, 0, systemExclusiveRecoveryStream.toByteArray());
+                        }
+
+                        systemExclusiveRecoveryStream.reset();
+                    }
+                }
+
+                // process next byte with state: MIDI_STATE_TIMESTAMP
+                midiState = MIDI_STATE_TIMESTAMP;
+                return;
+            } else {
+                // there is no error. reset the stream for recovery
+                synchronized (systemExclusiveLock) {
+                    if (systemExclusiveRecoveryStream.size() > 0) {
+                        systemExclusiveRecoveryStream.reset();
+                    }
+                }
+            }
+        }
+
+        if (midiState == MIDI_STATE_TIMESTAMP) {
+            timestamp = ((header & 0x3f) << 7) | (midiEvent & 0x7f);
+            midiState = MIDI_STATE_WAIT;
+        } else if (midiState == MIDI_STATE_WAIT) {
+            switch (midiEvent & 0xf0) {
+                case 0xf0: {
+                    switch (midiEvent) {
+                        case 0xf0:
+                            synchronized (systemExclusiveLock) {
+                                systemExclusiveStream.reset();
+                                systemExclusiveStream.write(midiEvent);
+                                systemExclusiveRecoveryStream.reset();
+                            }
+                            midiState = MIDI_STATE_SIGNAL_SYSEX;
+                            break;
+
+                        case 0xf1:
+                        case 0xf3:
+                            // 0xf1 MIDI Time Code Quarter Frame. : 2bytes
+                            // 0xf3 Song Select. : 2bytes
+                            midiEventKind = midiEvent;
+                            midiState = MIDI_STATE_SIGNAL_2BYTES_2;
+                            break;
+
+                        case 0xf2:
+                            // 0xf2 Song Position Pointer. : 3bytes
+                            midiEventKind = midiEvent;
+                            midiState = MIDI_STATE_SIGNAL_3BYTES_2;
+                            break;
+
+                        case 0xf6:
+                            // 0xf6 Tune Request : 1byte
+                            dispatchEvent(0xf6, 0, 0, null);
+                            midiState = MIDI_STATE_TIMESTAMP;
+                            break;
+                        case 0xf8:
+                            // 0xf8 Timing Clock : 1byte
+                            dispatchEvent(0xf8, 0, 0, null);
+                            midiState = MIDI_STATE_TIMESTAMP;
+                            break;
+                        case 0xfa:
+                            // 0xfa Start : 1byte
+                            dispatchEvent(0xfa, 0, 0, null);
+                            midiState = MIDI_STATE_TIMESTAMP;
+                            break;
+                        case 0xfb:
+                            // 0xfb Continue : 1byte
+                            dispatchEvent(0xfb, 0, 0, null);
+                            midiState = MIDI_STATE_TIMESTAMP;
+                            break;
+                        case 0xfc:
+                            // 0xfc Stop : 1byte
+                            dispatchEvent(0xfc, 0, 0, null);
+                            midiState = MIDI_STATE_TIMESTAMP;
+                            break;
+                        case 0xfe:
+                            // 0xfe Active Sensing : 1byte
+                            dispatchEvent(0xfe, 0, 0, null);
+                            midiState = MIDI_STATE_TIMESTAMP;
+                            break;
+                        case 0xff:
+                            // 0xff Reset : 1byte
+                            dispatchEvent(0xff, 0, 0, null);
+                            midiState = MIDI_STATE_TIMESTAMP;
+                            break;
+
+                        default:
+                            break;
+                    }
+                }
+                break;
+                case 0x80:
+                case 0x90:
+                case 0xa0:
+                case 0xb0:
+                case 0xe0:
+                    // 3bytes pattern
+                    midiEventKind = midiEvent;
+                    midiState = MIDI_STATE_SIGNAL_3BYTES_2;
+                    break;
+                case 0xc0: // program change
+                case 0xd0: // channel after-touch
+                    // 2bytes pattern
+                    midiEventKind = midiEvent;
+                    midiState = MIDI_STATE_SIGNAL_2BYTES_2;
+                    break;
+                default:
+                    // 0x00 - 0x70: running status
+                    if ((midiEventKind & 0xf0) != 0xf0) {
+                        // previous event kind is multi-bytes pattern
+                        midiEventNote = midiEvent;
+                        midiState = MIDI_STATE_SIGNAL_3BYTES_3;
+                    }
+                    break;
+            }
+        } else if (midiState == MIDI_STATE_SIGNAL_2BYTES_2) {
+            switch (midiEventKind & 0xf0) {
+                // 2bytes pattern
+                case 0xc0: // program change
+                    midiEventNote = midiEvent;
+                    dispatchEvent(midiEventKind, midiEventNote, 0, null);
+                    midiState = MIDI_STATE_TIMESTAMP;
+                    break;
+                case 0xd0: // channel after-touch
+                    midiEventNote = midiEvent;
+                    dispatchEvent(midiEventKind, midiEventNote, 0, null);
+                    midiState = MIDI_STATE_TIMESTAMP;
+                    break;
+                case 0xf0: {
+                    switch (midiEventKind) {
+                        case 0xf1:
+                            // 0xf1 MIDI Time Code Quarter Frame. : 2bytes
+                            midiEventNote = midiEvent;
+                            dispatchEvent(0xf1, midiEventNote, 0, null);
+                            midiState = MIDI_STATE_TIMESTAMP;
+                            break;
+                        case 0xf3:
+                            // 0xf3 Song Select. : 2bytes
+                            midiEventNote = midiEvent;
+                            dispatchEvent(0xf3, midiEventNote, 0, null);
+                            midiState = MIDI_STATE_TIMESTAMP;
+                            break;
+                        default:
+                            // illegal state
+                            midiState = MIDI_STATE_TIMESTAMP;
+                            break;
+                    }
+                }
+                break;
+                default:
+                    // illegal state
+                    midiState = MIDI_STATE_TIMESTAMP;
+                    break;
+            }
+        } else if (midiState == MIDI_STATE_SIGNAL_3BYTES_2) {
+            switch (midiEventKind & 0xf0) {
+                case 0x80:
+                case 0x90:
+                case 0xa0:
+                case 0xb0:
+                case 0xe0:
+                case 0xf0:
+                    // 3bytes pattern
+                    midiEventNote = midiEvent;
+                    midiState = MIDI_STATE_SIGNAL_3BYTES_3;
+                    break;
+                default:
+                    // illegal state
+                    midiState = MIDI_STATE_TIMESTAMP;
+                    break;
+            }
+        } else if (midiState == MIDI_STATE_SIGNAL_3BYTES_3) {
+            switch (midiEventKind & 0xf0) {
+                // 3bytes pattern
+                case 0x80: // note off
+                    midiEventVelocity = midiEvent;
+                    dispatchEvent(midiEventKind, midiEventNote, midiEventVelocity, null);
+                    midiState = MIDI_STATE_TIMESTAMP;
+                    break;
+                case 0x90: // note on
+                    midiEventVelocity = midiEvent;
+                    dispatchEvent(midiEventKind, midiEventNote, midiEventVelocity, null);
+                    midiState = MIDI_STATE_TIMESTAMP;
+                    break;
+                case 0xa0: // control polyphonic key pressure
+                    midiEventVelocity = midiEvent;
+                    dispatchEvent(midiEventKind, midiEventNote, midiEventVelocity, null);
+                    midiState = MIDI_STATE_TIMESTAMP;
+                    break;
+                case 0xb0: // control change
+                    midiEventVelocity = midiEvent;
+
+                    // process RPN/NRPN messages
+                    switch (midiEventNote) {
+                        case 6: {
+                            // RPN/NRPN value MSB
+                            rpnNrpnValueMsb = midiEventVelocity & 0x7f;
+                            if (rpnStatus == RPN_STATUS_RPN) {
+                                rpnNrpnFunction = ((rpnFunctionMsb & 0x7f) << 7) | (rpnFunctionLsb & 0x7f);
+                                rpnCacheMsb.put(rpnNrpnFunction, rpnNrpnValueMsb);
+                                rpnNrpnValueLsb = rpnCacheLsb.get(rpnNrpnFunction, 0/*if not found*/);
+                                dispatchEvent(EVENT_RPN | midiEventKind, rpnNrpnFunction, (rpnNrpnValueMsb << 7 | rpnNrpnValueLsb), null);
+                            } else if (rpnStatus == RPN_STATUS_NRPN) {
+                                rpnNrpnFunction = ((nrpnFunctionMsb & 0x7f) << 7) | (nrpnFunctionLsb & 0x7f);
+                                nrpnCacheMsb.put(rpnNrpnFunction, rpnNrpnValueMsb);
+                                rpnNrpnValueLsb = nrpnCacheLsb.get(rpnNrpnFunction, 0/*if not found*/);
+                                dispatchEvent(EVENT_NRPN | midiEventKind, rpnNrpnFunction, (rpnNrpnValueMsb << 7 | rpnNrpnValueLsb), null);
+                            }
+                            break;
+                        }
+                        case 38: {
+                            // RPN/NRPN value LSB
+                            rpnNrpnValueLsb = midiEventVelocity & 0x7f;
+                            if (rpnStatus == RPN_STATUS_RPN) {
+                                rpnNrpnFunction = ((rpnFunctionMsb & 0x7f) << 7) | (rpnFunctionLsb & 0x7f);
+                                rpnNrpnValueMsb = rpnCacheMsb.get(rpnNrpnFunction, 0/*if not found*/);
+                                rpnCacheLsb.put(rpnNrpnFunction, rpnNrpnValueLsb);
+                                dispatchEvent(EVENT_RPN | midiEventKind, rpnNrpnFunction, (rpnNrpnValueMsb << 7 | rpnNrpnValueLsb), null);
+                            } else if (rpnStatus == RPN_STATUS_NRPN) {
+                                rpnNrpnFunction = ((nrpnFunctionMsb & 0x7f) << 7) | (nrpnFunctionLsb & 0x7f);
+                                rpnNrpnValueMsb = nrpnCacheMsb.get(rpnNrpnFunction, 0/*if not found*/);
+                                nrpnCacheLsb.put(rpnNrpnFunction, rpnNrpnValueLsb);
+                                dispatchEvent(EVENT_NRPN | midiEventKind, rpnNrpnFunction, (rpnNrpnValueMsb << 7 | rpnNrpnValueLsb), null);
+                            }
+                            break;
+                        }
+                        case 98: {
+                            // NRPN parameter number LSB
+                            nrpnFunctionLsb = midiEventVelocity & 0x7f;
+                            rpnStatus = RPN_STATUS_NRPN;
+                            break;
+                        }
+                        case 99: {
+                            // NRPN parameter number MSB
+                            nrpnFunctionMsb = midiEventVelocity & 0x7f;
+                            rpnStatus = RPN_STATUS_NRPN;
+                            break;
+                        }
+                        case 100: {
+                            // RPN parameter number LSB
+                            rpnFunctionLsb = midiEventVelocity & 0x7f;
+                            if (rpnFunctionMsb == 0x7f && rpnFunctionLsb == 0x7f) {
+                                rpnStatus = RPN_STATUS_NONE;
+                            } else {
+                                rpnStatus = RPN_STATUS_RPN;
+                            }
+                            break;
+                        }
+                        case 101: {
+                            // RPN parameter number MSB
+                            rpnFunctionMsb = midiEventVelocity & 0x7f;
+                            if (rpnFunctionMsb == 0x7f && rpnFunctionLsb == 0x7f) {
+                                rpnStatus = RPN_STATUS_NONE;
+                            } else {
+                                rpnStatus = RPN_STATUS_RPN;
+                            }
+                            break;
+                        }
+                        default:
+                            // do nothing
+                            break;
+                    }
+
+                    dispatchEvent(midiEventKind, midiEventNote, midiEventVelocity, null);
+                    midiState = MIDI_STATE_TIMESTAMP;
+                    break;
+                case 0xe0: // pitch bend
+                    midiEventVelocity = midiEvent;
+                    dispatchEvent(midiEventKind, midiEventNote, midiEventVelocity, null);
+                    midiState = MIDI_STATE_TIMESTAMP;
+                    break;
+                case 0xf0: // Song Position Pointer.
+                    midiEventVelocity = midiEvent;
+                    dispatchEvent(0xf2, midiEventNote, midiEventVelocity, null);
+                    midiState = MIDI_STATE_TIMESTAMP;
+                    break;
+                default:
+                    // illegal state
+                    midiState = MIDI_STATE_TIMESTAMP;
+                    break;
+            }
+        } else if (midiState == MIDI_STATE_SIGNAL_SYSEX) {
+            if (midiEvent == 0xf7) {
+                // the end of message
+                synchronized (systemExclusiveLock) {
+                    // last written byte is for timestamp
+                    int replacedEvent = systemExclusiveStream.replaceLastByte(midiEvent);
+                    if (replacedEvent >= 0) {
+                        timestamp = ((header & 0x3f) << 7) | (replacedEvent & 0x7f);
+                    }
+                    dispatchEvent(0xf0, 0, 0, systemExclusiveStream.toByteArray());
+
+                    // for error recovery
+                    systemExclusiveRecoveryStream.reset();
+                    try {
+                        systemExclusiveStream.writeTo(systemExclusiveRecoveryStream);
+                    } catch (IOException ignored) {
+                    }
+                    systemExclusiveRecoveryStream.replaceLastByte(replacedEvent);
+                    systemExclusiveRecoveryStream.write(midiEvent);
+                }
+                midiState = MIDI_STATE_TIMESTAMP;
+            } else {
+                synchronized (systemExclusiveLock) {
+                    systemExclusiveStream.write(midiEvent);
+                }
+            }
+        }
+    }
+
+    /**
+     * Updates incoming data
+     *
+     * @param data incoming data
+     */
+    public void parse(@NonNull byte[] data) {
+        parse(data, 0, data.length);
+    }
+
+    /**
+     * Updates incoming data, from the part of array<br />
+     * The array is not retained, so the caller can reuse it after this method returns.
+     *
+     * @param data   incoming data
+     * @param offset the start offset of BLE MIDI packet
+     * @param length the length of BLE MIDI packet
+     * @throws IndexOutOfBoundsException the offset or length is out of the array
+     */
+    void parse(@NonNull byte[] data, int offset, int length) throws IndexOutOfBoundsException {
+        if (offset < 0 || length < 0 || offset > data.length - length) {
+            throw new IndexOutOfBoundsException("offset: " + offset + ", length: " + length + ", array length: " + data.length);
+        }
+
+        if (length > 1) {
+            int header = data[offset] & 0xff;
+            final int end = offset + length;
+            for (int i = offset + 1; i < end; i++) {
+                parseMidiEvent(header, data[i]);
+            }
+        }
+    }
+
+    /**
+     * Fires the event to {@link OnMidiInputEventListener}
+     *
+     * @param kind  the event kind: MIDI status byte, with {@link #EVENT_RPN} or {@link #EVENT_NRPN} flag
+     * @param data1 the first argument
+     * @param data2 the second argument
+     * @param array the data of SysEx
+     */
+    private void dispatchEvent(int kind, int data1, int data2, @Nullable byte[] array) {
+        final OnMidiInputEventListener listener = midiInputEventListener;
+
+        if ((kind & EVENT_RPN) != 0) {
+            listener.onRPNMessage(sender, kind & 0xf, data1 & 0x3fff, data2 & 0x3fff);
+            return;
+        }
+        if ((kind & EVENT_NRPN) != 0) {
+            listener.onNRPNMessage(sender, kind & 0xf, data1 & 0x3fff, data2 & 0x3fff);
+            return;
+        }
+
+        switch (kind & 0xf0) {
+            case 0x80:
+                listener.onMidiNoteOff(sender, kind & 0xf, data1, data2);
+                break;
+            case 0x90:
+                if (data2 == 0) {
+                    listener.onMidiNoteOff(sender, kind & 0xf, data1, data2);
+                } else {
+                    listener.onMidiNoteOn(sender, kind & 0xf, data1, data2);
+                }
+                break;
+            case 0xa0:
+                listener.onMidiPolyphonicAftertouch(sender, kind & 0xf, data1, data2);
+                break;
+            case 0xb0:
+                listener.onMidiControlChange(sender, kind & 0xf, data1, data2);
+                break;
+            case 0xc0:
+                listener.onMidiProgramChange(sender, kind & 0xf, data1);
+                break;
+            case 0xd0:
+                listener.onMidiChannelAftertouch(sender, kind & 0xf, data1);
+                break;
+            case 0xe0:
+                listener.onMidiPitchWheel(sender, kind & 0xf, (data1 & 0x7f) | ((data2 & 0x7f) << 7));
+                break;
+            case 0xf0:
+                switch (kind) {
+                    case 0xf0:
+                        if (array != null) {
+                            listener.onMidiSystemExclusive(sender, array);
+                        }
+                        break;
+                    case 0xf1:
+                        listener.onMidiTimeCodeQuarterFrame(sender, data1);
+                        break;
+                    case 0xf2:
+                        listener.onMidiSongPositionPointer(sender, (data1 & 0x7f) | ((data2 & 0x7f) << 7));
+                        break;
+                    case 0xf3:
+                        listener.onMidiSongSelect(sender, data1);
+                        break;
+                    case 0xf6:
+                        listener.onMidiTuneRequest(sender);
+                        break;
+                    case 0xf8:
+                        listener.onMidiTimingClock(sender);
+                        break;
+                    case 0xfa:
+                        listener.onMidiStart(sender);
+                        break;
+                    case 0xfb:
+                        listener.onMidiContinue(sender);
+                        break;
+                    case 0xfc:
+                        listener.onMidiStop(sender);
+                        break;
+                    case 0xfe:
+                        listener.onMidiActiveSensing(sender);
+                        break;
+                    case 0xff:
+                        listener.onMidiReset(sender);
+                        break;
+                    default:
+                        break;
+                }
+                break;
+            default:
+                break;
+        }
+    }
+}
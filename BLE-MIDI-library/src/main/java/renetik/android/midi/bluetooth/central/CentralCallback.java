@@ -7,11 +7,13 @@ import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothProfile;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.os.Handler;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
@@ -25,17 +27,54 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import renetik.android.midi.bluetooth.device.MidiInputDevice;
 import renetik.android.midi.bluetooth.device.MidiOutputDevice;
+import renetik.android.midi.bluetooth.util.BleUuidUtils;
 
 @SuppressLint("MissingPermission")
 public class CentralCallback extends BluetoothGattCallback {
-    private volatile static Object gattDiscoverServicesLock = null;
     private final Map<String, Set<CentralMidiInputDevice>> midiInputDevicesMap = new HashMap<>();
     private final Map<String, Set<CentralMidiOutputDevice>> midiOutputDevicesMap = new HashMap<>();
     private final Map<String, List<BluetoothGatt>> deviceAddressGattMap = new HashMap<>();
+    // the GATT operations of each connection, while connected
+    private final Map<String, GattOperationQueue> gattOperationQueueMap = new HashMap<>();
+    // the connection setup timelines not finished yet
+    private final ConcurrentHashMap<String, ConnectionTimeline> connectionTimelineMap = new ConcurrentHashMap<>();
+    private final ConnectionMetrics connectionMetrics = new ConnectionMetrics();
+    private volatile ConnectionTimelineListener connectionTimelineListener;
+    private final GattCache gattCache;
+    // records the operations the device doesn't answer, to skip them at the next connection
+    private final GattOperationQueue.OnOperationFinishedListener gattOperationFinishedListener = new GattOperationQueue.OnOperationFinishedListener() {
+        @Override
+        public void onOperationFinished(@NonNull BluetoothGatt gatt, int type, int result) {
+            final int quirk;
+            switch (type) {
+                case GattOperationQueue.OPERATION_REQUEST_MTU:
+                    quirk = GattCache.QUIRK_MTU_REQUEST_FAILED;
+                    break;
+                case GattOperationQueue.OPERATION_READ_CHARACTERISTIC:
+                    quirk = GattCache.QUIRK_READ_CHARACTERISTIC_FAILED;
+                    break;
+                default:
+                    return;
+            }
+            switch (result) {
+                case GattOperationQueue.RESULT_SUCCEEDED:
+                    gattCache.onQuirkOperationSucceeded(gatt.getDevice().getAddress(), quirk);
+                    break;
+                case GattOperationQueue.RESULT_TIMED_OUT:
+                    gattCache.onQuirkOperationTimedOut(gatt.getDevice().getAddress(), quirk);
+                    break;
+                default:
+                    // the failed status or start may be transient, the device has answered
+                    break;
+            }
+        }
+    };
     private final Context context;
+    private final Handler handler;
     private CentralDeviceAttachedListener midiDeviceAttachedListener;
     private CentralDeviceDetachedListener midiDeviceDetachedListener;
     private boolean needsBonding = false;
@@ -44,6 +83,8 @@ public class CentralCallback extends BluetoothGattCallback {
     public CentralCallback(@NonNull final Context context) {
         super();
         this.context = context;
+        this.handler = new Handler(context.getMainLooper());
+        this.gattCache = new GattCache(context);
     }
 
     boolean isConnected(@NonNull BluetoothDevice device) {
@@ -56,29 +97,59 @@ public class CentralCallback extends BluetoothGattCallback {
     public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) throws SecurityException {
         super.onConnectionStateChange(gatt, status, newState);
         if (newState == BluetoothProfile.STATE_CONNECTED) {
-            if (deviceAddressGattMap.containsKey(gatt.getDevice().getAddress())) {
-                return;
-            }
-            // process a device for the same time
-            while (gattDiscoverServicesLock != null) {
-                try {
-                    Thread.sleep(10);
-                } catch (InterruptedException ignored) {
+            final String gattDeviceAddress = gatt.getDevice().getAddress();
+            recordConnectionStage(gattDeviceAddress, ConnectionTimeline.STAGE_CONNECTED);
+            synchronized (deviceAddressGattMap) {
+                if (deviceAddressGattMap.containsKey(gattDeviceAddress)) {
+                    // same device has already registered
+                    return;
                 }
             }
-            if (deviceAddressGattMap.containsKey(gatt.getDevice().getAddress())) {
-                // same device has already registered
-                return;
-            }
-            gattDiscoverServicesLock = gatt;
-            if (!gatt.discoverServices()) {
-                // already disconnected
-                disconnectByDeviceAddress(gatt.getDevice().getAddress());
-                gattDiscoverServicesLock = null;
+
+            final GattOperationQueue gattOperationQueue = new GattOperationQueue(gatt, handler, gattOperationFinishedListener);
+            synchronized (gattOperationQueueMap) {
+                final GattOperationQueue previousQueue = gattOperationQueueMap.get(gattDeviceAddress);
+                if (previousQueue != null) {
+                    if (previousQueue.getGatt() == gatt) {
+                        // the services are being discovered
+                        return;
+                    }
+                    previousQueue.close();
+                }
+                gattOperationQueueMap.put(gattDeviceAddress, gattOperationQueue);
             }
+            // the other devices are processed at the same time, on their own queues
+            gattOperationQueue.enqueue(GattOperationQueue.discoverServices());
         } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
             disconnectByDeviceAddress(gatt.getDevice().getAddress());
-            gattDiscoverServicesLock = null;
+        }
+    }
+
+    /**
+     * Obtains the GATT operation queue of the connection
+     *
+     * @param gatt the connection
+     * @return the queue, null if the connection has been closed
+     */
+    @Nullable
+    private GattOperationQueue getGattOperationQueue(@NonNull BluetoothGatt gatt) {
+        synchronized (gattOperationQueueMap) {
+            final GattOperationQueue gattOperationQueue = gattOperationQueueMap.get(gatt.getDevice().getAddress());
+            return gattOperationQueue != null && gattOperationQueue.getGatt() == gatt ? gattOperationQueue : null;
+        }
+    }
+
+    /**
+     * Notifies the completion of the GATT operation to the queue
+     *
+     * @param gatt      the connection
+     * @param type      the operation type
+     * @param succeeded true if the callback status is success
+     */
+    private void onGattOperationCompleted(@NonNull BluetoothGatt gatt, int type, boolean succeeded) {
+        final GattOperationQueue gattOperationQueue = getGattOperationQueue(gatt);
+        if (gattOperationQueue != null) {
+            gattOperationQueue.onOperationCompleted(type, succeeded);
         }
     }
 
@@ -87,16 +158,26 @@ public class CentralCallback extends BluetoothGattCallback {
     public void onServicesDiscovered(final BluetoothGatt gatt, int status) {
         super.onServicesDiscovered(gatt, status);
 
+        final GattOperationQueue gattOperationQueue = getGattOperationQueue(gatt);
+        if (gattOperationQueue == null) {
+            // already disconnected
+            return;
+        }
+        gattOperationQueue.onOperationCompleted(GattOperationQueue.OPERATION_DISCOVER_SERVICES, status == BluetoothGatt.GATT_SUCCESS);
         if (status != BluetoothGatt.GATT_SUCCESS) {
-            gattDiscoverServicesLock = null;
             return;
         }
 
         final String gattDeviceAddress = gatt.getDevice().getAddress();
+        recordConnectionStage(gattDeviceAddress, ConnectionTimeline.STAGE_SERVICES_DISCOVERED);
+
+        // the attributes resolved at the previous connection
+        final GattCache.Entry cachedEntry = gattCache.get(gattDeviceAddress);
 
         // request maximum MTU size
-        boolean result = gatt.requestMtu(517); // GATT_MAX_MTU_SIZE defined at `stack/include/gatt_api.h`
-        Log.d(TAG, "Central requestMtu address: " + gatt.getDevice().getAddress() + ", succeed: " + result);
+        if (cachedEntry.shouldRequestMtu()) {
+            gattOperationQueue.enqueue(GattOperationQueue.requestMtu(GattOperationQueue.MAX_MTU));
+        }
 
         // find MIDI Input device
         synchronized (midiInputDevicesMap) {
@@ -114,7 +195,7 @@ public class CentralCallback extends BluetoothGattCallback {
 
         CentralMidiInputDevice midiInputDevice = null;
         try {
-            midiInputDevice = new CentralMidiInputDevice(context, gatt);
+            midiInputDevice = new CentralMidiInputDevice(context, gatt, cachedEntry.serviceUuid, cachedEntry.inputCharacteristicUuid);
         } catch (IllegalArgumentException iae) {
             Log.d(TAG, iae.getMessage());
         }
@@ -150,7 +231,7 @@ public class CentralCallback extends BluetoothGattCallback {
 
         CentralMidiOutputDevice midiOutputDevice = null;
         try {
-            midiOutputDevice = new CentralMidiOutputDevice(context, gatt);
+            midiOutputDevice = new CentralMidiOutputDevice(context, gatt, cachedEntry.serviceUuid, cachedEntry.outputCharacteristicUuid);
         } catch (IllegalArgumentException iae) {
             Log.d(TAG, iae.getMessage());
         }
@@ -183,6 +264,14 @@ public class CentralCallback extends BluetoothGattCallback {
                 bluetoothGatts.add(gatt);
             }
 
+            final BluetoothGattCharacteristic inputCharacteristic = midiInputDevice != null ? midiInputDevice.getInputCharacteristic() : null;
+            final BluetoothGattCharacteristic outputCharacteristic = midiOutputDevice != null ? midiOutputDevice.getMidiOutputCharacteristic() : null;
+            gattCache.putAttributes(gattDeviceAddress,
+                    (inputCharacteristic != null ? inputCharacteristic : outputCharacteristic).getService().getUuid(),
+                    inputCharacteristic != null ? inputCharacteristic.getUuid() : null,
+                    outputCharacteristic != null ? outputCharacteristic.getUuid() : null);
+            final boolean readInitialValue = !cachedEntry.hasQuirk(GattCache.QUIRK_READ_CHARACTERISTIC_FAILED);
+
             if (needsBonding) {
                 // Create bond and configure Gatt, if this is BLE MIDI device
                 BluetoothDevice bluetoothDevice = gatt.getDevice();
@@ -198,27 +287,27 @@ public class CentralCallback extends BluetoothGattCallback {
                     if (bondingBroadcastReceiver != null) {
                         context.unregisterReceiver(bondingBroadcastReceiver);
                     }
-                    bondingBroadcastReceiver = new BondingBroadcastReceiver(midiInputDevice, midiOutputDevice);
+                    bondingBroadcastReceiver = new BondingBroadcastReceiver(gattOperationQueue, readInitialValue, midiInputDevice, midiOutputDevice);
                     IntentFilter filter = new IntentFilter(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
                     context.registerReceiver(bondingBroadcastReceiver, filter);
                 }
             } else {
-                if (midiInputDevice != null) midiInputDevice.configureAsCentralDevice();
+                if (midiInputDevice != null) midiInputDevice.configureAsCentralDevice(gattOperationQueue, readInitialValue);
                 if (midiOutputDevice != null) midiOutputDevice.configureAsCentralDevice();
             }
 
             // Set the connection priority to high(for low latency)
-            gatt.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+            gattOperationQueue.enqueue(GattOperationQueue.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH));
         }
-
-        // all finished
-        gattDiscoverServicesLock = null;
     }
 
     @Override
     public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
         super.onCharacteristicChanged(gatt, characteristic);
 
+        if (!connectionTimelineMap.isEmpty()) {
+            recordConnectionStage(gatt.getDevice().getAddress(), ConnectionTimeline.STAGE_FIRST_MIDI_BYTE);
+        }
         Set<CentralMidiInputDevice> midiInputDevices = midiInputDevicesMap.get(gatt.getDevice().getAddress());
         if (midiInputDevices != null) {
             for (CentralMidiInputDevice midiInputDevice : midiInputDevices) {
@@ -227,10 +316,46 @@ public class CentralCallback extends BluetoothGattCallback {
         }
     }
 
+    @Override
+    public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+        super.onCharacteristicWrite(gatt, characteristic, status);
+
+        synchronized (midiOutputDevicesMap) {
+            Set<CentralMidiOutputDevice> midiOutputDevices = midiOutputDevicesMap.get(gatt.getDevice().getAddress());
+            if (midiOutputDevices != null) {
+                for (CentralMidiOutputDevice midiOutputDevice : midiOutputDevices) {
+                    midiOutputDevice.onCharacteristicWrite(characteristic, status);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+        super.onDescriptorWrite(gatt, descriptor, status);
+
+        if (status == BluetoothGatt.GATT_SUCCESS && BleUuidUtils.matches(BleUuidUtils.fromShortValue(0x2902), descriptor.getUuid())) {
+            recordConnectionStage(gatt.getDevice().getAddress(), ConnectionTimeline.STAGE_CCCD_WRITTEN);
+        }
+
+        onGattOperationCompleted(gatt, GattOperationQueue.OPERATION_WRITE_DESCRIPTOR, status == BluetoothGatt.GATT_SUCCESS);
+    }
+
+    @Override
+    public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+        super.onCharacteristicRead(gatt, characteristic, status);
+
+        onGattOperationCompleted(gatt, GattOperationQueue.OPERATION_READ_CHARACTERISTIC, status == BluetoothGatt.GATT_SUCCESS);
+    }
+
     @Override
     public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
         super.onMtuChanged(gatt, mtu, status);
 
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            recordConnectionStage(gatt.getDevice().getAddress(), ConnectionTimeline.STAGE_MTU_NEGOTIATED);
+        }
+
         synchronized (midiOutputDevicesMap) {
             Set<CentralMidiOutputDevice> midiOutputDevices = midiOutputDevicesMap.get(gatt.getDevice().getAddress());
             if (midiOutputDevices != null) {
@@ -240,6 +365,7 @@ public class CentralCallback extends BluetoothGattCallback {
             }
         }
         Log.d(TAG, "Central onMtuChanged address: " + gatt.getDevice().getAddress() + ", mtu: " + mtu + ", status: " + status);
+        onGattOperationCompleted(gatt, GattOperationQueue.OPERATION_REQUEST_MTU, status == BluetoothGatt.GATT_SUCCESS);
     }
 
     void disconnectDevice(@NonNull MidiInputDevice midiInputDevice) {
@@ -259,6 +385,15 @@ public class CentralCallback extends BluetoothGattCallback {
     }
 
     private void disconnectByDeviceAddress(@NonNull String deviceAddress) throws SecurityException {
+        finishConnectionTimeline(deviceAddress);
+
+        synchronized (gattOperationQueueMap) {
+            final GattOperationQueue gattOperationQueue = gattOperationQueueMap.remove(deviceAddress);
+            if (gattOperationQueue != null) {
+                gattOperationQueue.close();
+            }
+        }
+
         synchronized (deviceAddressGattMap) {
             List<BluetoothGatt> bluetoothGatts = deviceAddressGattMap.get(deviceAddress);
 
@@ -304,6 +439,15 @@ public class CentralCallback extends BluetoothGattCallback {
     }
 
     public void terminate() throws SecurityException {
+        synchronized (gattOperationQueueMap) {
+            for (GattOperationQueue gattOperationQueue : gattOperationQueueMap.values()) {
+                gattOperationQueue.close();
+            }
+            gattOperationQueueMap.clear();
+        }
+
+        connectionTimelineMap.clear();
+
         synchronized (deviceAddressGattMap) {
             for (List<BluetoothGatt> bluetoothGatts : deviceAddressGattMap.values()) {
                 if (bluetoothGatts != null) {
@@ -344,6 +488,74 @@ public class CentralCallback extends BluetoothGattCallback {
         }
     }
 
+    /**
+     * Records the connection setup stage of the device, the first time in the connection
+     *
+     * @param deviceAddress the device address
+     * @param stage         ConnectionTimeline.STAGE_*
+     */
+    void recordConnectionStage(@NonNull String deviceAddress, int stage) {
+        ConnectionTimeline timeline = connectionTimelineMap.get(deviceAddress);
+        if (timeline == null) {
+            if (stage == ConnectionTimeline.STAGE_FIRST_MIDI_BYTE) {
+                // the timeline has already finished
+                return;
+            }
+            final ConnectionTimeline newTimeline = new ConnectionTimeline(deviceAddress);
+            timeline = connectionTimelineMap.putIfAbsent(deviceAddress, newTimeline);
+            if (timeline == null) {
+                timeline = newTimeline;
+            }
+        }
+        if (!timeline.record(stage, System.nanoTime())) {
+            return;
+        }
+
+        final ConnectionTimelineListener listener = connectionTimelineListener;
+        if (listener != null) {
+            listener.onConnectionStageReached(timeline, stage);
+        }
+        if (stage == ConnectionTimeline.STAGE_FIRST_MIDI_BYTE) {
+            // the device is usable
+            finishConnectionTimeline(deviceAddress);
+        }
+    }
+
+    /**
+     * Finishes the connection setup timeline of the device, and adds it to the metrics
+     *
+     * @param deviceAddress the device address
+     */
+    private void finishConnectionTimeline(@NonNull String deviceAddress) {
+        final ConnectionTimeline timeline = connectionTimelineMap.remove(deviceAddress);
+        if (timeline == null) {
+            return;
+        }
+        connectionMetrics.add(timeline);
+        Log.d(TAG, "Central connection timeline: " + timeline);
+
+        final ConnectionTimelineListener listener = connectionTimelineListener;
+        if (listener != null) {
+            listener.onConnectionTimelineFinished(timeline);
+        }
+    }
+
+    @NonNull
+    public ConnectionMetrics getConnectionMetrics() {
+        return connectionMetrics;
+    }
+
+    public void setConnectionTimelineListener(@Nullable ConnectionTimelineListener connectionTimelineListener) {
+        this.connectionTimelineListener = connectionTimelineListener;
+    }
+
+    /**
+     * Forgets the GATT attributes and the quirks of all of the devices, cached for the reconnection
+     */
+    public void clearGattCache() {
+        gattCache.clear();
+    }
+
     public void setNeedsBonding(boolean needsBonding) {
         this.needsBonding = needsBonding;
     }
@@ -381,10 +593,14 @@ public class CentralCallback extends BluetoothGattCallback {
     }
 
     private class BondingBroadcastReceiver extends BroadcastReceiver {
+        final GattOperationQueue gattOperationQueue;
+        final boolean readInitialValue;
         final MidiInputDevice midiInputDevice;
         final MidiOutputDevice midiOutputDevice;
 
-        BondingBroadcastReceiver(@Nullable MidiInputDevice midiInputDevice, @Nullable MidiOutputDevice midiOutputDevice) {
+        BondingBroadcastReceiver(@NonNull GattOperationQueue gattOperationQueue, boolean readInitialValue, @Nullable MidiInputDevice midiInputDevice, @Nullable MidiOutputDevice midiOutputDevice) {
+            this.gattOperationQueue = gattOperationQueue;
+            this.readInitialValue = readInitialValue;
             this.midiInputDevice = midiInputDevice;
             this.midiOutputDevice = midiOutputDevice;
         }
@@ -402,7 +618,7 @@ public class CentralCallback extends BluetoothGattCallback {
                     bondingBroadcastReceiver = null;
 
                     if (midiInputDevice != null) {
-                        ((CentralMidiInputDevice) midiInputDevice).configureAsCentralDevice();
+                        ((CentralMidiInputDevice) midiInputDevice).configureAsCentralDevice(gattOperationQueue, readInitialValue);
                     }
                     if (midiOutputDevice != null) {
                         ((CentralMidiOutputDevice) midiOutputDevice).configureAsCentralDevice();
@@ -12,25 +12,37 @@ import renetik.android.midi.bluetooth.util.BleMidiDeviceUtils.midiService
 import renetik.android.midi.bluetooth.util.BleMidiParser
 import renetik.android.midi.bluetooth.util.BleUuidUtils
 import renetik.android.core.kotlin.unexpected
+import java.util.UUID
 
+/**
+ * @param serviceUuid the MIDI service UUID resolved at the previous connection, null if unknown
+ * @param characteristicUuid the MIDI input characteristic UUID resolved at the previous connection, null if unknown
+ */
 @SuppressLint("MissingPermission")
-class CentralMidiInputDevice(context: Context,
-    private val bluetoothGatt: BluetoothGatt
+class CentralMidiInputDevice @JvmOverloads constructor(context: Context,
+    private val bluetoothGatt: BluetoothGatt,
+    serviceUuid: UUID? = null,
+    characteristicUuid: UUID? = null
 ) : MidiInputDevice() {
 
-    private val inputCharacteristic: BluetoothGattCharacteristic?
+    val inputCharacteristic: BluetoothGattCharacteristic
 
-    fun configureAsCentralDevice() {
+    /**
+     * @param readInitialValue false to skip reading the characteristic, for the device which doesn't answer
+     */
+    fun configureAsCentralDevice(gattOperationQueue: GattOperationQueue,
+        readInitialValue: Boolean) {
         bluetoothGatt.setCharacteristicNotification(inputCharacteristic, true)
-        val descriptors = inputCharacteristic!!.descriptors
+        val descriptors = inputCharacteristic.descriptors
         for (descriptor in descriptors) {
             if (BleUuidUtils.matches(BleUuidUtils.fromShortValue(0x2902),
                     descriptor.uuid)) {
-                descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE)
-                bluetoothGatt.writeDescriptor(descriptor)
+                gattOperationQueue.enqueue(GattOperationQueue.writeDescriptor(descriptor,
+                    BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE))
             }
         }
-        bluetoothGatt.readCharacteristic(inputCharacteristic)
+        if (readInitialValue)
+            gattOperationQueue.enqueue(GattOperationQueue.readCharacteristic(inputCharacteristic))
     }
 
     override fun deviceName(): String = bluetoothGatt.device.name
@@ -39,12 +51,12 @@ class CentralMidiInputDevice(context: Context,
     private var midiInputEventListener: OnMidiInputEventListener? = null
 
     init {
-        val midiService = midiService(context, bluetoothGatt) ?: unexpected(
+        val midiService = midiService(context, bluetoothGatt, serviceUuid) ?: unexpected(
             "MIDI GattService not found from '${bluetoothGatt.device.name}'. Service UUIDs:"
                     + bluetoothGatt.services.map { it.uuid }.toTypedArray()
                 .contentToString()
         )
-        inputCharacteristic = inputCharacteristic(context, midiService) ?: unexpected(
+        inputCharacteristic = inputCharacteristic(context, midiService, characteristicUuid) ?: unexpected(
             "MIDI Input GattCharacteristic not found. Service UUID:" + midiService.uuid
         )
     }
@@ -60,7 +72,7 @@ class CentralMidiInputDevice(context: Context,
     }
 
     fun stop() {
-        midiParser!!.stop()
+        midiParser?.stop()
         midiParser = null
     }
 
@@ -1,12 +1,16 @@
 package renetik.android.midi.bluetooth.central;
 
 import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothStatusCodes;
 import android.content.Context;
+import android.os.Build;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -23,18 +27,38 @@ public final class CentralMidiOutputDevice extends MidiOutputDevice {
     private int bufferSize = 20;
 
     public CentralMidiOutputDevice(@NonNull final Context context, @NonNull final BluetoothGatt bluetoothGatt) throws IllegalArgumentException, SecurityException {
+        this(context, bluetoothGatt, null, null);
+    }
+
+    /**
+     * Constructor with the UUIDs resolved at the previous connection
+     *
+     * @param context            the context
+     * @param bluetoothGatt      the gatt of device
+     * @param serviceUuid        the MIDI service UUID, null if unknown
+     * @param characteristicUuid the MIDI output characteristic UUID, null if unknown
+     */
+    CentralMidiOutputDevice(@NonNull final Context context, @NonNull final BluetoothGatt bluetoothGatt, @Nullable UUID serviceUuid, @Nullable UUID characteristicUuid) throws IllegalArgumentException, SecurityException {
         super();
         this.bluetoothGatt = bluetoothGatt;
-        BluetoothGattService midiService = BleMidiDeviceUtils.midiService(context, bluetoothGatt);
+        BluetoothGattService midiService = BleMidiDeviceUtils.midiService(context, bluetoothGatt, serviceUuid);
         if (midiService == null) {
             List<UUID> uuidList = new ArrayList<>();
             for (BluetoothGattService service : bluetoothGatt.getServices())
                 uuidList.add(service.getUuid());
             throw new IllegalArgumentException("MIDI GattService not found from '" + bluetoothGatt.getDevice().getName() + "'. Service UUIDs:" + Arrays.toString(uuidList.toArray()));
         }
-        midiOutputCharacteristic = BleMidiDeviceUtils.getMidiOutputCharacteristic(context, midiService);
+        midiOutputCharacteristic = BleMidiDeviceUtils.getMidiOutputCharacteristic(context, midiService, characteristicUuid);
         if (midiOutputCharacteristic == null)
             throw new IllegalArgumentException("MIDI Output GattCharacteristic not found. Service UUID:" + midiService.getUuid());
+
+        // the stack accepts one write at a time, the next write waits for onCharacteristicWrite
+        setMaxOutstandingTransfers(1);
+    }
+
+    @NonNull
+    BluetoothGattCharacteristic getMidiOutputCharacteristic() {
+        return midiOutputCharacteristic;
     }
 
     public void configureAsCentralDevice() {
@@ -43,12 +67,52 @@ public final class CentralMidiOutputDevice extends MidiOutputDevice {
 
     @Override
     public void transferData(@NonNull byte[] writeBuffer) throws SecurityException {
-        midiOutputCharacteristic.setValue(writeBuffer);
+        transferDataWithResult(writeBuffer);
+    }
+
+    @Override
+    protected int transferDataWithResult(@NonNull byte[] writeBuffer) throws SecurityException {
         try {
-            bluetoothGatt.writeCharacteristic(midiOutputCharacteristic);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+                return writeCharacteristic(writeBuffer);
+            }
+            midiOutputCharacteristic.setValue(writeBuffer);
+            // false if the previous write is in progress
+            return bluetoothGatt.writeCharacteristic(midiOutputCharacteristic) ? TRANSFER_SUCCEEDED : TRANSFER_BUSY;
         } catch (Throwable ignored) {
             // android.os.DeadObjectException will be thrown
-            // ignore it
+            return TRANSFER_FAILED;
+        }
+    }
+
+    /**
+     * Writes the characteristic, with the status to distinguish the busy state from the errors
+     *
+     * @param writeBuffer byte array to write
+     * @return the transfer result
+     */
+    @TargetApi(Build.VERSION_CODES.TIRAMISU)
+    private int writeCharacteristic(@NonNull byte[] writeBuffer) throws SecurityException {
+        final int status = bluetoothGatt.writeCharacteristic(midiOutputCharacteristic, writeBuffer, midiOutputCharacteristic.getWriteType());
+        switch (status) {
+            case BluetoothStatusCodes.SUCCESS:
+                return TRANSFER_SUCCEEDED;
+            case BluetoothStatusCodes.ERROR_GATT_WRITE_REQUEST_BUSY:
+                return TRANSFER_BUSY;
+            default:
+                return TRANSFER_FAILED;
+        }
+    }
+
+    /**
+     * Called from {@link CentralCallback#onCharacteristicWrite(BluetoothGatt, BluetoothGattCharacteristic, int)}
+     *
+     * @param characteristic the written characteristic
+     * @param status         the result
+     */
+    void onCharacteristicWrite(@NonNull BluetoothGattCharacteristic characteristic, int status) {
+        if (characteristic.getUuid().equals(midiOutputCharacteristic.getUuid())) {
+            onTransferCompleted(status == BluetoothGatt.GATT_SUCCESS);
         }
     }
 
@@ -1,7 +1,5 @@
 package renetik.android.midi.bluetooth.central;
 
-import static android.os.ParcelUuid.fromString;
-
 import android.annotation.SuppressLint;
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
@@ -10,26 +8,55 @@ import android.bluetooth.BluetoothManager;
 import android.bluetooth.le.BluetoothLeScanner;
 import android.bluetooth.le.ScanCallback;
 import android.bluetooth.le.ScanFilter;
-import android.bluetooth.le.ScanFilter.Builder;
 import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
 import android.content.Context;
 import android.content.pm.PackageManager;
+import android.os.Build;
 import android.os.Handler;
+import android.os.SystemClock;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Set;
 
 import renetik.android.midi.bluetooth.device.MidiInputDevice;
 import renetik.android.midi.bluetooth.device.MidiOutputDevice;
 import renetik.android.midi.bluetooth.listener.OnMidiScanStatusListener;
+import renetik.android.midi.bluetooth.util.BleMidiDeviceUtils;
 
 @SuppressLint("MissingPermission")
 public class CentralProvider {
+    /**
+     * Scans with the low latency, and reports each device immediately<br />
+     * The default profile.
+     */
+    public static final int SCAN_PROFILE_INSTANT = 0;
+    /**
+     * Scans with the low power, and reports the devices in batches, if the controller supports the batching
+     */
+    public static final int SCAN_PROFILE_BATCHED = 1;
+    /**
+     * Receives only the results of the scans by the other applications, without the power of its own
+     */
+    public static final int SCAN_PROFILE_OPPORTUNISTIC = 2;
+
+    // the report delay of SCAN_PROFILE_BATCHED
+    private static final long BATCHED_REPORT_DELAY_MILLIS = 5000;
+    private static final long DEFAULT_SCAN_NOTIFICATION_INTERVAL_MILLIS = 250;
+    // the stronger signal first
+    private static final Comparator<ScanResult> RSSI_COMPARATOR = new Comparator<ScanResult>() {
+        @Override
+        public int compare(ScanResult result, ScanResult other) {
+            return other.getRssi() < result.getRssi() ? -1 : (other.getRssi() == result.getRssi() ? 0 : 1);
+        }
+    };
+
     private final BluetoothAdapter bluetoothAdapter;
     private final Context context;
     private final Handler handler;
@@ -41,24 +68,27 @@ public class CentralProvider {
             if (bluetoothDevice.getType() != BluetoothDevice.DEVICE_TYPE_LE && bluetoothDevice.getType() != BluetoothDevice.DEVICE_TYPE_DUAL) {
                 return;
             }
+            if (!midiCallback.isConnected(bluetoothDevice)) {
+                midiCallback.recordConnectionStage(bluetoothDevice.getAddress(), ConnectionTimeline.STAGE_SCAN_HIT);
+            }
 
             if (context instanceof Activity) {
                 ((Activity) context).runOnUiThread(new Runnable() {
                     @SuppressLint("MissingPermission")
                     @Override
                     public void run() {
-                        bluetoothDevice.connectGatt(context, true, midiCallback);
+                        connect(bluetoothDevice);
                     }
                 });
             } else {
                 if (Thread.currentThread() == context.getMainLooper().getThread()) {
-                    bluetoothDevice.connectGatt(context, true, midiCallback);
+                    connect(bluetoothDevice);
                 } else {
                     handler.post(new Runnable() {
                         @SuppressLint("MissingPermission")
                         @Override
                         public void run() {
-                            bluetoothDevice.connectGatt(context, true, midiCallback);
+                            connect(bluetoothDevice);
                         }
                     });
                 }
@@ -70,7 +100,10 @@ public class CentralProvider {
         @Override
         public void onBatchScanResults(List<ScanResult> results) {
             super.onBatchScanResults(results);
-            for (ScanResult result : results) onScan(result);
+            // connect the stronger signal first
+            final List<ScanResult> sortedResults = new ArrayList<>(results);
+            Collections.sort(sortedResults, RSSI_COMPARATOR);
+            for (ScanResult result : sortedResults) onScan(result);
         }
 
         @Override
@@ -86,15 +119,41 @@ public class CentralProvider {
 //                    if (device.getType() != BluetoothDevice.DEVICE_TYPE_LE &&
 //                            device.getType() != BluetoothDevice.DEVICE_TYPE_DUAL)
 //                        return;
-        if (!midiCallback.isConnected(device)) handler.post(new Runnable() {
-            @Override
-            public void run() throws SecurityException {
-                device.connectGatt(CentralProvider.this.context, true, midiCallback);
-            }
-        });
+        // connect once in the scan, the repeated results only update the candidate
+        if (scanCandidateList.update(device, result.getRssi(), System.nanoTime()) && !midiCallback.isConnected(device)) {
+            midiCallback.recordConnectionStage(device.getAddress(), ConnectionTimeline.STAGE_SCAN_HIT);
+            handler.post(new Runnable() {
+                @Override
+                public void run() throws SecurityException {
+                    connect(device);
+                }
+            });
+        }
 //                }
+        if (scanCandidateList.markChanged()) {
+            final long delay = lastScanNotificationTime + scanNotificationIntervalMillis - SystemClock.uptimeMillis();
+            handler.postDelayed(scanNotificationRunnable, delay > 0 ? delay : 0);
+        }
     }
 
+    private final ScanCandidateList scanCandidateList = new ScanCandidateList();
+    private volatile CentralScanCandidatesListener scanCandidatesListener;
+    private volatile long scanNotificationIntervalMillis = DEFAULT_SCAN_NOTIFICATION_INTERVAL_MILLIS;
+    // SystemClock.uptimeMillis() of the last notification
+    private volatile long lastScanNotificationTime = 0;
+    private final Runnable scanNotificationRunnable = new Runnable() {
+        @Override
+        public void run() {
+            lastScanNotificationTime = SystemClock.uptimeMillis();
+            final List<ScanCandidate> candidates = scanCandidateList.takeNotification();
+            final CentralScanCandidatesListener listener = scanCandidatesListener;
+            if (listener != null) {
+                listener.onScanCandidatesChanged(candidates);
+            }
+        }
+    };
+    private volatile int scanProfile = SCAN_PROFILE_INSTANT;
+
     private volatile boolean isScanning = false;
     private Runnable stopScanRunnable = null;
     private OnMidiScanStatusListener onMidiScanStatusListener;
@@ -112,8 +171,13 @@ public class CentralProvider {
         this.handler = new Handler(context.getMainLooper());
     }
 
-    @SuppressLint("MissingPermission")
     public void connectGatt(BluetoothDevice bluetoothDevice) {
+        connect(bluetoothDevice);
+    }
+
+    @SuppressLint("MissingPermission")
+    private void connect(@NonNull BluetoothDevice bluetoothDevice) {
+        midiCallback.recordConnectionStage(bluetoothDevice.getAddress(), ConnectionTimeline.STAGE_CONNECT_GATT);
         bluetoothDevice.connectGatt(context, true, midiCallback);
     }
 
@@ -121,20 +185,18 @@ public class CentralProvider {
         midiCallback.setNeedsBonding(needsPairing);
     }
 
+    /**
+     * Starts to scan the devices with the scan profile, and connects the found devices<br />
+     * The candidates of the previous scan are forgotten.
+     *
+     * @param timeoutInMilliSeconds 0 or negative value to scan until {@link #stopScanDevice()}
+     */
     @SuppressLint({"Deprecation", "NewApi"})
     public void startScanDevice(int timeoutInMilliSeconds) throws SecurityException {
         BluetoothLeScanner bluetoothLeScanner = bluetoothAdapter.getBluetoothLeScanner();
-        List<ScanFilter> scanFilters = new ArrayList<>();
-        scanFilters.add(new Builder().setServiceUuid(fromString("03B80E5A-EDE8-4B33-A751-6CE34EC4C700")).build());
-//        List<ScanFilter> scanFilters = BleMidiDeviceUtils.getBleMidiScanFilters(context);
-        ScanSettings.Builder settings = new ScanSettings.Builder()
-                .setReportDelay(5000)
-                .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
-//                .setCallbackType(ScanSettings.CALLBACK_TYPE_ALL_MATCHES)
-//                .setMatchMode(ScanSettings.MATCH_MODE_AGGRESSIVE)
-                ;
-//        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) settings.setLegacy(false);
-        bluetoothLeScanner.startScan(scanFilters, settings.build(), scanCallback);
+        List<ScanFilter> scanFilters = BleMidiDeviceUtils.getBleMidiScanFilters(context);
+        scanCandidateList.clear();
+        bluetoothLeScanner.startScan(scanFilters, buildScanSettings(scanProfile), scanCallback);
         isScanning = true;
 
         if (onMidiScanStatusListener != null) {
@@ -160,6 +222,82 @@ public class CentralProvider {
         }
     }
 
+    @NonNull
+    @SuppressLint("NewApi")
+    private ScanSettings buildScanSettings(int scanProfile) {
+        final ScanSettings.Builder settings = new ScanSettings.Builder();
+        switch (scanProfile) {
+            case SCAN_PROFILE_BATCHED:
+                settings.setScanMode(ScanSettings.SCAN_MODE_LOW_POWER);
+                // the scan fails with the report delay, if the controller doesn't support the batching
+                if (bluetoothAdapter.isOffloadedScanBatchingSupported()) {
+                    settings.setReportDelay(BATCHED_REPORT_DELAY_MILLIS);
+                }
+                break;
+            case SCAN_PROFILE_OPPORTUNISTIC:
+                settings.setScanMode(Build.VERSION.SDK_INT >= Build.VERSION_CODES.M ? ScanSettings.SCAN_MODE_OPPORTUNISTIC : ScanSettings.SCAN_MODE_LOW_POWER);
+                break;
+            default:
+                settings.setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY);
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                    // report with the fewer advertisements
+                    settings.setMatchMode(ScanSettings.MATCH_MODE_AGGRESSIVE);
+                }
+                break;
+        }
+        return settings.build();
+    }
+
+    /**
+     * Sets the scan profile, used from the next {@link #startScanDevice(int)}
+     *
+     * @param scanProfile SCAN_PROFILE_*
+     * @throws IllegalArgumentException if the profile is invalid
+     */
+    public void setScanProfile(int scanProfile) throws IllegalArgumentException {
+        if (scanProfile != SCAN_PROFILE_INSTANT && scanProfile != SCAN_PROFILE_BATCHED && scanProfile != SCAN_PROFILE_OPPORTUNISTIC) {
+            throw new IllegalArgumentException("scanProfile must be SCAN_PROFILE_INSTANT, SCAN_PROFILE_BATCHED or SCAN_PROFILE_OPPORTUNISTIC");
+        }
+        this.scanProfile = scanProfile;
+    }
+
+    public int getScanProfile() {
+        return scanProfile;
+    }
+
+    /**
+     * Obtains the devices found by the current, or the last scan
+     *
+     * @return the candidates sorted by RSSI, the stronger first
+     */
+    @NonNull
+    public List<ScanCandidate> getScanCandidates() {
+        return scanCandidateList.getSortedCandidates();
+    }
+
+    /**
+     * Sets the listener for the devices found by the scan
+     *
+     * @param scanCandidatesListener the listener, called on the main thread
+     */
+    public void setOnScanCandidatesListener(@Nullable CentralScanCandidatesListener scanCandidatesListener) {
+        this.scanCandidatesListener = scanCandidatesListener;
+    }
+
+    /**
+     * Sets the minimum interval of the scan candidates notifications<br />
+     * The scan results in the interval are notified together.
+     *
+     * @param scanNotificationIntervalMillis the interval in milliseconds, default 250
+     * @throws IllegalArgumentException if the interval is negative
+     */
+    public void setScanNotificationIntervalMillis(long scanNotificationIntervalMillis) throws IllegalArgumentException {
+        if (scanNotificationIntervalMillis < 0) {
+            throw new IllegalArgumentException("scanNotificationIntervalMillis must not be negative");
+        }
+        this.scanNotificationIntervalMillis = scanNotificationIntervalMillis;
+    }
+
     @SuppressLint({"Deprecation", "NewApi"})
     public void stopScanDevice() throws SecurityException {
         try {
@@ -203,6 +341,33 @@ public class CentralProvider {
         this.onMidiScanStatusListener = onMidiScanStatusListener;
     }
 
+    /**
+     * Obtains the connection setup time histograms, aggregated across the connections
+     *
+     * @return the metrics
+     */
+    @NonNull
+    public ConnectionMetrics getConnectionMetrics() {
+        return midiCallback.getConnectionMetrics();
+    }
+
+    /**
+     * Sets the listener for the connection setup stages of each device
+     *
+     * @param connectionTimelineListener the listener
+     */
+    public void setConnectionTimelineListener(@Nullable ConnectionTimelineListener connectionTimelineListener) {
+        midiCallback.setConnectionTimelineListener(connectionTimelineListener);
+    }
+
+    /**
+     * Forgets the GATT attributes and the quirks of all of the devices, cached for the reconnection<br />
+     * The next connection of each device resolves the attributes again.
+     */
+    public void clearGattCache() {
+        midiCallback.clearGattCache();
+    }
+
     public void setOnMidiDeviceAttachedListener(@Nullable CentralDeviceAttachedListener midiDeviceAttachedListener) {
         this.midiCallback.setOnMidiDeviceAttachedListener(midiDeviceAttachedListener);
     }
@@ -214,5 +379,6 @@ public class CentralProvider {
     public void terminate() {
         midiCallback.terminate();
         stopScanDevice();
+        handler.removeCallbacks(scanNotificationRunnable);
     }
 }
@@ -0,0 +1,18 @@
+package renetik.android.midi.bluetooth.central;
+
+import androidx.annotation.NonNull;
+
+import java.util.List;
+
+/**
+ * Listener for the devices found by the scan<br />
+ * Called on the main thread, at most once in the notification interval.
+ */
+public interface CentralScanCandidatesListener {
+    /**
+     * The candidates have been found, or updated
+     *
+     * @param candidates the devices found by the current scan, sorted by RSSI, the stronger first
+     */
+    void onScanCandidatesChanged(@NonNull List<ScanCandidate> candidates);
+}
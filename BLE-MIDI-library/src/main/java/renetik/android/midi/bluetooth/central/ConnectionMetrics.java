@@ -0,0 +1,95 @@
+package renetik.android.midi.bluetooth.central;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Histograms of the central connection setup times, aggregated across the connections<br />
+ * Each finished {@link ConnectionTimeline} adds the elapsed time of each reached stage, to the bucket of the stage.<br />
+ * The bucket i counts the times up to {@link #getBucketBoundsMillis()}[i] milliseconds, the last bucket counts the longer times.
+ */
+public final class ConnectionMetrics {
+    private static final long[] BUCKET_BOUNDS_MILLIS = {10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000};
+
+    private final int[][] histograms = new int[ConnectionTimeline.STAGE_COUNT][BUCKET_BOUNDS_MILLIS.length + 1];
+    private int sessionCount = 0;
+    private int completedSessionCount = 0;
+
+    /**
+     * Adds the finished timeline
+     *
+     * @param timeline the timeline
+     */
+    synchronized void add(@NonNull ConnectionTimeline timeline) {
+        sessionCount++;
+        if (timeline.isCompleted()) {
+            completedSessionCount++;
+        }
+        for (int stage = 0; stage < ConnectionTimeline.STAGE_COUNT; stage++) {
+            final long elapsedMillis = timeline.getElapsedMillis(stage);
+            if (elapsedMillis >= 0) {
+                histograms[stage][bucketOf(elapsedMillis)]++;
+            }
+        }
+    }
+
+    private static int bucketOf(long elapsedMillis) {
+        for (int i = 0; i < BUCKET_BOUNDS_MILLIS.length; i++) {
+            if (elapsedMillis <= BUCKET_BOUNDS_MILLIS[i]) {
+                return i;
+            }
+        }
+        return BUCKET_BOUNDS_MILLIS.length;
+    }
+
+    /**
+     * Obtains the upper bounds of the buckets
+     *
+     * @return the bounds in milliseconds, the histograms have one more bucket for the longer times
+     */
+    @NonNull
+    public static long[] getBucketBoundsMillis() {
+        return BUCKET_BOUNDS_MILLIS.clone();
+    }
+
+    /**
+     * Obtains the histogram of the stage
+     *
+     * @param stage the stage, ConnectionTimeline.STAGE_*
+     * @return the counts of each bucket, copied
+     */
+    @NonNull
+    public synchronized int[] getHistogram(int stage) {
+        return histograms[stage].clone();
+    }
+
+    /**
+     * Obtains the number of the finished connections
+     *
+     * @return the number of the timelines, including the disconnected ones before the first MIDI byte
+     */
+    public synchronized int getSessionCount() {
+        return sessionCount;
+    }
+
+    /**
+     * Obtains the number of the connections which received MIDI data
+     *
+     * @return the number of the completed timelines
+     */
+    public synchronized int getCompletedSessionCount() {
+        return completedSessionCount;
+    }
+
+    /**
+     * Clears the histograms
+     */
+    public synchronized void reset() {
+        for (int[] histogram : histograms) {
+            for (int i = 0; i < histogram.length; i++) {
+                histogram[i] = 0;
+            }
+        }
+        sessionCount = 0;
+        completedSessionCount = 0;
+    }
+}
@@ -0,0 +1,120 @@
+package renetik.android.midi.bluetooth.central;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The timeline of one central connection setup, from the scan hit to the first MIDI byte<br />
+ * Each stage records the first time it's reached in {@link System#nanoTime()}, 0 if not reached.<br />
+ * A reconnected device starts the timeline at {@link #STAGE_CONNECTED}, without the scan.
+ */
+public final class ConnectionTimeline {
+    public static final int STAGE_SCAN_HIT = 0;
+    public static final int STAGE_CONNECT_GATT = 1;
+    public static final int STAGE_CONNECTED = 2;
+    public static final int STAGE_SERVICES_DISCOVERED = 3;
+    public static final int STAGE_MTU_NEGOTIATED = 4;
+    public static final int STAGE_CCCD_WRITTEN = 5;
+    public static final int STAGE_FIRST_MIDI_BYTE = 6;
+    public static final int STAGE_COUNT = 7;
+
+    private static final String[] STAGE_NAMES = {"scan hit", "connectGatt", "connected", "services discovered", "MTU negotiated", "CCCD written", "first MIDI byte"};
+
+    private final String deviceAddress;
+    private final long[] stageTimes = new long[STAGE_COUNT];
+    // the first recorded time, the origin of the elapsed times
+    private long startTime = 0;
+
+    ConnectionTimeline(@NonNull String deviceAddress) {
+        this.deviceAddress = deviceAddress;
+    }
+
+    /**
+     * Records the stage
+     *
+     * @param stage    the stage
+     * @param nanoTime the time in {@link System#nanoTime()}
+     * @return true if recorded, false if the stage has already been reached
+     */
+    synchronized boolean record(int stage, long nanoTime) {
+        if (stageTimes[stage] != 0) {
+            return false;
+        }
+        stageTimes[stage] = nanoTime;
+        if (startTime == 0) {
+            startTime = nanoTime;
+        }
+        return true;
+    }
+
+    /**
+     * Obtains the stage name
+     *
+     * @param stage the stage
+     * @return the name for logging
+     */
+    @NonNull
+    public static String getStageName(int stage) {
+        return STAGE_NAMES[stage];
+    }
+
+    @NonNull
+    public String getDeviceAddress() {
+        return deviceAddress;
+    }
+
+    /**
+     * Checks the stage has been reached
+     *
+     * @param stage the stage
+     * @return true if reached
+     */
+    public synchronized boolean isReached(int stage) {
+        return stageTimes[stage] != 0;
+    }
+
+    /**
+     * Obtains the time of the stage
+     *
+     * @param stage the stage
+     * @return the time in {@link System#nanoTime()}, 0 if not reached
+     */
+    public synchronized long getStageTime(int stage) {
+        return stageTimes[stage];
+    }
+
+    /**
+     * Obtains the time from the start of the timeline to the stage
+     *
+     * @param stage the stage
+     * @return the time in milliseconds, -1 if not reached
+     */
+    public synchronized long getElapsedMillis(int stage) {
+        if (stageTimes[stage] == 0) {
+            return -1;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(stageTimes[stage] - startTime);
+    }
+
+    /**
+     * Checks the device has become usable
+     *
+     * @return true if the first MIDI byte has been received
+     */
+    public synchronized boolean isCompleted() {
+        return stageTimes[STAGE_FIRST_MIDI_BYTE] != 0;
+    }
+
+    @NonNull
+    @Override
+    public synchronized String toString() {
+        final StringBuilder builder = new StringBuilder(deviceAddress);
+        for (int stage = 0; stage < STAGE_COUNT; stage++) {
+            if (stageTimes[stage] != 0) {
+                builder.append(", ").append(STAGE_NAMES[stage]).append(": ").append(getElapsedMillis(stage)).append(" ms");
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,25 @@
+package renetik.android.midi.bluetooth.central;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Listener for the central connection setup stages<br />
+ * Called from the Bluetooth callback threads, or the main thread.
+ */
+public interface ConnectionTimelineListener {
+    /**
+     * The connection has reached the stage
+     *
+     * @param timeline the timeline of the connection, updated by the later stages
+     * @param stage    ConnectionTimeline.STAGE_*
+     */
+    void onConnectionStageReached(@NonNull ConnectionTimeline timeline, int stage);
+
+    /**
+     * The timeline has finished, by the first MIDI byte or the disconnection<br />
+     * The timeline has been added to {@link ConnectionMetrics}.
+     *
+     * @param timeline the timeline of the connection
+     */
+    void onConnectionTimelineFinished(@NonNull ConnectionTimeline timeline);
+}
@@ -0,0 +1,237 @@
+package renetik.android.midi.bluetooth.central;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persistent cache of the resolved GATT attributes for each device address<br />
+ * Holds the MIDI service and characteristic UUIDs, and the device quirks found in the previous connections.<br />
+ * Reconnecting to a known device looks up the attributes directly, and skips the operations the device doesn't support.<br />
+ * A quirk is recorded after {@link #QUIRK_TIMEOUT_COUNT} consecutive timeouts of the operation, and expires in {@link #QUIRK_EXPIRY_MILLIS}.
+ * The operation is tried again after the expiry, and one more timeout records the quirk again.
+ */
+final class GattCache {
+    private static final String PREFERENCES_NAME = "renetik.android.midi.bluetooth.GattCache";
+    private static final String SEPARATOR = "|";
+    // the consecutive timeouts to regard the operation as not supported, the other failures may be transient
+    static final int QUIRK_TIMEOUT_COUNT = 3;
+    static final long QUIRK_EXPIRY_MILLIS = TimeUnit.DAYS.toMillis(7);
+
+    // the device doesn't answer the MTU request
+    static final int QUIRK_MTU_REQUEST_FAILED = 0;
+    // the device doesn't answer reading the MIDI input characteristic
+    static final int QUIRK_READ_CHARACTERISTIC_FAILED = 1;
+    private static final int QUIRK_COUNT = 2;
+
+    /**
+     * The cached attributes of a device
+     */
+    static final class Entry {
+        @Nullable
+        UUID serviceUuid;
+        @Nullable
+        UUID inputCharacteristicUuid;
+        @Nullable
+        UUID outputCharacteristicUuid;
+        // the consecutive timeouts of each quirk's operation
+        final int[] timeoutCounts = new int[QUIRK_COUNT];
+        // the time the quirk was recorded in System.currentTimeMillis(), 0: not recorded
+        final long[] quirkTimes = new long[QUIRK_COUNT];
+
+        /**
+         * Checks the operation is to be skipped
+         *
+         * @param quirk QUIRK_*
+         * @return true if the quirk has been recorded, and not expired
+         */
+        boolean hasQuirk(int quirk) {
+            return quirkTimes[quirk] != 0 && System.currentTimeMillis() - quirkTimes[quirk] < QUIRK_EXPIRY_MILLIS;
+        }
+
+        /**
+         * Checks the MTU request is worth sending
+         *
+         * @return false if the device hasn't answered the request
+         */
+        boolean shouldRequestMtu() {
+            return !hasQuirk(QUIRK_MTU_REQUEST_FAILED);
+        }
+
+        @NonNull
+        Entry copy() {
+            final Entry entry = new Entry();
+            entry.serviceUuid = serviceUuid;
+            entry.inputCharacteristicUuid = inputCharacteristicUuid;
+            entry.outputCharacteristicUuid = outputCharacteristicUuid;
+            System.arraycopy(timeoutCounts, 0, entry.timeoutCounts, 0, QUIRK_COUNT);
+            System.arraycopy(quirkTimes, 0, entry.quirkTimes, 0, QUIRK_COUNT);
+            return entry;
+        }
+
+        void clearQuirks() {
+            Arrays.fill(timeoutCounts, 0);
+            Arrays.fill(quirkTimes, 0);
+        }
+    }
+
+    private final SharedPreferences preferences;
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    GattCache(@NonNull Context context) {
+        preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Obtains the cached attributes
+     *
+     * @param deviceAddress the device address
+     * @return the copy of the entry, an empty entry if the device is not known
+     */
+    @NonNull
+    synchronized Entry get(@NonNull String deviceAddress) {
+        return getEntry(deviceAddress).copy();
+    }
+
+    @NonNull
+    private Entry getEntry(@NonNull String deviceAddress) {
+        Entry entry = entries.get(deviceAddress);
+        if (entry == null) {
+            entry = decode(preferences.getString(deviceAddress, null));
+            entries.put(deviceAddress, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Stores the resolved UUIDs<br />
+     * The quirks are forgotten if the UUIDs have changed, as the device may have been updated.
+     *
+     * @param deviceAddress            the device address
+     * @param serviceUuid              the MIDI service
+     * @param inputCharacteristicUuid  the MIDI input characteristic, null if not found
+     * @param outputCharacteristicUuid the MIDI output characteristic, null if not found
+     */
+    synchronized void putAttributes(@NonNull String deviceAddress, @NonNull UUID serviceUuid, @Nullable UUID inputCharacteristicUuid, @Nullable UUID outputCharacteristicUuid) {
+        final Entry entry = getEntry(deviceAddress);
+        if (entry.serviceUuid != null && serviceUuid.equals(entry.serviceUuid)
+                && equals(inputCharacteristicUuid, entry.inputCharacteristicUuid)
+                && equals(outputCharacteristicUuid, entry.outputCharacteristicUuid)) {
+            return;
+        }
+        if (entry.serviceUuid != null) {
+            entry.clearQuirks();
+        }
+        entry.serviceUuid = serviceUuid;
+        entry.inputCharacteristicUuid = inputCharacteristicUuid;
+        entry.outputCharacteristicUuid = outputCharacteristicUuid;
+        save(deviceAddress, entry);
+    }
+
+    /**
+     * Records the operation of the quirk has succeeded, and forgets its timeouts
+     *
+     * @param deviceAddress the device address
+     * @param quirk         QUIRK_*
+     */
+    synchronized void onQuirkOperationSucceeded(@NonNull String deviceAddress, int quirk) {
+        final Entry entry = getEntry(deviceAddress);
+        if (entry.timeoutCounts[quirk] == 0 && entry.quirkTimes[quirk] == 0) {
+            return;
+        }
+        entry.timeoutCounts[quirk] = 0;
+        entry.quirkTimes[quirk] = 0;
+        save(deviceAddress, entry);
+    }
+
+    /**
+     * Records the operation of the quirk has timed out<br />
+     * The quirk is recorded at {@link #QUIRK_TIMEOUT_COUNT} consecutive timeouts.
+     *
+     * @param deviceAddress the device address
+     * @param quirk         QUIRK_*
+     */
+    synchronized void onQuirkOperationTimedOut(@NonNull String deviceAddress, int quirk) {
+        final Entry entry = getEntry(deviceAddress);
+        if (entry.timeoutCounts[quirk] < QUIRK_TIMEOUT_COUNT) {
+            entry.timeoutCounts[quirk]++;
+        }
+        if (entry.timeoutCounts[quirk] == QUIRK_TIMEOUT_COUNT) {
+            // recorded again after the expiry
+            entry.quirkTimes[quirk] = System.currentTimeMillis();
+        }
+        save(deviceAddress, entry);
+    }
+
+    /**
+     * Removes all of the cached attributes
+     */
+    synchronized void clear() {
+        entries.clear();
+        preferences.edit().clear().apply();
+    }
+
+    private void save(@NonNull String deviceAddress, @NonNull Entry entry) {
+        preferences.edit().putString(deviceAddress, encode(entry)).apply();
+    }
+
+    @NonNull
+    private static String encode(@NonNull Entry entry) {
+        final StringBuilder builder = new StringBuilder();
+        builder.append(toString(entry.serviceUuid)).append(SEPARATOR)
+                .append(toString(entry.inputCharacteristicUuid)).append(SEPARATOR)
+                .append(toString(entry.outputCharacteristicUuid));
+        for (int quirk = 0; quirk < QUIRK_COUNT; quirk++) {
+            builder.append(SEPARATOR).append(entry.timeoutCounts[quirk])
+                    .append(SEPARATOR).append(entry.quirkTimes[quirk]);
+        }
+        return builder.toString();
+    }
+
+    @NonNull
+    private static Entry decode(@Nullable String value) {
+        final Entry entry = new Entry();
+        if (value == null) {
+            return entry;
+        }
+        final String[] fields = value.split("\\|", -1);
+        if (fields.length != 3 + QUIRK_COUNT * 2) {
+            // written by the other version
+            return entry;
+        }
+        try {
+            entry.serviceUuid = toUuid(fields[0]);
+            entry.inputCharacteristicUuid = toUuid(fields[1]);
+            entry.outputCharacteristicUuid = toUuid(fields[2]);
+            for (int quirk = 0; quirk < QUIRK_COUNT; quirk++) {
+                entry.timeoutCounts[quirk] = Integer.parseInt(fields[3 + quirk * 2]);
+                entry.quirkTimes[quirk] = Long.parseLong(fields[4 + quirk * 2]);
+            }
+        } catch (IllegalArgumentException e) {
+            return new Entry();
+        }
+        return entry;
+    }
+
+    private static boolean equals(@Nullable UUID uuid, @Nullable UUID other) {
+        return uuid == null ? other == null : uuid.equals(other);
+    }
+
+    @NonNull
+    private static String toString(@Nullable UUID uuid) {
+        return uuid == null ? "" : uuid.toString();
+    }
+
+    @Nullable
+    private static UUID toUuid(@NonNull String value) throws IllegalArgumentException {
+        return value.isEmpty() ? null : UUID.fromString(value);
+    }
+}
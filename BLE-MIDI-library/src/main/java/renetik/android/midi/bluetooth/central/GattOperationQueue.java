@@ -0,0 +1,321 @@
+package renetik.android.midi.bluetooth.central;
+
+import static renetik.android.midi.bluetooth.util.Constants.TAG;
+
+import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothStatusCodes;
+import android.os.Build;
+import android.os.Handler;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the GATT operations of one connection, one at a time<br />
+ * Android accepts only one outstanding GATT operation for a connection, so the next operation starts when the callback of the previous one comes.<br />
+ * The operation without the callback in time is regarded as failed, and the next one starts.<br />
+ * The time of each operation is logged.
+ */
+public final class GattOperationQueue {
+    // the operation types, to match the callbacks
+    static final int OPERATION_DISCOVER_SERVICES = 0;
+    static final int OPERATION_REQUEST_MTU = 1;
+    static final int OPERATION_WRITE_DESCRIPTOR = 2;
+    static final int OPERATION_READ_CHARACTERISTIC = 3;
+    static final int OPERATION_REQUEST_CONNECTION_PRIORITY = 4;
+
+    // the results of Operation.start
+    static final int OPERATION_STARTED = 0;
+    static final int OPERATION_COMPLETED = 1;
+    static final int OPERATION_FAILED = 2;
+
+    // the results of the finished operation
+    static final int RESULT_SUCCEEDED = 0;
+    // failed status, or not started
+    static final int RESULT_FAILED = 1;
+    // no callback has come
+    static final int RESULT_TIMED_OUT = 2;
+
+    private static final long DEFAULT_TIMEOUT_MILLIS = 5000;
+    private static final long DISCOVER_SERVICES_TIMEOUT_MILLIS = 10000;
+    // GATT_MAX_MTU_SIZE defined at `stack/include/gatt_api.h`
+    static final int MAX_MTU = 517;
+
+    /**
+     * The GATT operation
+     */
+    abstract static class Operation {
+        final int type;
+        @NonNull
+        final String name;
+        final long timeoutMillis;
+
+        Operation(int type, @NonNull String name, long timeoutMillis) {
+            this.type = type;
+            this.name = name;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        /**
+         * Starts the operation
+         *
+         * @param gatt the connection
+         * @return {@link #OPERATION_STARTED} to wait for the callback, {@link #OPERATION_COMPLETED} if no callback comes, or {@link #OPERATION_FAILED}
+         */
+        abstract int start(@NonNull BluetoothGatt gatt) throws SecurityException;
+
+        /**
+         * Called when the operation has failed, or timed out
+         *
+         * @param gatt the connection
+         */
+        void onFailed(@NonNull BluetoothGatt gatt) {
+        }
+    }
+
+    /**
+     * Listener for the finished operations
+     */
+    interface OnOperationFinishedListener {
+        /**
+         * The operation has finished
+         *
+         * @param gatt   the connection
+         * @param type   the operation type
+         * @param result {@link #RESULT_SUCCEEDED}, {@link #RESULT_FAILED}, or {@link #RESULT_TIMED_OUT}
+         */
+        void onOperationFinished(@NonNull BluetoothGatt gatt, int type, int result);
+    }
+
+    private final BluetoothGatt gatt;
+    private final Handler handler;
+    @Nullable
+    private final OnOperationFinishedListener onOperationFinishedListener;
+    private final ArrayDeque<Operation> operations = new ArrayDeque<>();
+    @Nullable
+    private Operation currentOperation = null;
+    private long currentOperationStartTime = 0;
+    private boolean closed = false;
+    private final Runnable timeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (GattOperationQueue.this) {
+                if (currentOperation != null) {
+                    finishOperation(RESULT_TIMED_OUT, "timed out");
+                    startNextOperation();
+                }
+            }
+        }
+    };
+
+    GattOperationQueue(@NonNull BluetoothGatt gatt, @NonNull Handler handler, @Nullable OnOperationFinishedListener onOperationFinishedListener) {
+        this.gatt = gatt;
+        this.handler = handler;
+        this.onOperationFinishedListener = onOperationFinishedListener;
+    }
+
+    @NonNull
+    BluetoothGatt getGatt() {
+        return gatt;
+    }
+
+    /**
+     * Adds the operation, and starts it if no operation is running
+     *
+     * @param operation the operation
+     */
+    synchronized void enqueue(@NonNull Operation operation) {
+        if (closed) {
+            return;
+        }
+        operations.add(operation);
+        if (currentOperation == null) {
+            startNextOperation();
+        }
+    }
+
+    /**
+     * Called from the GATT callback, and starts the next operation
+     *
+     * @param type      the operation type of the callback
+     * @param succeeded true if the callback status is success
+     */
+    synchronized void onOperationCompleted(int type, boolean succeeded) {
+        if (currentOperation == null || currentOperation.type != type) {
+            // not requested by this queue, or already timed out
+            return;
+        }
+        handler.removeCallbacks(timeoutRunnable);
+        finishOperation(succeeded ? RESULT_SUCCEEDED : RESULT_FAILED, succeeded ? "succeeded" : "failed");
+        startNextOperation();
+    }
+
+    /**
+     * Cancels the waiting operations, the callbacks are ignored after this
+     */
+    synchronized void close() {
+        closed = true;
+        operations.clear();
+        currentOperation = null;
+        handler.removeCallbacks(timeoutRunnable);
+    }
+
+    private void startNextOperation() {
+        while (currentOperation == null && !closed && !operations.isEmpty()) {
+            currentOperation = operations.poll();
+            currentOperationStartTime = System.nanoTime();
+
+            int result;
+            try {
+                result = currentOperation.start(gatt);
+            } catch (Throwable t) {
+                // SecurityException, or android.os.DeadObjectException
+                Log.d(TAG, "Central " + currentOperation.name + " address: " + gatt.getDevice().getAddress() + ", " + t.getMessage());
+                result = OPERATION_FAILED;
+            }
+
+            if (result == OPERATION_STARTED) {
+                handler.postDelayed(timeoutRunnable, currentOperation.timeoutMillis);
+            } else {
+                if (result == OPERATION_COMPLETED) {
+                    finishOperation(RESULT_SUCCEEDED, "succeeded");
+                } else {
+                    finishOperation(RESULT_FAILED, "not started");
+                }
+            }
+        }
+    }
+
+    private void finishOperation(int result, @NonNull String message) {
+        final Operation operation = currentOperation;
+        currentOperation = null;
+        if (operation == null) {
+            return;
+        }
+
+        Log.d(TAG, "Central " + operation.name + " address: " + gatt.getDevice().getAddress() + ", " + message
+                + ", " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - currentOperationStartTime) + " ms");
+        if (result != RESULT_SUCCEEDED) {
+            operation.onFailed(gatt);
+        }
+        if (onOperationFinishedListener != null) {
+            onOperationFinishedListener.onOperationFinished(gatt, operation.type, result);
+        }
+    }
+
+    /**
+     * Discovers the services, completed by onServicesDiscovered<br />
+     * The connection is disconnected if the discovery fails.
+     *
+     * @return the operation
+     */
+    @NonNull
+    static Operation discoverServices() {
+        return new Operation(OPERATION_DISCOVER_SERVICES, "discoverServices", DISCOVER_SERVICES_TIMEOUT_MILLIS) {
+            @SuppressLint("MissingPermission")
+            @Override
+            int start(@NonNull BluetoothGatt gatt) throws SecurityException {
+                return gatt.discoverServices() ? OPERATION_STARTED : OPERATION_FAILED;
+            }
+
+            @SuppressLint("MissingPermission")
+            @Override
+            void onFailed(@NonNull BluetoothGatt gatt) {
+                // the devices can't be found, onConnectionStateChange cleans up the connection
+                try {
+                    gatt.disconnect();
+                } catch (Throwable ignored) {
+                    // android.os.DeadObjectException
+                }
+            }
+        };
+    }
+
+    /**
+     * Requests the MTU, completed by onMtuChanged
+     *
+     * @param mtu the MTU size
+     * @return the operation
+     */
+    @NonNull
+    static Operation requestMtu(final int mtu) {
+        return new Operation(OPERATION_REQUEST_MTU, "requestMtu", DEFAULT_TIMEOUT_MILLIS) {
+            @SuppressLint("MissingPermission")
+            @Override
+            int start(@NonNull BluetoothGatt gatt) throws SecurityException {
+                return gatt.requestMtu(mtu) ? OPERATION_STARTED : OPERATION_FAILED;
+            }
+        };
+    }
+
+    /**
+     * Writes the descriptor, completed by onDescriptorWrite
+     *
+     * @param descriptor the descriptor
+     * @param value      the value to write
+     * @return the operation
+     */
+    @NonNull
+    static Operation writeDescriptor(@NonNull final BluetoothGattDescriptor descriptor, @NonNull final byte[] value) {
+        return new Operation(OPERATION_WRITE_DESCRIPTOR, "writeDescriptor", DEFAULT_TIMEOUT_MILLIS) {
+            @SuppressLint("MissingPermission")
+            @Override
+            int start(@NonNull BluetoothGatt gatt) throws SecurityException {
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+                    return writeDescriptor(gatt, descriptor, value);
+                }
+                descriptor.setValue(value);
+                return gatt.writeDescriptor(descriptor) ? OPERATION_STARTED : OPERATION_FAILED;
+            }
+        };
+    }
+
+    @SuppressLint("MissingPermission")
+    @TargetApi(Build.VERSION_CODES.TIRAMISU)
+    private static int writeDescriptor(@NonNull BluetoothGatt gatt, @NonNull BluetoothGattDescriptor descriptor, @NonNull byte[] value) throws SecurityException {
+        return gatt.writeDescriptor(descriptor, value) == BluetoothStatusCodes.SUCCESS ? OPERATION_STARTED : OPERATION_FAILED;
+    }
+
+    /**
+     * Reads the characteristic, completed by onCharacteristicRead
+     *
+     * @param characteristic the characteristic
+     * @return the operation
+     */
+    @NonNull
+    static Operation readCharacteristic(@NonNull final BluetoothGattCharacteristic characteristic) {
+        return new Operation(OPERATION_READ_CHARACTERISTIC, "readCharacteristic", DEFAULT_TIMEOUT_MILLIS) {
+            @SuppressLint("MissingPermission")
+            @Override
+            int start(@NonNull BluetoothGatt gatt) throws SecurityException {
+                return gatt.readCharacteristic(characteristic) ? OPERATION_STARTED : OPERATION_FAILED;
+            }
+        };
+    }
+
+    /**
+     * Requests the connection priority<br />
+     * No public callback reports the result, so the next operation starts immediately.
+     *
+     * @param connectionPriority BluetoothGatt.CONNECTION_PRIORITY_*
+     * @return the operation
+     */
+    @NonNull
+    static Operation requestConnectionPriority(final int connectionPriority) {
+        return new Operation(OPERATION_REQUEST_CONNECTION_PRIORITY, "requestConnectionPriority", DEFAULT_TIMEOUT_MILLIS) {
+            @SuppressLint("MissingPermission")
+            @Override
+            int start(@NonNull BluetoothGatt gatt) throws SecurityException {
+                return gatt.requestConnectionPriority(connectionPriority) ? OPERATION_COMPLETED : OPERATION_FAILED;
+            }
+        };
+    }
+}
@@ -0,0 +1,49 @@
+package renetik.android.midi.bluetooth.central;
+
+import android.bluetooth.BluetoothDevice;
+
+import androidx.annotation.NonNull;
+
+/**
+ * The device found by the scan, with the latest signal strength<br />
+ * Immutable, the later scan results replace the candidate.
+ */
+public final class ScanCandidate {
+    private final BluetoothDevice device;
+    private final int rssi;
+    private final long lastSeenTime;
+
+    ScanCandidate(@NonNull BluetoothDevice device, int rssi, long lastSeenTime) {
+        this.device = device;
+        this.rssi = rssi;
+        this.lastSeenTime = lastSeenTime;
+    }
+
+    @NonNull
+    public BluetoothDevice getDevice() {
+        return device;
+    }
+
+    @NonNull
+    public String getDeviceAddress() {
+        return device.getAddress();
+    }
+
+    /**
+     * Obtains the signal strength of the latest scan result
+     *
+     * @return the RSSI in dBm
+     */
+    public int getRssi() {
+        return rssi;
+    }
+
+    /**
+     * Obtains the time of the latest scan result
+     *
+     * @return the time in {@link System#nanoTime()}
+     */
+    public long getLastSeenTime() {
+        return lastSeenTime;
+    }
+}
@@ -0,0 +1,84 @@
+package renetik.android.midi.bluetooth.central;
+
+import android.bluetooth.BluetoothDevice;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The devices found by one scan, deduplicated by the address<br />
+ * Tracks whether the change has been notified, to throttle the notifications.
+ */
+final class ScanCandidateList {
+    // the stronger signal first
+    private static final Comparator<ScanCandidate> RSSI_COMPARATOR = new Comparator<ScanCandidate>() {
+        @Override
+        public int compare(ScanCandidate candidate, ScanCandidate other) {
+            return other.getRssi() < candidate.getRssi() ? -1 : (other.getRssi() == candidate.getRssi() ? 0 : 1);
+        }
+    };
+
+    private final Map<String, ScanCandidate> candidates = new HashMap<>();
+    private boolean notificationPending = false;
+
+    /**
+     * Adds the scan result, or updates the candidate of the same address
+     *
+     * @param device   the device
+     * @param rssi     the signal strength
+     * @param nanoTime the time in {@link System#nanoTime()}
+     * @return true if the device is new in this scan
+     */
+    synchronized boolean update(@NonNull BluetoothDevice device, int rssi, long nanoTime) {
+        return candidates.put(device.getAddress(), new ScanCandidate(device, rssi, nanoTime)) == null;
+    }
+
+    /**
+     * Marks the candidates changed
+     *
+     * @return true if the notification has to be scheduled, false if already scheduled
+     */
+    synchronized boolean markChanged() {
+        if (notificationPending) {
+            return false;
+        }
+        notificationPending = true;
+        return true;
+    }
+
+    /**
+     * Obtains the candidates to notify, and clears the pending state
+     *
+     * @return the candidates sorted by RSSI
+     */
+    @NonNull
+    synchronized List<ScanCandidate> takeNotification() {
+        notificationPending = false;
+        return getSortedCandidates();
+    }
+
+    /**
+     * Obtains the candidates
+     *
+     * @return the candidates sorted by RSSI, the stronger first
+     */
+    @NonNull
+    synchronized List<ScanCandidate> getSortedCandidates() {
+        final List<ScanCandidate> result = new ArrayList<>(candidates.values());
+        Collections.sort(result, RSSI_COMPARATOR);
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Forgets the candidates, for the new scan
+     */
+    synchronized void clear() {
+        candidates.clear();
+    }
+}
@@ -0,0 +1,309 @@
+package renetik.android.midi.bluetooth.device;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * Builds BLE MIDI packets from short MIDI messages.<br />
+ * The packets are stored back to back in one array, each packet is at most the buffer size given when appending.<br />
+ * A packet starts with the header byte.<br />
+ * Within a packet, the status byte is omitted with running status, and the timestamp byte is omitted when it's same as the previous message.<br />
+ * The timestamps never decrease within a packet, the earlier timestamp than the previous message starts a new packet.<br />
+ * The pending continuous controller messages can be coalesced, see {@link #coalesce(int, int, int, int)}.<br />
+ * Not thread safe, callers must synchronize.
+ */
+final class BleMidiPacketBuilder {
+    private static final int DEFAULT_CAPACITY = 256;
+    private static final int DEFAULT_PACKET_CAPACITY = 16;
+    // header + timestamp + 3bytes message
+    private static final int MIN_PACKET_SIZE = 5;
+
+    // coalescing keys: control change, polyphonic key pressure, channel pressure, pitch bend
+    private static final int KEY_CONTROL_CHANGE = 0;
+    private static final int KEY_POLYPHONIC_AFTERTOUCH = KEY_CONTROL_CHANGE + 16 * 128;
+    private static final int KEY_CHANNEL_AFTERTOUCH = KEY_POLYPHONIC_AFTERTOUCH + 16 * 128;
+    private static final int KEY_PITCH_WHEEL = KEY_CHANNEL_AFTERTOUCH + 16;
+    private static final int KEY_COUNT = KEY_PITCH_WHEEL + 16;
+    private static final int KEY_NONE = -1;
+    private static final int KEY_TRANSPARENT = -2;
+
+    private byte[] data = new byte[DEFAULT_CAPACITY];
+    private int size = 0;
+    private int[] packetOffsets = new int[DEFAULT_PACKET_CAPACITY];
+    private int packetCount = 0;
+    // the timestamp high bits of the last packet
+    private int packetTimestampHigh;
+    // the last status byte and timestamp low byte in the last packet, -1: none
+    private int lastStatus = -1;
+    private int lastTimestampLow = -1;
+    // the position of the last data byte of the pending message for each key, valid if the generation matches
+    private final int[] valuePositions = new int[KEY_COUNT];
+    private final int[] valueGenerations = new int[KEY_COUNT];
+    private int generation = 1;
+
+    /**
+     * Appends the message
+     *
+     * @param timestamp  13bits BLE MIDI timestamp
+     * @param bufferSize the maximum packet size
+     * @param length     the message length: 1-3
+     * @param byte1      the first byte
+     * @param byte2      the second byte, used if length is 2 or more
+     * @param byte3      the third byte, used if length is 3
+     */
+    void append(long timestamp, int bufferSize, int length, int byte1, int byte2, int byte3) {
+        final int timestampHigh = (int) ((timestamp >> 7) & 0x3f);
+        final int timestampLow = timestampLow(timestamp);
+
+        boolean isNewPacket = packetCount == 0 || timestampHigh != packetTimestampHigh;
+        if (!isNewPacket) {
+            final int lastPacketLength = size - packetOffsets[packetCount - 1];
+            isNewPacket = lastPacketLength + encodedLength(timestampLow, length, byte1) > Math.max(bufferSize, MIN_PACKET_SIZE)
+                    // the receiver takes the decreasing timestamp in a packet as the wrap around of the low 7bits
+                    || timestampLow < lastTimestampLow;
+        }
+        if (isNewPacket) {
+            // the message doesn't fit in the last packet
+            startPacket(timestampHigh);
+        }
+
+        final boolean isRunningStatus = isRunningStatus(length, byte1);
+        ensureCapacity(size + encodedLength(timestampLow, length, byte1));
+        if (!isRunningStatus || timestampLow != lastTimestampLow) {
+            data[size++] = (byte) timestampLow;
+        }
+        if (!isRunningStatus) {
+            data[size++] = (byte) byte1;
+        }
+        if (length >= 2) {
+            data[size++] = (byte) byte2;
+        }
+        if (length >= 3) {
+            data[size++] = (byte) byte3;
+        }
+        lastStatus = byte1 & 0xff;
+        lastTimestampLow = timestampLow;
+
+        final int key = coalescingKey(length, byte1, byte2);
+        if (key >= 0) {
+            valuePositions[key] = size - 1;
+            valueGenerations[key] = generation;
+        } else if (key == KEY_NONE) {
+            // the later messages must not be moved before this message
+            resetCoalescing();
+        }
+    }
+
+    /**
+     * Obtains the timestamp low byte<br />
+     * 0xF7 is avoided as with SysEx: MIDI parser takes it as the end of SysEx.
+     *
+     * @param timestamp 13bits BLE MIDI timestamp
+     * @return the timestamp byte
+     */
+    static int timestampLow(long timestamp) {
+        final int timestampLow = (int) (0x80 | (timestamp & 0x7f));
+        return timestampLow == 0xf7 ? 0xf6 : timestampLow;
+    }
+
+    /**
+     * Replaces the value of the pending message with the same channel and controller, instead of appending the message<br />
+     * Applicable to control change, polyphonic key pressure, channel pressure and pitch bend.
+     * The message is not coalesced if any other message is appended after the pending one, except timing clock and active sensing.
+     * The replaced message keeps its timestamp.
+     *
+     * @param length the message length: 1-3
+     * @param byte1  the first byte
+     * @param byte2  the second byte, used if length is 2 or more
+     * @param byte3  the third byte, used if length is 3
+     * @return true if coalesced, false if the message must be appended
+     */
+    boolean coalesce(int length, int byte1, int byte2, int byte3) {
+        final int key = coalescingKey(length, byte1, byte2);
+        if (key < 0 || valueGenerations[key] != generation) {
+            return false;
+        }
+
+        final int position = valuePositions[key];
+        if (key >= KEY_PITCH_WHEEL) {
+            data[position - 1] = (byte) byte2;
+            data[position] = (byte) byte3;
+        } else if (key >= KEY_CHANNEL_AFTERTOUCH) {
+            data[position] = (byte) byte2;
+        } else {
+            data[position] = (byte) byte3;
+        }
+        return true;
+    }
+
+    /**
+     * Obtains the coalescing key of the message
+     *
+     * @param length the message length
+     * @param byte1  the first byte
+     * @param byte2  the second byte
+     * @return the key, {@link #KEY_TRANSPARENT} for the messages not affecting the order, {@link #KEY_NONE} for the other messages
+     */
+    private static int coalescingKey(int length, int byte1, int byte2) {
+        final int status = byte1 & 0xff;
+        final int channel = status & 0xf;
+        switch (status < 0xf0 ? status & 0xf0 : status) {
+            case 0xa0:
+                return length == 3 ? KEY_POLYPHONIC_AFTERTOUCH + channel * 128 + (byte2 & 0x7f) : KEY_NONE;
+            case 0xb0:
+                final int controller = byte2 & 0x7f;
+                if (length != 3 || controller >= 120) {
+                    // channel mode messages
+                    return KEY_NONE;
+                }
+                switch (controller) {
+                    case 6: // data entry MSB
+                    case 38: // data entry LSB
+                    case 96: // data increment
+                    case 97: // data decrement
+                    case 98: // NRPN LSB
+                    case 99: // NRPN MSB
+                    case 100: // RPN LSB
+                    case 101: // RPN MSB
+                        // the order is significant
+                        return KEY_NONE;
+                    default:
+                        return KEY_CONTROL_CHANGE + channel * 128 + controller;
+                }
+            case 0xd0:
+                return length == 2 ? KEY_CHANNEL_AFTERTOUCH + channel : KEY_NONE;
+            case 0xe0:
+                return length == 3 ? KEY_PITCH_WHEEL + channel : KEY_NONE;
+            case 0xf8: // timing clock
+            case 0xfe: // active sensing
+                return KEY_TRANSPARENT;
+            default:
+                return KEY_NONE;
+        }
+    }
+
+    /**
+     * Prevents the pending messages from being coalesced with the later messages
+     */
+    void resetCoalescing() {
+        generation++;
+        if (generation == 0) {
+            // wrapped around
+            Arrays.fill(valueGenerations, 0);
+            generation = 1;
+        }
+    }
+
+    /**
+     * Checks the status byte can be omitted<br />
+     * Only 3bytes channel messages are applicable: MIDI parser doesn't accept running status of 2bytes messages.
+     *
+     * @param length the message length
+     * @param status the status byte
+     * @return true if the status is same as the previous message in the packet
+     */
+    private boolean isRunningStatus(int length, int status) {
+        if (length != 3 || (status & 0xff) != lastStatus) {
+            return false;
+        }
+        switch (status & 0xf0) {
+            case 0x80: // note off
+            case 0x90: // note on
+            case 0xa0: // polyphonic key pressure
+            case 0xb0: // control change
+            case 0xe0: // pitch bend
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Calculates the encoded message length in the last packet
+     *
+     * @param timestampLow the timestamp low byte
+     * @param length       the message length
+     * @param status       the status byte
+     * @return the length in bytes
+     */
+    private int encodedLength(int timestampLow, int length, int status) {
+        if (!isRunningStatus(length, status)) {
+            // timestamp + message
+            return 1 + length;
+        }
+        return timestampLow == lastTimestampLow ? length - 1 : length;
+    }
+
+    private void startPacket(int timestampHigh) {
+        if (packetCount == packetOffsets.length) {
+            final int[] newPacketOffsets = new int[packetOffsets.length << 1];
+            System.arraycopy(packetOffsets, 0, newPacketOffsets, 0, packetCount);
+            packetOffsets = newPacketOffsets;
+        }
+        packetOffsets[packetCount++] = size;
+        packetTimestampHigh = timestampHigh;
+        lastStatus = -1;
+        lastTimestampLow = -1;
+
+        ensureCapacity(size + 1);
+        // header
+        data[size++] = (byte) (0x80 | timestampHigh);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > data.length) {
+            final byte[] newData = new byte[Math.max(capacity, data.length << 1)];
+            System.arraycopy(data, 0, newData, 0, size);
+            data = newData;
+        }
+    }
+
+    /**
+     * Removes all of the packets
+     */
+    void clear() {
+        size = 0;
+        packetCount = 0;
+        lastStatus = -1;
+        lastTimestampLow = -1;
+        resetCoalescing();
+    }
+
+    /**
+     * Obtains the size of all of the packets
+     *
+     * @return the size in bytes
+     */
+    int getSize() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return packetCount == 0;
+    }
+
+    int getPacketCount() {
+        return packetCount;
+    }
+
+    /**
+     * Obtains the packet length
+     *
+     * @param index the packet index
+     * @return the length in bytes
+     */
+    int getPacketLength(int index) {
+        return (index + 1 < packetCount ? packetOffsets[index + 1] : size) - packetOffsets[index];
+    }
+
+    /**
+     * Copies the packet
+     *
+     * @param index       the packet index
+     * @param destination the array to copy to, {@link #getPacketLength(int)} bytes at least
+     */
+    void copyPacket(int index, @NonNull byte[] destination) {
+        System.arraycopy(data, packetOffsets[index], destination, 0, getPacketLength(index));
+    }
+}
@@ -0,0 +1,85 @@
+package renetik.android.midi.bluetooth.device;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Splits SysEx message into BLE MIDI packets, one packet at a time<br />
+ * The first packet starts with the timestamp before 0xF0, and the last packet has the timestamp before 0xF7.
+ * The continuation packets have only the header byte and the message body.<br />
+ * Not thread safe, callers must synchronize.
+ */
+final class BleMidiSystemExclusivePacketizer {
+    // header + timestamp + 0xF7
+    private static final int MIN_PACKET_SIZE = 3;
+
+    private byte[] message = null;
+    // the position in the message with timestamps: timestamp, 0xF0, ..., timestamp, 0xF7
+    private int position;
+
+    /**
+     * Starts splitting the message
+     *
+     * @param message SysEx message, start with 'F0', and end with 'F7'
+     */
+    void start(@NonNull byte[] message) {
+        this.message = message;
+        position = 0;
+    }
+
+    /**
+     * Stops splitting the message, the remaining packets are not written
+     */
+    void abort() {
+        message = null;
+    }
+
+    /**
+     * Checks the message is being split
+     *
+     * @return true if the packets remain
+     */
+    boolean isActive() {
+        return message != null;
+    }
+
+    /**
+     * Obtains the length of the next packet
+     *
+     * @param bufferSize the maximum packet size
+     * @return the length in bytes, including the header
+     */
+    int getNextPacketLength(int bufferSize) {
+        final int remaining = message.length + 2 - position;
+        int length = Math.min(Math.max(bufferSize, MIN_PACKET_SIZE) - 1, remaining);
+        if (remaining - length == 1) {
+            // keep the timestamp with 0xF7 in the last packet
+            length--;
+        }
+        return 1 + length;
+    }
+
+    /**
+     * Writes the next packet
+     *
+     * @param timestamp   13bits BLE MIDI timestamp
+     * @param destination the array to write, {@link #getNextPacketLength(int)} bytes
+     */
+    void writePacket(long timestamp, @NonNull byte[] destination) {
+        // header
+        destination[0] = (byte) (0x80 | ((timestamp >> 7) & 0x3f));
+        for (int i = 1; i < destination.length; i++, position++) {
+            if (position == 0 || position == message.length) {
+                destination[i] = (byte) BleMidiPacketBuilder.timestampLow(timestamp);
+            } else if (position < message.length) {
+                destination[i] = message[position - 1];
+            } else {
+                // 0xF7
+                destination[i] = message[message.length - 1];
+            }
+        }
+
+        if (position == message.length + 2) {
+            message = null;
+        }
+    }
+}
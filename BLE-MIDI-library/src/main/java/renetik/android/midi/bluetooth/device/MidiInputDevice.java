@@ -4,6 +4,8 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import renetik.android.midi.bluetooth.listener.OnMidiInputEventListener;
+import renetik.android.midi.bluetooth.listener.OnMidiSystemExclusiveStreamListener;
+import renetik.android.midi.bluetooth.util.JitterBuffer;
 
 /**
  * Represents BLE MIDI Input Device
@@ -11,6 +13,10 @@ import renetik.android.midi.bluetooth.listener.OnMidiInputEventListener;
  * @author K.Shoji
  */
 public abstract class MidiInputDevice {
+    private final JitterBuffer jitterBuffer = new JitterBuffer();
+    private volatile boolean immediateDispatch = false;
+    private volatile OnMidiSystemExclusiveStreamListener systemExclusiveStreamListener = null;
+    private volatile int maxSystemExclusiveSize = Integer.MAX_VALUE;
 
     /**
      * Attaches {@link OnMidiInputEventListener}
@@ -35,6 +41,83 @@ public abstract class MidiInputDevice {
     @NonNull
     public abstract String deviceAddress();
 
+    /**
+     * Obtains the de-jitter buffer, to choose the buffering mode and to check the current buffer depth
+     *
+     * @return the jitter buffer of this device
+     */
+    @NonNull
+    public final JitterBuffer getJitterBuffer() {
+        return jitterBuffer;
+    }
+
+    /**
+     * Sets the event dispatching mode<br />
+     * With immediate dispatching, {@link OnMidiInputEventListener} is called synchronously on the Bluetooth callback thread which received the data.
+     * No timing reconstruction, no {@link JitterBuffer}: the lowest latency for live playing.<br />
+     * The listener must return quickly, not to block receiving the next data.
+     *
+     * @param immediateDispatch true: immediate dispatching, false: queued dispatching with timing reconstruction(default)
+     */
+    public final void setImmediateDispatch(boolean immediateDispatch) {
+        this.immediateDispatch = immediateDispatch;
+    }
+
+    /**
+     * Obtains the event dispatching mode
+     *
+     * @return true if the events are dispatched immediately
+     */
+    public final boolean isImmediateDispatch() {
+        return immediateDispatch;
+    }
+
+    /**
+     * Attaches {@link OnMidiSystemExclusiveStreamListener}<br />
+     * While attached, SysEx messages are delivered in chunks to this listener, and not to {@link OnMidiInputEventListener#onMidiSystemExclusive(MidiInputDevice, byte[])}.<br />
+     * Takes effect from the next SysEx message.
+     *
+     * @param systemExclusiveStreamListener the listener, null to receive the whole messages
+     */
+    public final void setOnMidiSystemExclusiveStreamListener(@Nullable OnMidiSystemExclusiveStreamListener systemExclusiveStreamListener) {
+        this.systemExclusiveStreamListener = systemExclusiveStreamListener;
+    }
+
+    /**
+     * Obtains the attached {@link OnMidiSystemExclusiveStreamListener}
+     *
+     * @return the listener, null if not attached
+     */
+    @Nullable
+    public final OnMidiSystemExclusiveStreamListener getOnMidiSystemExclusiveStreamListener() {
+        return systemExclusiveStreamListener;
+    }
+
+    /**
+     * Sets the maximum size of SysEx message, including 0xF0 and 0xF7<br />
+     * A longer message is aborted and the rest of it is discarded: not delivered to {@link OnMidiInputEventListener},
+     * and {@link OnMidiSystemExclusiveStreamListener#onMidiSystemExclusiveAbort(MidiInputDevice)} is called while streaming.<br />
+     * Takes effect from the next SysEx message.
+     *
+     * @param maxSystemExclusiveSize the size in bytes, default {@link Integer#MAX_VALUE}
+     * @throws IllegalArgumentException the size is less than 2
+     */
+    public final void setMaxSystemExclusiveSize(int maxSystemExclusiveSize) throws IllegalArgumentException {
+        if (maxSystemExclusiveSize < 2) {
+            throw new IllegalArgumentException("SysEx size must be 2 or more: " + maxSystemExclusiveSize);
+        }
+        this.maxSystemExclusiveSize = maxSystemExclusiveSize;
+    }
+
+    /**
+     * Obtains the maximum size of SysEx message
+     *
+     * @return the size in bytes
+     */
+    public final int getMaxSystemExclusiveSize() {
+        return maxSystemExclusiveSize;
+    }
+
     @NonNull
     @Override
     public final String toString() {
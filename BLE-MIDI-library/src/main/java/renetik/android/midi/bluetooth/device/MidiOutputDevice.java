@@ -2,11 +2,23 @@ package renetik.android.midi.bluetooth.device;
 
 import androidx.annotation.NonNull;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import renetik.android.midi.bluetooth.util.MidiClock;
+import renetik.android.midi.bluetooth.util.MidiEventQueue;
 
 /**
- * Represents BLE MIDI Output Device
+ * Represents BLE MIDI Output Device<br />
+ * The messages are transferred by the {@link MidiOutputScheduler} thread, in the order of the priority:<br />
+ * 1. System Real Time messages, even in the middle of SysEx<br />
+ * 2. The other short messages<br />
+ * 3. SysEx messages, one packet at a time between the messages above<br />
+ * A SysEx waiting while the short messages keep coming takes turns with them: it starts after the short messages waiting have been sent once.<br />
+ * The messages sent with sendAt are held until the lookahead before its time, then sent in the lanes above with the scheduled timestamp.<br />
+ * Each packet is transferred with flow control: waiting for the completion of the outstanding transfers, and retrying while the stack is busy.
  *
  * @author K.Shoji
  */
@@ -14,42 +26,140 @@ public abstract class MidiOutputDevice {
 
     public static final int MAX_TIMESTAMP = 8192;
 
-    final ByteArrayOutputStream transferDataStream = new ByteArrayOutputStream();
-    volatile boolean transferDataThreadAlive;
-    transient int writtenDataCount;
-    final Thread transferDataThread = new Thread(new Runnable() {
-        @Override
-        public void run() {
-            transferDataThreadAlive = true;
-
-            while (transferDataThreadAlive) {
-                synchronized (transferDataStream) {
-                    if (writtenDataCount > 0) {
-                        transferData(transferDataStream.toByteArray());
-                        transferDataStream.reset();
-                        writtenDataCount = 0;
-                    }
-                }
+    // the results of transferDataWithResult
+    protected static final int TRANSFER_SUCCEEDED = 0;
+    protected static final int TRANSFER_BUSY = 1;
+    protected static final int TRANSFER_FAILED = 2;
 
-                try {
-                    Thread.sleep(10);
-                } catch (InterruptedException ignored) {
-                }
-            }
-        }
-    });
+    // the packet is dropped when it can't be transferred in this time
+    private static final long TRANSFER_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+    private static final long TRANSFER_RETRY_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final int DEFAULT_LOOKAHEAD_MILLIS = 20;
+    // the scheduled message kind: the status byte, with the message length
+    private static final int SCHEDULED_LENGTH_SHIFT = 8;
+
+    private final MidiClock clock;
+    final Object packetLock = new Object();
+    // the packets being written, accessed with packetLock
+    BleMidiPacketBuilder realtimePacketBuilder = new BleMidiPacketBuilder();
+    BleMidiPacketBuilder packetBuilder = new BleMidiPacketBuilder();
+    // the time the first message was written to packetBuilder, in MidiClock#nanoTime(): the batch window starts
+    private long batchStartTime = 0;
+    final ArrayDeque<byte[]> systemExclusiveQueue = new ArrayDeque<>();
+    // the packets being transferred, accessed with transferLock
+    private BleMidiPacketBuilder transferPacketBuilder = new BleMidiPacketBuilder();
+    private final BleMidiSystemExclusivePacketizer systemExclusivePacketizer = new BleMidiSystemExclusivePacketizer();
+    volatile boolean transferAlive = true;
+    private volatile long batchWindowNanos = 0;
+    private volatile boolean controllerCoalescing = false;
+    // written with packetLock
+    private volatile long coalescedMessageCount = 0;
+    // reused write buffers indexed by the packet length, accessed with transferLock
+    private byte[][] writeBuffers = new byte[0][];
+    // flow control, 0: the completion is not tracked
+    private volatile int maxOutstandingTransfers = 0;
+    private final AtomicInteger outstandingTransfers = new AtomicInteger();
+    private final AtomicLong deliveredPacketCount = new AtomicLong();
+    private final AtomicLong retriedPacketCount = new AtomicLong();
+    private final AtomicLong droppedPacketCount = new AtomicLong();
+    // backpressure, accessed with packetLock
+    private volatile int maxPendingBytes = Integer.MAX_VALUE;
+    private volatile boolean blockingSend = false;
+    private int pendingSystemExclusiveBytes = 0;
+    private volatile long droppedMessageCount = 0;
+    // the messages sent with sendAt, accessed with packetLock
+    // the messages of the same time keep the order of sendAt: reordering note off before note on leaves the note stuck
+    private final MidiEventQueue scheduledMessages = new MidiEventQueue(64, false);
+    private volatile long lookaheadNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_LOOKAHEAD_MILLIS);
+    // the transfer state, accessed with transferLock by the scheduler thread
+    private final Object transferLock = new Object();
+    private int transferPacketIndex = 0;
+    // the packet waiting for the flow control, null: none
+    private byte[] pendingWriteBuffer = null;
+    private long pendingWriteDeadline = 0;
+    // the SysEx waiting is started next, even if short messages are waiting
+    private boolean systemExclusiveTurn = false;
+    // the scheduler thread serving this device, null: stopped
+    volatile MidiOutputScheduler.Worker transferWorker;
 
     protected MidiOutputDevice() {
-        transferDataThread.start();
+        this(MidiClock.SYSTEM);
     }
 
     /**
-     * Transfer data
+     * Constructor
+     *
+     * @param clock the clock for BLE MIDI timestamp encoding
+     */
+    protected MidiOutputDevice(@NonNull MidiClock clock) {
+        this.clock = clock;
+        MidiOutputScheduler.getInstance().register(this);
+    }
+
+    /**
+     * Transfer data<br />
+     * The array is reused for the next transfer after this method returns, don't keep the reference to send it later.
      *
      * @param writeBuffer byte array to write
      */
     protected abstract void transferData(@NonNull byte[] writeBuffer);
 
+    /**
+     * Transfer data, and tells the result for the flow control<br />
+     * The default implementation calls {@link #transferData(byte[])}, and regards it as succeeded.
+     * Override this to retry the busy transfers.
+     *
+     * @param writeBuffer byte array to write, reused for the next transfer after this method returns
+     * @return {@link #TRANSFER_SUCCEEDED}, {@link #TRANSFER_BUSY} to retry the same data later, or {@link #TRANSFER_FAILED} to drop the data
+     */
+    protected int transferDataWithResult(@NonNull byte[] writeBuffer) {
+        transferData(writeBuffer);
+        return TRANSFER_SUCCEEDED;
+    }
+
+    /**
+     * Sets the number of the transfers waiting for the completion, before transferring the next packet<br />
+     * The subclass must call {@link #onTransferCompleted(boolean)} for each succeeded transfer.
+     * If the completion doesn't come in time, the outstanding transfers are regarded as completed.
+     *
+     * @param maxOutstandingTransfers the number of transfers, 0: the completion is not tracked(default)
+     * @throws IllegalArgumentException the number is negative
+     */
+    protected final void setMaxOutstandingTransfers(int maxOutstandingTransfers) throws IllegalArgumentException {
+        if (maxOutstandingTransfers < 0) {
+            throw new IllegalArgumentException("Max outstanding transfers must not be negative: " + maxOutstandingTransfers);
+        }
+        this.maxOutstandingTransfers = maxOutstandingTransfers;
+    }
+
+    /**
+     * Notifies the transfer has been completed by the stack, to transfer the next packet
+     *
+     * @param succeeded true if the packet has been delivered
+     */
+    protected final void onTransferCompleted(boolean succeeded) {
+        if (maxOutstandingTransfers == 0) {
+            return;
+        }
+
+        int outstanding;
+        do {
+            outstanding = outstandingTransfers.get();
+            if (outstanding == 0) {
+                // regarded as completed by the timeout
+                return;
+            }
+        } while (!outstandingTransfers.compareAndSet(outstanding, outstanding - 1));
+
+        if (succeeded) {
+            deliveredPacketCount.incrementAndGet();
+        } else {
+            droppedPacketCount.incrementAndGet();
+        }
+        requestTransfer();
+    }
+
     /**
      * Obtains the device name
      *
@@ -80,29 +190,751 @@ public abstract class MidiOutputDevice {
     }
 
     /**
-     * Stops transfer thread
+     * Stops the transfer<br />
+     * Waits for the transfer in progress, the packets are not transferred after this method returns.
      */
     public void stop() {
-        transferDataThreadAlive = false;
+        transferAlive = false;
+        synchronized (packetLock) {
+            // release the blocked senders
+            packetLock.notifyAll();
+        }
+        MidiOutputScheduler.getInstance().unregister(this);
+        synchronized (transferLock) {
+            // the transfer in progress has finished
+            if (pendingWriteBuffer != null) {
+                pendingWriteBuffer = null;
+                droppedPacketCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Wakes up the scheduler thread serving this device
+     */
+    private void requestTransfer() {
+        final MidiOutputScheduler.Worker worker = transferWorker;
+        if (worker != null) {
+            worker.onTransferRequested();
+        }
+    }
+
+    /**
+     * Sets the time to wait for more messages after a message is written, to send them together in one transfer<br />
+     * The time is measured with the {@link MidiClock} of the device, from the first message written since the last transfer.
+     *
+     * @param batchWindowMillis the time in milliseconds, 0: transfer immediately(default)
+     * @throws IllegalArgumentException the time is negative
+     */
+    public final void setBatchWindowMillis(int batchWindowMillis) throws IllegalArgumentException {
+        if (batchWindowMillis < 0) {
+            throw new IllegalArgumentException("Batch window must not be negative: " + batchWindowMillis);
+        }
+        batchWindowNanos = TimeUnit.MILLISECONDS.toNanos(batchWindowMillis);
+    }
+
+    /**
+     * Obtains the time to wait for more messages
+     *
+     * @return the time in milliseconds
+     */
+    public final int getBatchWindowMillis() {
+        return (int) TimeUnit.NANOSECONDS.toMillis(batchWindowNanos);
+    }
+
+    /**
+     * Sets the coalescing of continuous controllers<br />
+     * While enabled, a control change, polyphonic key pressure, channel pressure or pitch bend message
+     * replaces the value of the same channel and controller message waiting for the transfer, instead of being sent after it.
+     * Only the newest value is sent when the messages are written faster than the transfer.<br />
+     * Other messages keep their order: the value isn't replaced over a note or a system message, except timing clock and active sensing.
+     * RPN, NRPN, data entry and channel mode messages are never coalesced.
+     *
+     * @param controllerCoalescing true: coalesce, false: send all of the messages(default)
+     */
+    public final void setControllerCoalescing(boolean controllerCoalescing) {
+        this.controllerCoalescing = controllerCoalescing;
+    }
+
+    /**
+     * Obtains the coalescing of continuous controllers
+     *
+     * @return true if coalescing
+     */
+    public final boolean isControllerCoalescing() {
+        return controllerCoalescing;
+    }
+
+    /**
+     * Obtains the number of the messages merged into the pending messages by coalescing, since this device was created
+     *
+     * @return the number of the messages not sent
+     */
+    public final long getCoalescedMessageCount() {
+        return coalescedMessageCount;
     }
 
-    private void storeTransferData(byte[] data) {
-        synchronized (transferDataStream) {
-            long timestamp = System.currentTimeMillis() % MAX_TIMESTAMP;
-            if (writtenDataCount == 0) {
-                // Store timestamp high
-                transferDataStream.write((byte) (0x80 | ((timestamp >> 7) & 0x3f)));
-                writtenDataCount++;
+    /**
+     * Sets the maximum size of the messages waiting for the transfer<br />
+     * When it's full, the sender is blocked or the message is dropped, see {@link #setBlockingSend(boolean)}.
+     * System Real Time messages are not limited.
+     *
+     * @param maxPendingBytes the size in bytes, default {@link Integer#MAX_VALUE}
+     * @throws IllegalArgumentException the size is less than 1
+     */
+    public final void setMaxPendingBytes(int maxPendingBytes) throws IllegalArgumentException {
+        if (maxPendingBytes < 1) {
+            throw new IllegalArgumentException("Max pending bytes must be 1 or more: " + maxPendingBytes);
+        }
+        this.maxPendingBytes = maxPendingBytes;
+    }
+
+    /**
+     * Obtains the maximum size of the messages waiting for the transfer
+     *
+     * @return the size in bytes
+     */
+    public final int getMaxPendingBytes() {
+        return maxPendingBytes;
+    }
+
+    /**
+     * Sets the behavior of sending the message while the messages waiting for the transfer are full
+     *
+     * @param blockingSend true: the sender waits for the space, false: the message is dropped(default)
+     */
+    public final void setBlockingSend(boolean blockingSend) {
+        this.blockingSend = blockingSend;
+    }
+
+    /**
+     * Obtains the behavior of sending the message while the messages waiting for the transfer are full
+     *
+     * @return true if the sender waits for the space
+     */
+    public final boolean isBlockingSend() {
+        return blockingSend;
+    }
+
+    /**
+     * Checks the messages waiting for the transfer are close to {@link #getMaxPendingBytes()}<br />
+     * The sender should slow down while true.
+     *
+     * @return true if the next 3 bytes message will be blocked or dropped
+     */
+    public final boolean isBackpressured() {
+        synchronized (packetLock) {
+            final int pendingBytes = getPendingBytes();
+            return pendingBytes > 0 && pendingBytes + 3 > maxPendingBytes;
+        }
+    }
+
+    /**
+     * Obtains the number of the messages dropped, because the messages waiting for the transfer were full
+     *
+     * @return the number of the messages
+     */
+    public final long getDroppedMessageCount() {
+        return droppedMessageCount;
+    }
+
+    /**
+     * Obtains the number of the packets delivered
+     *
+     * @return the number of the packets accepted by the stack, or completed if the completion is tracked
+     */
+    public final long getDeliveredPacketCount() {
+        return deliveredPacketCount.get();
+    }
+
+    /**
+     * Obtains the number of the retries, while the stack was busy
+     *
+     * @return the number of the retries
+     */
+    public final long getRetriedPacketCount() {
+        return retriedPacketCount.get();
+    }
+
+    /**
+     * Obtains the number of the packets dropped, failed or timed out
+     *
+     * @return the number of the packets
+     */
+    public final long getDroppedPacketCount() {
+        return droppedPacketCount.get();
+    }
+
+    /**
+     * Sets the time to send the messages of sendAt, before the scheduled time<br />
+     * The lookahead should cover the latency of the link, the receiver delays the messages by the timestamp.
+     *
+     * @param lookaheadMillis the time in milliseconds, default 20
+     * @throws IllegalArgumentException the time is negative, or exceeds the half of {@link #MAX_TIMESTAMP}
+     */
+    public final void setLookaheadMillis(int lookaheadMillis) throws IllegalArgumentException {
+        if (lookaheadMillis < 0 || lookaheadMillis >= MAX_TIMESTAMP / 2) {
+            throw new IllegalArgumentException("Lookahead must be 0 to " + (MAX_TIMESTAMP / 2 - 1) + ": " + lookaheadMillis);
+        }
+        lookaheadNanos = TimeUnit.MILLISECONDS.toNanos(lookaheadMillis);
+        requestTransfer();
+    }
+
+    /**
+     * Obtains the time to send the messages of sendAt, before the scheduled time
+     *
+     * @return the time in milliseconds
+     */
+    public final int getLookaheadMillis() {
+        return (int) TimeUnit.NANOSECONDS.toMillis(lookaheadNanos);
+    }
+
+    /**
+     * Obtains current BLE MIDI timestamp
+     *
+     * @return 13bits timestamp, in milliseconds
+     */
+    private long currentTimestamp() {
+        return toTimestamp(clock.nanoTime());
+    }
+
+    /**
+     * Converts the time to BLE MIDI timestamp
+     *
+     * @param nanoTime the time in {@link MidiClock#nanoTime()}
+     * @return 13bits timestamp, in milliseconds
+     */
+    private static long toTimestamp(long nanoTime) {
+        return TimeUnit.NANOSECONDS.toMillis(nanoTime) & (MAX_TIMESTAMP - 1);
+    }
+
+    /**
+     * Moves the scheduled messages within the lookahead to the packets, with packetLock
+     *
+     * @return the time until the next scheduled message is released in nanoseconds, {@link Long#MAX_VALUE} if no messages are scheduled
+     */
+    private long releaseScheduledMessages() {
+        final long releaseTime = clock.nanoTime() + lookaheadNanos;
+        while (!scheduledMessages.isEmpty()) {
+            final long timing = scheduledMessages.firstTiming();
+            if (timing > releaseTime) {
+                return timing - releaseTime;
+            }
+
+            final int kind = scheduledMessages.firstKind();
+            final int byte1 = kind & 0xff;
+            final BleMidiPacketBuilder builder = byte1 >= 0xf8 ? realtimePacketBuilder : packetBuilder;
+            if (builder == packetBuilder && builder.isEmpty()) {
+                batchStartTime = releaseTime - lookaheadNanos;
+            }
+            builder.append(toTimestamp(timing), getBufferSize(), kind >> SCHEDULED_LENGTH_SHIFT,
+                    byte1, scheduledMessages.firstData1(), scheduledMessages.firstData2());
+            // coalescing must not move the message from the scheduled time
+            builder.resetCoalescing();
+            scheduledMessages.removeFirst();
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Obtains the write buffer with the exact length, allocated only at the first use of the length
+     *
+     * @param length the packet length
+     * @return the write buffer
+     */
+    private byte[] obtainWriteBuffer(int length) {
+        if (length >= writeBuffers.length) {
+            final byte[][] newWriteBuffers = new byte[length + 1][];
+            System.arraycopy(writeBuffers, 0, newWriteBuffers, 0, writeBuffers.length);
+            writeBuffers = newWriteBuffers;
+        }
+        if (writeBuffers[length] == null) {
+            writeBuffers[length] = new byte[length];
+        }
+        return writeBuffers[length];
+    }
+
+    /**
+     * Transfers the next packet, called from {@link MidiOutputScheduler}<br />
+     * One packet at most is transferred in one call, the flow control waits are returned not to block the other devices.
+     *
+     * @return the time until the next call in nanoseconds, 0 to be called again soon, {@link Long#MAX_VALUE} to wait for the messages
+     */
+    long transferNextPacket() {
+        synchronized (transferLock) {
+            if (!transferAlive) {
+                return Long.MAX_VALUE;
+            }
+
+            if (pendingWriteBuffer != null) {
+                return transferPendingPacket();
+            }
+
+            if (transferPacketIndex < transferPacketBuilder.getPacketCount()) {
+                // the swapped packets, one transfer for each packet not to exceed the buffer size
+                final byte[] writeBuffer = obtainWriteBuffer(transferPacketBuilder.getPacketLength(transferPacketIndex));
+                transferPacketBuilder.copyPacket(transferPacketIndex, writeBuffer);
+                transferPacketIndex++;
+                startTransfer(writeBuffer);
+                return 0;
+            }
+            if (transferPacketIndex > 0) {
+                transferPacketBuilder.clear();
+                transferPacketIndex = 0;
+            }
+
+            final boolean hasRealtimeMessages;
+            final boolean hasMessages;
+            final long scheduledWaitNanos;
+            final long batchDeadline;
+            synchronized (packetLock) {
+                scheduledWaitNanos = releaseScheduledMessages();
+                hasRealtimeMessages = !realtimePacketBuilder.isEmpty();
+                hasMessages = !packetBuilder.isEmpty();
+                // from the first message written, not from this thread noticing it
+                batchDeadline = batchStartTime + batchWindowNanos;
+                if ((!hasMessages || systemExclusiveTurn) && !systemExclusivePacketizer.isActive() && !systemExclusiveQueue.isEmpty()) {
+                    // the next SysEx, into the leftover capacity, or its turn after the short messages
+                    systemExclusiveTurn = false;
+                    final byte[] systemExclusive = systemExclusiveQueue.poll();
+                    pendingSystemExclusiveBytes -= systemExclusive.length;
+                    systemExclusivePacketizer.start(systemExclusive);
+                    // the space for the blocked senders
+                    packetLock.notifyAll();
+                }
+
+                if (hasRealtimeMessages) {
+                    // swap the builders, not to block writing messages while transferring
+                    final BleMidiPacketBuilder writtenPacketBuilder = realtimePacketBuilder;
+                    realtimePacketBuilder = transferPacketBuilder;
+                    transferPacketBuilder = writtenPacketBuilder;
+                    return 0;
+                }
+            }
+
+            if (systemExclusivePacketizer.isActive()) {
+                // the other messages can't be sent until the end of SysEx
+                final byte[] writeBuffer = obtainWriteBuffer(systemExclusivePacketizer.getNextPacketLength(getBufferSize()));
+                systemExclusivePacketizer.writePacket(currentTimestamp(), writeBuffer);
+                startTransfer(writeBuffer);
+                return 0;
+            }
+
+            if (!hasMessages) {
+                // wait until data is written, or the next scheduled message
+                return scheduledWaitNanos;
+            }
+
+            final long waitNanos = batchDeadline - clock.nanoTime();
+            if (waitNanos > 0) {
+                // wait for more messages, to send them together
+                return Math.min(waitNanos, scheduledWaitNanos);
+            }
+
+            synchronized (packetLock) {
+                final BleMidiPacketBuilder writtenPacketBuilder = packetBuilder;
+                packetBuilder = transferPacketBuilder;
+                transferPacketBuilder = writtenPacketBuilder;
+                // the continuous short messages don't hold back the SysEx waiting
+                systemExclusiveTurn = !systemExclusiveQueue.isEmpty();
+                packetLock.notifyAll();
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * Drops the packets being transferred, after the transfer has thrown an exception<br />
+     * Called from {@link MidiOutputScheduler}, the messages written later are transferred as usual.
+     */
+    void abortTransfer() {
+        synchronized (transferLock) {
+            int droppedPackets = transferPacketBuilder.getPacketCount() - transferPacketIndex;
+            transferPacketBuilder.clear();
+            transferPacketIndex = 0;
+            if (pendingWriteBuffer != null) {
+                pendingWriteBuffer = null;
+                droppedPackets++;
+            }
+            if (systemExclusivePacketizer.isActive()) {
+                systemExclusivePacketizer.abort();
+                droppedPackets++;
+            }
+            droppedPacketCount.addAndGet(Math.max(droppedPackets, 0));
+        }
+    }
+
+    /**
+     * Starts transferring the packet with flow control, with transferLock
+     *
+     * @param writeBuffer the packet
+     */
+    private void startTransfer(@NonNull byte[] writeBuffer) {
+        pendingWriteBuffer = writeBuffer;
+        pendingWriteDeadline = System.nanoTime() + TRANSFER_TIMEOUT_NANOS;
+        transferPendingPacket();
+    }
+
+    /**
+     * Transfers the pending packet with flow control, with transferLock<br />
+     * Waits for the outstanding transfers to be completed, and retries while the stack is busy.
+     * The packet is dropped if it can't be transferred in {@link #TRANSFER_TIMEOUT_NANOS}.
+     *
+     * @return the time to wait before retrying in nanoseconds, 0 if the packet has been transferred or dropped
+     */
+    private long transferPendingPacket() {
+        final int maxOutstandingTransfers = this.maxOutstandingTransfers;
+        if (maxOutstandingTransfers > 0 && outstandingTransfers.get() >= maxOutstandingTransfers) {
+            final long waitNanos = pendingWriteDeadline - System.nanoTime();
+            if (waitNanos > 0) {
+                // woken up by onTransferCompleted
+                return waitNanos;
+            }
+            // the completion has been lost
+            outstandingTransfers.set(0);
+        }
+
+        if (maxOutstandingTransfers > 0) {
+            outstandingTransfers.incrementAndGet();
+        }
+        final int result;
+        try {
+            result = transferDataWithResult(pendingWriteBuffer);
+        } catch (RuntimeException e) {
+            if (maxOutstandingTransfers > 0) {
+                // no completion comes for the failed transfer
+                outstandingTransfers.decrementAndGet();
+            }
+            throw e;
+        }
+        if (result == TRANSFER_SUCCEEDED) {
+            if (maxOutstandingTransfers == 0) {
+                deliveredPacketCount.incrementAndGet();
+            }
+            pendingWriteBuffer = null;
+            return 0;
+        }
+
+        if (maxOutstandingTransfers > 0) {
+            outstandingTransfers.decrementAndGet();
+        }
+        if (result != TRANSFER_BUSY || pendingWriteDeadline - System.nanoTime() <= 0) {
+            droppedPacketCount.incrementAndGet();
+            pendingWriteBuffer = null;
+            return 0;
+        }
+        retriedPacketCount.incrementAndGet();
+        return TRANSFER_RETRY_INTERVAL_NANOS;
+    }
+
+    /**
+     * Obtains the size of the messages waiting for the transfer, with packetLock
+     *
+     * @return the size in bytes, except System Real Time messages
+     */
+    private int getPendingBytes() {
+        return packetBuilder.getSize() + pendingSystemExclusiveBytes;
+    }
+
+    /**
+     * Waits for the space of the message, with packetLock
+     *
+     * @param length the message length
+     * @return true if the message can be written, false if the message has been dropped
+     */
+    private boolean waitForPendingSpace(int length) {
+        int pendingBytes;
+        while ((pendingBytes = getPendingBytes()) > 0 && pendingBytes + length > maxPendingBytes) {
+            if (!blockingSend || !transferAlive) {
+                droppedMessageCount++;
+                return false;
             }
-            // timestamp low
-            transferDataStream.write((byte) (0x80 | (timestamp & 0x7f)));
-            writtenDataCount++;
             try {
-                transferDataStream.write(data);
-                writtenDataCount += data.length;
-            } catch (IOException ex) {
-                throw new RuntimeException(ex);
+                packetLock.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                droppedMessageCount++;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stores the message to the packet, no allocation
+     *
+     * @param length the message length: 1-3
+     * @param byte1  the first byte
+     * @param byte2  the second byte
+     * @param byte3  the third byte
+     */
+    private void storeTransferData(int length, int byte1, int byte2, int byte3) {
+        final boolean wakeUp;
+        synchronized (packetLock) {
+            wakeUp = appendTransferData(length, byte1, byte2, byte3);
+        }
+        if (wakeUp) {
+            requestTransfer();
+        }
+    }
+
+    /**
+     * Appends the message to the packet, with packetLock
+     *
+     * @param length the message length: 1-3
+     * @param byte1  the first byte
+     * @param byte2  the second byte
+     * @param byte3  the third byte
+     * @return true if the transfer thread must be woken up
+     */
+    private boolean appendTransferData(int length, int byte1, int byte2, int byte3) {
+        if (byte1 >= 0xf8) {
+            // System Real Time messages, to be sent first
+            final boolean wakeUp = realtimePacketBuilder.isEmpty();
+            realtimePacketBuilder.append(currentTimestamp(), getBufferSize(), length, byte1, byte2, byte3);
+            return wakeUp;
+        }
+        if (controllerCoalescing && packetBuilder.coalesce(length, byte1, byte2, byte3)) {
+            // the transfer thread is already woken up with the pending message
+            coalescedMessageCount++;
+            return false;
+        }
+        if (!waitForPendingSpace(length)) {
+            return false;
+        }
+        // the first data since the last transfer
+        final boolean wakeUp = packetBuilder.isEmpty();
+        if (wakeUp) {
+            batchStartTime = clock.nanoTime();
+        }
+        packetBuilder.append(currentTimestamp(), getBufferSize(), length, byte1, byte2, byte3);
+        return wakeUp;
+    }
+
+    /**
+     * Appends the SysEx to the queue, with packetLock
+     *
+     * @param message the SysEx, not shared with the caller
+     * @return true if the transfer thread must be woken up
+     */
+    private boolean appendSystemExclusive(@NonNull byte[] message) {
+        if (!waitForPendingSpace(message.length)) {
+            return false;
+        }
+        systemExclusiveQueue.add(message);
+        pendingSystemExclusiveBytes += message.length;
+        return true;
+    }
+
+    /**
+     * Obtains the length of the message
+     *
+     * @param status the status byte
+     * @return the length in bytes, 0 if the status is not a status byte, or SysEx
+     */
+    private static int getMessageLength(int status) {
+        if (status < 0x80 || status > 0xff) {
+            return 0;
+        }
+        if (status < 0xf0) {
+            switch (status & 0xf0) {
+                case 0xc0: // program change
+                case 0xd0: // channel pressure
+                    return 2;
+                default:
+                    return 3;
+            }
+        }
+        switch (status) {
+            case 0xf0: // SysEx
+            case 0xf7: // end of SysEx
+                return 0;
+            case 0xf1: // time code quarter frame
+            case 0xf3: // song select
+                return 2;
+            case 0xf2: // song position pointer
+                return 3;
+            default:
+                return 1;
+        }
+    }
+
+    /**
+     * Checks the range of the array
+     *
+     * @param arrayLength the array length
+     * @param offset      the start index
+     * @param count       the number of the elements
+     * @throws IndexOutOfBoundsException the range exceeds the array
+     */
+    private static void checkRange(int arrayLength, int offset, int count) throws IndexOutOfBoundsException {
+        if (offset < 0 || count < 0 || offset > arrayLength - count) {
+            throw new IndexOutOfBoundsException("offset: " + offset + ", count: " + count + ", array length: " + arrayLength);
+        }
+    }
+
+    /**
+     * Parses the MIDI byte stream
+     *
+     * @param stream the MIDI byte stream
+     * @param offset the start index
+     * @param length the length in bytes
+     * @param store  true: appends the messages, with packetLock, false: only validates the stream
+     * @return true if the transfer thread must be woken up
+     * @throws IllegalArgumentException the stream is malformed
+     */
+    private boolean storeStream(@NonNull byte[] stream, int offset, int length, boolean store) throws IllegalArgumentException {
+        final int end = offset + length;
+        boolean wakeUp = false;
+        int runningStatus = 0;
+        int index = offset;
+        while (index < end) {
+            int status = stream[index] & 0xff;
+            if (status >= 0xf8) {
+                // System Real Time messages, don't affect the running status
+                if (store) {
+                    wakeUp |= appendTransferData(1, status, 0, 0);
+                }
+                index++;
+                continue;
+            }
+
+            if (status == 0xf0) {
+                // find the end of SysEx, System Real Time messages may be in it
+                int systemExclusiveEnd = index + 1;
+                int realtimeCount = 0;
+                while (systemExclusiveEnd < end && (stream[systemExclusiveEnd] & 0xff) != 0xf7) {
+                    final int data = stream[systemExclusiveEnd] & 0xff;
+                    if (data >= 0xf8) {
+                        realtimeCount++;
+                    } else if (data >= 0x80) {
+                        break;
+                    }
+                    systemExclusiveEnd++;
+                }
+                if (systemExclusiveEnd == end || (stream[systemExclusiveEnd] & 0xff) != 0xf7) {
+                    throw new IllegalArgumentException("Unterminated SysEx at " + index);
+                }
+
+                if (store) {
+                    final byte[] message = new byte[systemExclusiveEnd + 1 - index - realtimeCount];
+                    int position = 0;
+                    for (int i = index; i <= systemExclusiveEnd; i++) {
+                        final int data = stream[i] & 0xff;
+                        if (data >= 0xf8) {
+                            wakeUp |= appendTransferData(1, data, 0, 0);
+                        } else {
+                            message[position++] = (byte) data;
+                        }
+                    }
+                    wakeUp |= appendSystemExclusive(message);
+                }
+                runningStatus = 0;
+                index = systemExclusiveEnd + 1;
+                continue;
+            }
+
+            if (status < 0x80) {
+                // running status
+                if (runningStatus == 0) {
+                    throw new IllegalArgumentException("Data byte without status byte at " + index);
+                }
+                status = runningStatus;
+            } else {
+                index++;
+                // System Common messages cancel the running status
+                runningStatus = status < 0xf0 ? status : 0;
             }
+
+            final int messageLength = getMessageLength(status);
+            if (messageLength == 0) {
+                throw new IllegalArgumentException("Invalid status byte at " + (index - 1));
+            }
+            int byte2 = 0;
+            int byte3 = 0;
+            for (int dataCount = 1; dataCount < messageLength; index++) {
+                if (index == end) {
+                    throw new IllegalArgumentException("Incomplete message at " + index);
+                }
+                final int data = stream[index] & 0xff;
+                if (data >= 0xf8) {
+                    // System Real Time messages in the middle of the message
+                    if (store) {
+                        wakeUp |= appendTransferData(1, data, 0, 0);
+                    }
+                    continue;
+                }
+                if (data >= 0x80) {
+                    throw new IllegalArgumentException("Incomplete message at " + index);
+                }
+                if (dataCount++ == 1) {
+                    byte2 = data;
+                } else {
+                    byte3 = data;
+                }
+            }
+
+            if (store) {
+                wakeUp |= appendTransferData(messageLength, status, byte2, byte3);
+            }
+        }
+        return wakeUp;
+    }
+
+    /**
+     * Sends the MIDI messages together<br />
+     * The messages are appended with one lock, into as few packets as possible.
+     * Each message is packed into an int: the status byte in bits 0-7, the second byte in bits 8-15, and the third byte in bits 16-23.
+     *
+     * @param messages the packed messages, except SysEx
+     * @param offset   the index of the first message
+     * @param count    the number of the messages
+     * @throws IllegalArgumentException  a message has no valid status byte, no messages are sent
+     * @throws IndexOutOfBoundsException the range exceeds the array
+     */
+    public final void sendMidiMessages(@NonNull int[] messages, int offset, int count) throws IllegalArgumentException, IndexOutOfBoundsException {
+        checkRange(messages.length, offset, count);
+        for (int i = offset; i < offset + count; i++) {
+            if (getMessageLength(messages[i] & 0xff) == 0) {
+                throw new IllegalArgumentException("Invalid status byte at " + i + ": " + (messages[i] & 0xff));
+            }
+        }
+
+        boolean wakeUp = false;
+        synchronized (packetLock) {
+            for (int i = offset; i < offset + count; i++) {
+                final int message = messages[i];
+                final int status = message & 0xff;
+                wakeUp |= appendTransferData(getMessageLength(status), status, (message >> 8) & 0x7f, (message >> 16) & 0x7f);
+            }
+        }
+        if (wakeUp) {
+            requestTransfer();
+        }
+    }
+
+    /**
+     * Sends the MIDI byte stream together<br />
+     * The messages are appended with one lock, into as few packets as possible.
+     * The stream may contain running status, SysEx, and System Real Time messages at any position.
+     *
+     * @param stream the MIDI byte stream
+     * @param offset the start index
+     * @param length the length in bytes
+     * @throws IllegalArgumentException  the stream is malformed, no messages are sent
+     * @throws IndexOutOfBoundsException the range exceeds the array
+     */
+    public final void sendMidiMessages(@NonNull byte[] stream, int offset, int length) throws IllegalArgumentException, IndexOutOfBoundsException {
+        checkRange(stream.length, offset, length);
+        // validate before sending, not to send the messages partially
+        storeStream(stream, offset, length, false);
+
+        final boolean wakeUp;
+        synchronized (packetLock) {
+            wakeUp = storeStream(stream, offset, length, true);
+        }
+        if (wakeUp) {
+            requestTransfer();
         }
     }
 
@@ -112,7 +944,7 @@ public abstract class MidiOutputDevice {
      * @param byte1 the first byte
      */
     private void sendMidiMessage(int byte1) {
-        storeTransferData(new byte[]{(byte) byte1});
+        storeTransferData(1, byte1, 0, 0);
     }
 
     /**
@@ -122,7 +954,7 @@ public abstract class MidiOutputDevice {
      * @param byte2 the second byte
      */
     private void sendMidiMessage(int byte1, int byte2) {
-        storeTransferData(new byte[]{(byte) byte1, (byte) byte2});
+        storeTransferData(2, byte1, byte2, 0);
     }
 
     /**
@@ -133,48 +965,112 @@ public abstract class MidiOutputDevice {
      * @param byte3 the third byte
      */
     private void sendMidiMessage(int byte1, int byte2, int byte3) {
-        storeTransferData(new byte[]{(byte) byte1, (byte) byte2, (byte) byte3});
+        storeTransferData(3, byte1, byte2, byte3);
     }
 
     /**
-     * SysEx
+     * Schedules MIDI message to output device.
      *
-     * @param systemExclusive : start with 'F0', and end with 'F7'
+     * @param nanoTime the time in {@link MidiClock#nanoTime()}
+     * @param length   the message length: 1-3
+     * @param byte1    the status byte
+     * @param byte2    the second byte
+     * @param byte3    the third byte
+     * @throws IllegalArgumentException the status byte is invalid
      */
-    public final void sendMidiSystemExclusive(@NonNull byte[] systemExclusive) {
-        byte[] timestampAddedSystemExclusive = new byte[systemExclusive.length + 2];
-        System.arraycopy(systemExclusive, 0, timestampAddedSystemExclusive, 1, systemExclusive.length);
-
-        long timestamp = System.currentTimeMillis() % MAX_TIMESTAMP;
-
-        // extend a byte for timestamp LSB, before the last byte('F7')
-        timestampAddedSystemExclusive[systemExclusive.length + 1] = systemExclusive[systemExclusive.length - 1];
-        // set first byte to timestamp LSB
-        timestampAddedSystemExclusive[0] = (byte) (0x80 | (timestamp & 0x7f));
+    private void storeScheduledData(long nanoTime, int length, int byte1, int byte2, int byte3) throws IllegalArgumentException {
+        if (byte1 < 0x80 || byte1 > 0xff || byte1 == 0xf0 || byte1 == 0xf7) {
+            throw new IllegalArgumentException("Invalid status byte: " + byte1);
+        }
 
-        // split into bufferSize bytes. BLE can't send more than (bufferSize: MTU - 3) bytes.
-        int bufferSize = getBufferSize();
-        byte[] writeBuffer = new byte[bufferSize];
-        for (int i = 0; i < timestampAddedSystemExclusive.length; i += (bufferSize - 1)) {
-            // Don't send 0xF7 timestamp LSB inside of SysEx(MIDI parser will fail) 0x7f -> 0x7e
-            timestampAddedSystemExclusive[systemExclusive.length] = (byte) (0x80 | (timestamp & 0x7e));
+        final boolean wakeUp;
+        synchronized (packetLock) {
+            scheduledMessages.add(byte1 | (length << SCHEDULED_LENGTH_SHIFT), byte2 & 0x7f, byte3 & 0x7f, null, nanoTime);
+            // earlier than the scheduled messages
+            wakeUp = scheduledMessages.firstTiming() == nanoTime;
+        }
+        if (wakeUp) {
+            requestTransfer();
+        }
+    }
 
-            if (i + (bufferSize - 1) <= timestampAddedSystemExclusive.length) {
-                System.arraycopy(timestampAddedSystemExclusive, i, writeBuffer, 1, (bufferSize - 1));
-            } else {
-                // last message
-                writeBuffer = new byte[timestampAddedSystemExclusive.length - i + 1];
+    /**
+     * Sends MIDI message at the time<br />
+     * The message is transferred {@link #getLookaheadMillis()} before the time, with the timestamp of the time.
+     * The messages are sent in the order of the time.
+     *
+     * @param nanoTime the time in {@link MidiClock#nanoTime()} of this device's clock
+     * @param byte1    the status byte, except SysEx
+     * @throws IllegalArgumentException the status byte is invalid
+     */
+    public final void sendAt(long nanoTime, int byte1) throws IllegalArgumentException {
+        storeScheduledData(nanoTime, 1, byte1, 0, 0);
+    }
 
-                System.arraycopy(timestampAddedSystemExclusive, i, writeBuffer, 1, timestampAddedSystemExclusive.length - i);
-            }
+    /**
+     * Sends MIDI message at the time<br />
+     * The message is transferred {@link #getLookaheadMillis()} before the time, with the timestamp of the time.
+     * The messages are sent in the order of the time.
+     *
+     * @param nanoTime the time in {@link MidiClock#nanoTime()} of this device's clock
+     * @param byte1    the status byte, except SysEx
+     * @param byte2    the second byte
+     * @throws IllegalArgumentException the status byte is invalid
+     */
+    public final void sendAt(long nanoTime, int byte1, int byte2) throws IllegalArgumentException {
+        storeScheduledData(nanoTime, 2, byte1, byte2, 0);
+    }
 
-            // timestamp MSB
-            writeBuffer[0] = (byte) (0x80 | ((timestamp >> 7) & 0x3f));
+    /**
+     * Sends MIDI message at the time<br />
+     * The message is transferred {@link #getLookaheadMillis()} before the time, with the timestamp of the time.
+     * The messages are sent in the order of the time.
+     *
+     * @param nanoTime the time in {@link MidiClock#nanoTime()} of this device's clock
+     * @param byte1    the status byte, except SysEx
+     * @param byte2    the second byte
+     * @param byte3    the third byte
+     * @throws IllegalArgumentException the status byte is invalid
+     */
+    public final void sendAt(long nanoTime, int byte1, int byte2, int byte3) throws IllegalArgumentException {
+        storeScheduledData(nanoTime, 3, byte1, byte2, byte3);
+    }
 
-            // immediately transfer data
-            transferData(writeBuffer);
+    /**
+     * Removes the messages scheduled with sendAt, not sent yet
+     */
+    public final void clearScheduledMessages() {
+        synchronized (packetLock) {
+            scheduledMessages.clear();
+        }
+    }
 
-            timestamp = System.currentTimeMillis() % MAX_TIMESTAMP;
+    /**
+     * SysEx<br />
+     * The message is copied and queued, this method returns before the transfer, or blocks while the messages waiting for the transfer are full.
+     * The SysEx is started when no short messages are waiting, or after the short messages waiting have been sent once.
+     * Only System Real Time messages are sent in the middle of it.
+     *
+     * @param systemExclusive : start with 'F0', and end with 'F7'
+     * @throws IllegalArgumentException the message doesn't start with 'F0', doesn't end with 'F7', or has a status byte in the data
+     */
+    public final void sendMidiSystemExclusive(@NonNull byte[] systemExclusive) throws IllegalArgumentException {
+        // checked on the caller's thread, the invalid message can't be transferred
+        if (systemExclusive.length < 2 || (systemExclusive[0] & 0xff) != 0xf0 || (systemExclusive[systemExclusive.length - 1] & 0xff) != 0xf7) {
+            throw new IllegalArgumentException("SysEx must start with F0, and end with F7");
+        }
+        for (int i = 1; i < systemExclusive.length - 1; i++) {
+            if ((systemExclusive[i] & 0x80) != 0) {
+                throw new IllegalArgumentException("Invalid SysEx data byte at " + i + ": " + (systemExclusive[i] & 0xff));
+            }
+        }
+        final byte[] message = systemExclusive.clone();
+        final boolean wakeUp;
+        synchronized (packetLock) {
+            wakeUp = appendSystemExclusive(message);
+        }
+        if (wakeUp) {
+            requestTransfer();
         }
     }
 
@@ -0,0 +1,287 @@
+package renetik.android.midi.bluetooth.device;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+import renetik.android.midi.bluetooth.util.Constants;
+
+/**
+ * Shared scheduler for MIDI output transfers<br />
+ * Every {@link MidiOutputDevice} registers to this scheduler, and its packets are transferred on the scheduler threads.<br />
+ * One thread serves its devices round-robin, one packet of each device at a time, so a busy device doesn't hold up the others.<br />
+ * The threads start with the first registered device, and finish with the last stopped device.
+ * Stopping a device waits for its transfer in progress, and the last one waits for the threads to finish.<br />
+ * An exception thrown by the transfer of a device is logged, and drops only the packets of that device being transferred.<br />
+ * The threads are daemon threads, a device not stopped doesn't keep the process alive.
+ */
+public final class MidiOutputScheduler {
+    private static final MidiOutputScheduler instance = new MidiOutputScheduler();
+    private static final int DEFAULT_THREAD_COUNT = 1;
+
+    private final List<MidiOutputDevice> devices = new ArrayList<>();
+    private Worker[] workers = new Worker[0];
+    private int threadCount = DEFAULT_THREAD_COUNT;
+    private int threadPriority = Thread.NORM_PRIORITY;
+
+    private MidiOutputScheduler() {
+    }
+
+    /**
+     * Obtains the scheduler instance
+     *
+     * @return the scheduler shared with all of the MIDI output devices
+     */
+    @NonNull
+    public static MidiOutputScheduler getInstance() {
+        return instance;
+    }
+
+    /**
+     * Sets the number of scheduler threads, default 1<br />
+     * When the threads are running, the registered devices are redistributed to the new threads.
+     *
+     * @param threadCount 1 or more
+     * @throws IllegalArgumentException the thread count is less than 1
+     */
+    public void setThreadCount(int threadCount) throws IllegalArgumentException {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("Thread count must be 1 or more: " + threadCount);
+        }
+        final Worker[] stoppedWorkers;
+        synchronized (this) {
+            if (this.threadCount == threadCount) {
+                return;
+            }
+            this.threadCount = threadCount;
+
+            if (workers.length == 0) {
+                return;
+            }
+            stoppedWorkers = stopWorkers();
+            startWorkers();
+        }
+        join(stoppedWorkers);
+    }
+
+    /**
+     * Obtains the number of scheduler threads
+     *
+     * @return the thread count
+     */
+    public synchronized int getThreadCount() {
+        return threadCount;
+    }
+
+    /**
+     * Sets the priority of scheduler threads, default {@link Thread#NORM_PRIORITY}
+     *
+     * @param threadPriority {@link Thread#MIN_PRIORITY} - {@link Thread#MAX_PRIORITY}
+     * @throws IllegalArgumentException the priority is out of range
+     */
+    public synchronized void setThreadPriority(int threadPriority) throws IllegalArgumentException {
+        if (threadPriority < Thread.MIN_PRIORITY || threadPriority > Thread.MAX_PRIORITY) {
+            throw new IllegalArgumentException("Thread priority out of range: " + threadPriority);
+        }
+        this.threadPriority = threadPriority;
+
+        for (Worker worker : workers) {
+            worker.thread.setPriority(threadPriority);
+        }
+    }
+
+    /**
+     * Obtains the priority of scheduler threads
+     *
+     * @return the thread priority
+     */
+    public synchronized int getThreadPriority() {
+        return threadPriority;
+    }
+
+    /**
+     * Obtains the number of registered devices
+     *
+     * @return the number of devices, served by the scheduler
+     */
+    public synchronized int getRegisteredDeviceCount() {
+        return devices.size();
+    }
+
+    /**
+     * Registers the device, and starts the threads if needed
+     *
+     * @param device the device
+     */
+    synchronized void register(@NonNull MidiOutputDevice device) {
+        if (devices.contains(device)) {
+            return;
+        }
+        devices.add(device);
+
+        if (workers.length == 0) {
+            startWorkers();
+        } else {
+            assign(device);
+        }
+    }
+
+    /**
+     * Unregisters the device, and stops the threads if no device remains<br />
+     * The stopped threads are joined, unless called from the scheduler thread.
+     *
+     * @param device the device
+     */
+    void unregister(@NonNull MidiOutputDevice device) {
+        Worker[] stoppedWorkers = null;
+        synchronized (this) {
+            if (!devices.remove(device)) {
+                return;
+            }
+
+            final Worker worker = device.transferWorker;
+            device.transferWorker = null;
+            if (worker != null) {
+                worker.remove(device);
+            }
+
+            if (devices.isEmpty()) {
+                stoppedWorkers = stopWorkers();
+            }
+        }
+        if (stoppedWorkers != null) {
+            join(stoppedWorkers);
+        }
+    }
+
+    private void startWorkers() {
+        workers = new Worker[threadCount];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker("MidiOutputScheduler-" + i, threadPriority);
+        }
+        for (MidiOutputDevice device : devices) {
+            assign(device);
+        }
+        for (Worker worker : workers) {
+            worker.thread.start();
+        }
+    }
+
+    @NonNull
+    private Worker[] stopWorkers() {
+        final Worker[] stoppedWorkers = workers;
+        for (Worker worker : stoppedWorkers) {
+            worker.isRunning = false;
+            LockSupport.unpark(worker.thread);
+        }
+        workers = new Worker[0];
+        return stoppedWorkers;
+    }
+
+    /**
+     * Waits for the threads to finish, without the lock of the scheduler
+     *
+     * @param stoppedWorkers the stopped threads
+     */
+    private static void join(@NonNull Worker[] stoppedWorkers) {
+        for (Worker worker : stoppedWorkers) {
+            if (worker.thread == Thread.currentThread()) {
+                // stopped from the transfer, the thread finishes after returning
+                continue;
+            }
+            try {
+                worker.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void assign(@NonNull MidiOutputDevice device) {
+        // the least loaded thread
+        Worker target = workers[0];
+        for (Worker worker : workers) {
+            if (worker.devices.length < target.devices.length) {
+                target = worker;
+            }
+        }
+        target.add(device);
+        device.transferWorker = target;
+    }
+
+    /**
+     * The thread transfers the packets of assigned devices
+     */
+    static final class Worker implements Runnable {
+        private final Thread thread;
+        private volatile boolean isRunning = true;
+        // replaced on change, not to allocate while iterating
+        private volatile MidiOutputDevice[] devices = new MidiOutputDevice[0];
+
+        Worker(@NonNull String name, int priority) {
+            thread = new Thread(this, name);
+            thread.setPriority(priority);
+            thread.setDaemon(true);
+        }
+
+        private void add(@NonNull MidiOutputDevice device) {
+            final MidiOutputDevice[] newDevices = new MidiOutputDevice[devices.length + 1];
+            System.arraycopy(devices, 0, newDevices, 0, devices.length);
+            newDevices[devices.length] = device;
+            devices = newDevices;
+            LockSupport.unpark(thread);
+        }
+
+        private void remove(@NonNull MidiOutputDevice device) {
+            final List<MidiOutputDevice> newDevices = new ArrayList<>();
+            for (MidiOutputDevice registered : devices) {
+                if (registered != device) {
+                    newDevices.add(registered);
+                }
+            }
+            devices = newDevices.toArray(new MidiOutputDevice[0]);
+        }
+
+        /**
+         * Called when the device has something to transfer<br />
+         * If the thread is in the middle of a pass, the next park returns immediately.
+         */
+        void onTransferRequested() {
+            LockSupport.unpark(thread);
+        }
+
+        @Override
+        public void run() {
+            while (isRunning) {
+                long waitNanos = Long.MAX_VALUE;
+                for (MidiOutputDevice device : devices) {
+                    try {
+                        waitNanos = Math.min(waitNanos, device.transferNextPacket());
+                    } catch (RuntimeException e) {
+                        // the transfer of this device failed, the thread keeps serving the others
+                        Log.e(Constants.TAG, "MIDI output transfer threw an exception", e);
+                        device.abortTransfer();
+                        waitNanos = 0;
+                    }
+                }
+                if (waitNanos <= 0) {
+                    // more packets to transfer
+                    continue;
+                }
+
+                if (waitNanos == Long.MAX_VALUE) {
+                    // sleep until a message comes
+                    LockSupport.park(this);
+                } else {
+                    // sleep until the batch window, the scheduled message, the flow control, or a message comes
+                    LockSupport.parkNanos(this, waitNanos);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package renetik.android.midi.bluetooth.listener;
+
+import androidx.annotation.NonNull;
+
+import renetik.android.midi.bluetooth.device.MidiInputDevice;
+
+/**
+ * Listener for streaming SysEx messages<br />
+ * The message is delivered in chunks as the BLE packets arrive, without collecting the whole message.<br />
+ * The methods are called on the thread receiving the data, not through the event queue.
+ * The events received before are fired first without waiting for their timing, so the order of messages is kept.
+ */
+public interface OnMidiSystemExclusiveStreamListener {
+
+    /**
+     * SysEx message has started
+     *
+     * @param sender the device sent this message
+     */
+    void onMidiSystemExclusiveStart(@NonNull MidiInputDevice sender);
+
+    /**
+     * Part of SysEx message has been received<br />
+     * The first chunk starts with 0xF0, and the last chunk ends with 0xF7.<br />
+     * The array is reused after this method returns, copy the data to keep it.
+     *
+     * @param sender the device sent this message
+     * @param data   the array containing the chunk
+     * @param offset the start offset of the chunk
+     * @param length the length of the chunk
+     */
+    void onMidiSystemExclusiveChunk(@NonNull MidiInputDevice sender, @NonNull byte[] data, int offset, int length);
+
+    /**
+     * SysEx message has been completed
+     *
+     * @param sender the device sent this message
+     */
+    void onMidiSystemExclusiveEnd(@NonNull MidiInputDevice sender);
+
+    /**
+     * SysEx message has been aborted, because it exceeded {@link MidiInputDevice#getMaxSystemExclusiveSize()}<br />
+     * The rest of the message is discarded.
+     *
+     * @param sender the device sent this message
+     */
+    void onMidiSystemExclusiveAbort(@NonNull MidiInputDevice sender);
+}
@@ -36,11 +36,17 @@ public class PeripheralMidiOutputDevice extends MidiOutputDevice {
 
     @Override
     public void transferData(@NonNull byte[] writeBuffer) throws SecurityException {
+        transferDataWithResult(writeBuffer);
+    }
+
+    @Override
+    protected int transferDataWithResult(@NonNull byte[] writeBuffer) throws SecurityException {
         midiOutputCharacteristic.setValue(writeBuffer);
         try {
-            bluetoothGattServer.notifyCharacteristicChanged(bluetoothDevice, midiOutputCharacteristic, false);
+            // false if the previous notification is in progress
+            return bluetoothGattServer.notifyCharacteristicChanged(bluetoothDevice, midiOutputCharacteristic, false) ? TRANSFER_SUCCEEDED : TRANSFER_BUSY;
         } catch (Throwable ignored) {
-            // ignore it
+            return TRANSFER_FAILED;
         }
     }
 
@@ -347,6 +347,9 @@ public abstract class PeripheralProvider {
             midiInputDevicesMap.clear();
         }
         synchronized (midiOutputDevicesMap) {
+            for (MidiOutputDevice midiOutputDevice : midiOutputDevicesMap.values()) {
+                midiOutputDevice.stop();
+            }
             midiOutputDevicesMap.clear();
         }
     }
@@ -359,10 +362,17 @@ public abstract class PeripheralProvider {
 
     protected void onDeviceDisconnected(@NonNull BluetoothDevice device) {
         synchronized (midiInputDevicesMap) {
-            midiInputDevicesMap.remove(device.getAddress());
+            MidiInputDevice midiInputDevice = midiInputDevicesMap.remove(device.getAddress());
+            if (midiInputDevice != null) {
+                ((PeripheralMidiInputDevice) midiInputDevice).stop();
+                midiInputDevice.setOnMidiInputEventListener(null);
+            }
         }
         synchronized (midiOutputDevicesMap) {
-            midiOutputDevicesMap.remove(device.getAddress());
+            MidiOutputDevice midiOutputDevice = midiOutputDevicesMap.remove(device.getAddress());
+            if (midiOutputDevice != null) {
+                midiOutputDevice.stop();
+            }
         }
         synchronized (bluetoothDevicesMap) {
             bluetoothDevicesMap.remove(device.getAddress());
@@ -18,10 +18,9 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
 
-import jp.kshoji.blemidi.R;
-
 /**
- * Utility for finding BLE MIDI devices
+ * Utility for finding BLE MIDI devices<br />
+ * The UUIDs are looked up in {@link BleUuidIndex}, register the vendor UUIDs there.
  *
  * @author K.Shoji
  */
@@ -36,21 +35,37 @@ public final class BleMidiDeviceUtils {
      */
     @Nullable
     public static BluetoothGattService midiService(@NonNull final Context context, @NonNull final BluetoothGatt bluetoothGatt) {
-        List<BluetoothGattService> services = bluetoothGatt.getServices();
-        String[] uuidStringArray = context.getResources().getStringArray(R.array.uuidListForService);
-
-        for (BluetoothGattService service : services) {
-            for (String uuidString : uuidStringArray) {
-                UUID uuid = BleUuidUtils.fromString(uuidString);
-                if (BleUuidUtils.matches(service.getUuid(), uuid)) {
-                    return service;
-                }
+        BleUuidIndex uuidIndex = BleUuidIndex.getInstance(context);
+
+        for (BluetoothGattService service : bluetoothGatt.getServices()) {
+            if (uuidIndex.contains(BleUuidIndex.TYPE_SERVICE, service.getUuid())) {
+                return service;
             }
         }
 
         return null;
     }
 
+    /**
+     * Obtains BluetoothGattService for MIDI, looking up the known UUID first
+     *
+     * @param context       the context
+     * @param bluetoothGatt the gatt of device
+     * @param serviceUuid   the UUID resolved at the previous connection, null if unknown
+     * @return null if no service found
+     */
+    @Nullable
+    public static BluetoothGattService midiService(@NonNull final Context context, @NonNull final BluetoothGatt bluetoothGatt, @Nullable final UUID serviceUuid) {
+        if (serviceUuid != null) {
+            BluetoothGattService service = bluetoothGatt.getService(serviceUuid);
+            if (service != null) {
+                return service;
+            }
+        }
+
+        return midiService(context, bluetoothGatt);
+    }
+
     /**
      * Obtains BluetoothGattCharacteristic for MIDI Input
      *
@@ -60,21 +75,37 @@ public final class BleMidiDeviceUtils {
      */
     @Nullable
     public static BluetoothGattCharacteristic inputCharacteristic(@NonNull final Context context, @NonNull final BluetoothGattService bluetoothGattService) {
-        List<BluetoothGattCharacteristic> characteristics = bluetoothGattService.getCharacteristics();
-        String[] uuidStringArray = context.getResources().getStringArray(R.array.uuidListForInputCharacteristic);
-
-        for (BluetoothGattCharacteristic characteristic : characteristics) {
-            for (String uuidString : uuidStringArray) {
-                UUID uuid = BleUuidUtils.fromString(uuidString);
-                if (BleUuidUtils.matches(characteristic.getUuid(), uuid)) {
-                    return characteristic;
-                }
+        BleUuidIndex uuidIndex = BleUuidIndex.getInstance(context);
+
+        for (BluetoothGattCharacteristic characteristic : bluetoothGattService.getCharacteristics()) {
+            if (uuidIndex.contains(BleUuidIndex.TYPE_INPUT_CHARACTERISTIC, characteristic.getUuid())) {
+                return characteristic;
             }
         }
 
         return null;
     }
 
+    /**
+     * Obtains BluetoothGattCharacteristic for MIDI Input, looking up the known UUID first
+     *
+     * @param context              the context
+     * @param bluetoothGattService the gatt service of device
+     * @param characteristicUuid   the UUID resolved at the previous connection, null if unknown
+     * @return null if no characteristic found
+     */
+    @Nullable
+    public static BluetoothGattCharacteristic inputCharacteristic(@NonNull final Context context, @NonNull final BluetoothGattService bluetoothGattService, @Nullable final UUID characteristicUuid) {
+        if (characteristicUuid != null) {
+            BluetoothGattCharacteristic characteristic = bluetoothGattService.getCharacteristic(characteristicUuid);
+            if (characteristic != null) {
+                return characteristic;
+            }
+        }
+
+        return inputCharacteristic(context, bluetoothGattService);
+    }
+
     /**
      * Obtains BluetoothGattCharacteristic for MIDI Output
      *
@@ -84,21 +115,37 @@ public final class BleMidiDeviceUtils {
      */
     @Nullable
     public static BluetoothGattCharacteristic getMidiOutputCharacteristic(@NonNull final Context context, @NonNull final BluetoothGattService bluetoothGattService) {
-        List<BluetoothGattCharacteristic> characteristics = bluetoothGattService.getCharacteristics();
-        String[] uuidStringArray = context.getResources().getStringArray(R.array.uuidListForOutputCharacteristic);
-
-        for (BluetoothGattCharacteristic characteristic : characteristics) {
-            for (String uuidString : uuidStringArray) {
-                UUID uuid = BleUuidUtils.fromString(uuidString);
-                if (BleUuidUtils.matches(characteristic.getUuid(), uuid)) {
-                    return characteristic;
-                }
+        BleUuidIndex uuidIndex = BleUuidIndex.getInstance(context);
+
+        for (BluetoothGattCharacteristic characteristic : bluetoothGattService.getCharacteristics()) {
+            if (uuidIndex.contains(BleUuidIndex.TYPE_OUTPUT_CHARACTERISTIC, characteristic.getUuid())) {
+                return characteristic;
             }
         }
 
         return null;
     }
 
+    /**
+     * Obtains BluetoothGattCharacteristic for MIDI Output, looking up the known UUID first
+     *
+     * @param context              the context
+     * @param bluetoothGattService the gatt service of device
+     * @param characteristicUuid   the UUID resolved at the previous connection, null if unknown
+     * @return null if no characteristic found
+     */
+    @Nullable
+    public static BluetoothGattCharacteristic getMidiOutputCharacteristic(@NonNull final Context context, @NonNull final BluetoothGattService bluetoothGattService, @Nullable final UUID characteristicUuid) {
+        if (characteristicUuid != null) {
+            BluetoothGattCharacteristic characteristic = bluetoothGattService.getCharacteristic(characteristicUuid);
+            if (characteristic != null) {
+                return characteristic;
+            }
+        }
+
+        return getMidiOutputCharacteristic(context, bluetoothGattService);
+    }
+
     /**
      * Obtains list of ScanFilter for BLE MIDI
      *
@@ -110,9 +157,8 @@ public final class BleMidiDeviceUtils {
     public static List<ScanFilter> getBleMidiScanFilters(@NonNull final Context context) {
         List<ScanFilter> scanFilters = new ArrayList<>();
 
-        String[] uuidStringArray = context.getResources().getStringArray(R.array.uuidListForService);
-        for (String uuidString : uuidStringArray) {
-            scanFilters.add(new ScanFilter.Builder().setServiceUuid(ParcelUuid.fromString(uuidString)).build());
+        for (UUID uuid : BleUuidIndex.getInstance(context).getUuids(BleUuidIndex.TYPE_SERVICE)) {
+            scanFilters.add(new ScanFilter.Builder().setServiceUuid(new ParcelUuid(uuid)).build());
         }
 
         return scanFilters;
@@ -129,11 +175,10 @@ public final class BleMidiDeviceUtils {
     public static AssociationRequest getBleMidiAssociationRequest(@NonNull final Context context) {
         final AssociationRequest.Builder associationRequestBuilder = new AssociationRequest.Builder();
 
-        String[] uuidStringArray = context.getResources().getStringArray(R.array.uuidListForService);
-        for (String uuidString : uuidStringArray) {
+        for (UUID uuid : BleUuidIndex.getInstance(context).getUuids(BleUuidIndex.TYPE_SERVICE)) {
             associationRequestBuilder.addDeviceFilter(
                     new BluetoothLeDeviceFilter.Builder().setScanFilter(
-                            new ScanFilter.Builder().setServiceUuid(ParcelUuid.fromString(uuidString)).build()
+                            new ScanFilter.Builder().setServiceUuid(new ParcelUuid(uuid)).build()
                     ).build()
             );
         }
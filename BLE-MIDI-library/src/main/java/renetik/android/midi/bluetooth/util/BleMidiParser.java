@@ -6,14 +6,11 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.List;
+import java.nio.ByteBuffer;
 
 import renetik.android.midi.bluetooth.device.MidiInputDevice;
 import renetik.android.midi.bluetooth.listener.OnMidiInputEventListener;
+import renetik.android.midi.bluetooth.listener.OnMidiSystemExclusiveStreamListener;
 
 /**
  * BLE MIDI Parser<br />
@@ -30,13 +27,60 @@ public final class BleMidiParser {
     // states
     private static final int MIDI_STATE_TIMESTAMP = 0;
     private static final int MIDI_STATE_WAIT = 1;
-    private static final int MIDI_STATE_SIGNAL_2BYTES_2 = 21;
-    private static final int MIDI_STATE_SIGNAL_3BYTES_2 = 31;
-    private static final int MIDI_STATE_SIGNAL_3BYTES_3 = 32;
-    private static final int MIDI_STATE_SIGNAL_SYSEX = 41;
-    // for Timestamp
-    private static final int MAX_TIMESTAMP = 8192;
-    private static final int BUFFER_LENGTH_MILLIS = 50;
+    private static final int MIDI_STATE_DATA_1 = 2;
+    private static final int MIDI_STATE_DATA_2 = 3;
+    private static final int MIDI_STATE_SIGNAL_SYSEX = 4;
+    // streaming SysEx: 0xF7 has come, the held byte is the timestamp unless 0xF7 follows
+    private static final int MIDI_STATE_SIGNAL_SYSEX_END = 5;
+    // SysEx exceeded the maximum size: discard until 0xF7
+    private static final int MIDI_STATE_SIGNAL_SYSEX_ABORTED = 6;
+    // actions for the status bytes
+    private static final byte STATUS_IGNORE = 0;
+    private static final byte STATUS_1BYTE = 1;
+    private static final byte STATUS_2BYTES = 2;
+    private static final byte STATUS_3BYTES = 3;
+    private static final byte STATUS_CONTROL_CHANGE = 4;
+    private static final byte STATUS_SYSEX = 5;
+    // the action for each status byte, data bytes and undefined status are ignored
+    private static final byte[] STATUS_ACTIONS = new byte[256];
+
+    static {
+        for (int status = 0x80; status < 0xf0; status++) {
+            switch (status & 0xf0) {
+                case 0xb0:
+                    STATUS_ACTIONS[status] = STATUS_CONTROL_CHANGE;
+                    break;
+                case 0xc0: // program change
+                case 0xd0: // channel after-touch
+                    STATUS_ACTIONS[status] = STATUS_2BYTES;
+                    break;
+                default:
+                    // note off, note on, polyphonic key pressure, pitch bend
+                    STATUS_ACTIONS[status] = STATUS_3BYTES;
+                    break;
+            }
+        }
+        STATUS_ACTIONS[0xf0] = STATUS_SYSEX;
+        // 0xf1 MIDI Time Code Quarter Frame, 0xf3 Song Select
+        STATUS_ACTIONS[0xf1] = STATUS_2BYTES;
+        STATUS_ACTIONS[0xf3] = STATUS_2BYTES;
+        // 0xf2 Song Position Pointer
+        STATUS_ACTIONS[0xf2] = STATUS_3BYTES;
+        // 0xf6 Tune Request, 0xf8 Timing Clock, 0xfa Start, 0xfb Continue, 0xfc Stop, 0xfe Active Sensing, 0xff Reset
+        STATUS_ACTIONS[0xf6] = STATUS_1BYTE;
+        STATUS_ACTIONS[0xf8] = STATUS_1BYTE;
+        STATUS_ACTIONS[0xfa] = STATUS_1BYTE;
+        STATUS_ACTIONS[0xfb] = STATUS_1BYTE;
+        STATUS_ACTIONS[0xfc] = STATUS_1BYTE;
+        STATUS_ACTIONS[0xfe] = STATUS_1BYTE;
+        STATUS_ACTIONS[0xff] = STATUS_1BYTE;
+    }
+
+    // the pooled buffer size for streaming SysEx
+    private static final int SYSTEM_EXCLUSIVE_CHUNK_SIZE = 512;
+    // event kinds, combined with the status byte of Control Change
+    private static final int EVENT_RPN = 0x100;
+    private static final int EVENT_NRPN = 0x200;
     private final SparseIntArray rpnCacheMsb = new SparseIntArray();
     private final SparseIntArray rpnCacheLsb = new SparseIntArray();
     private final SparseIntArray nrpnCacheMsb = new SparseIntArray();
@@ -45,10 +89,22 @@ public final class BleMidiParser {
     private final Object systemExclusiveLock = new Object();
     private final ReusableByteArrayOutputStream systemExclusiveStream = new ReusableByteArrayOutputStream();
     private final ReusableByteArrayOutputStream systemExclusiveRecoveryStream = new ReusableByteArrayOutputStream();
+    private int maxSystemExclusiveSize;
+    // for streaming SysEx messages
+    private final byte[] systemExclusiveChunk = new byte[SYSTEM_EXCLUSIVE_CHUNK_SIZE];
+    private int systemExclusiveChunkLength;
+    // the last received byte is held back, it may be the timestamp before 0xF7, -1: none
+    private int systemExclusivePendingByte;
+    private int systemExclusiveSize;
+    private OnMidiSystemExclusiveStreamListener systemExclusiveStreamListener = null;
     private final MidiInputDevice sender;
-    private final EventDequeueRunnable eventDequeueRunnable;
-    private final Thread eventDequeueThread;
-    private final Collection<MidiEventWithTiming> queuedEventList = new ArrayList<>();
+    private final MidiClock clock;
+    private final JitterBuffer jitterBuffer;
+    private final MidiEventQueue queuedEventList = new MidiEventQueue();
+    // serializes the event firing, while the parser moves between dispatcher threads
+    private final Object dispatchLock = new Object();
+    // the dispatcher thread serving this parser, null after stopped
+    volatile MidiInputDispatcher.Worker dispatchWorker;
     // MIDI event message
     private int midiEventKind;
     private int midiEventNote;
@@ -63,8 +119,7 @@ public final class BleMidiParser {
     private int nrpnFunctionLsb = 0x7f;
     private int midiState;
     private int timestamp = 0;
-    private int lastTimestamp;
-    private long lastTimestampRecorded = 0;
+    private long lastEventTiming = Long.MIN_VALUE;
     private int zeroTimestampCount = 0;
     private Boolean isTimestampAlwaysZero = null;
     private OnMidiInputEventListener midiInputEventListener = null;
@@ -75,16 +130,26 @@ public final class BleMidiParser {
      * @param sender the sender
      */
     public BleMidiParser(@NonNull final MidiInputDevice sender) {
+        this(sender, MidiClock.SYSTEM);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param sender the sender
+     * @param clock  the clock for timestamp reconstruction, and event firing
+     */
+    public BleMidiParser(@NonNull final MidiInputDevice sender, @NonNull final MidiClock clock) {
         this.sender = sender;
+        this.clock = clock;
+        this.jitterBuffer = sender.getJitterBuffer();
 
         midiState = MIDI_STATE_TIMESTAMP;
         midiEventKind = 0;
         midiEventNote = 0;
         midiEventVelocity = 0;
 
-        eventDequeueRunnable = new EventDequeueRunnable();
-        eventDequeueThread = new Thread(eventDequeueRunnable, "EventDequeueThread");
-        eventDequeueThread.start();
+        MidiInputDispatcher.getInstance().register(this);
     }
 
     /**
@@ -97,811 +162,739 @@ public final class BleMidiParser {
     }
 
     /**
-     * Stops the internal Thread
+     * Obtains the timestamp of the last parsed event, for the tests<br />
+     * Valid on the thread calling parse, while the event is fired with {@link MidiInputDevice#isImmediateDispatch()}.
+     *
+     * @return BLE MIDI timestamp
+     */
+    int getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Unregisters from {@link MidiInputDispatcher}, the queued events are discarded
      */
     public void stop() {
-        if (eventDequeueRunnable != null) {
-            eventDequeueRunnable.isRunning = false;
+        MidiInputDispatcher.getInstance().unregister(this);
+        synchronized (queuedEventList) {
+            queuedEventList.clear();
         }
     }
 
     /**
      * Parses MIDI events
      *
-     * @param header the header bits
-     * @param event  the event byte
+     * @param timestampHigh the header bits, shifted to the upper part of timestamp
+     * @param event         the event byte
      */
-    private void parseMidiEvent(final int header, final byte event) {
+    private void parseMidiEvent(final int timestampHigh, final byte event) {
         final int midiEvent = event & 0xff;
 
-        if (midiState == MIDI_STATE_TIMESTAMP) {
-            if ((midiEvent & 0x80) == 0) {
-                // running status
-                midiState = MIDI_STATE_WAIT;
-            }
-
-            if (midiEvent == 0xf7) {
-                // is this end of SysEx???
-                synchronized (systemExclusiveLock) {
-                    if (systemExclusiveRecoveryStream.size() > 0) {
-                        // previous SysEx has been failed, due to timestamp was 0xF7
-                        // process SysEx again
-
-                        // last written byte is for timestamp
-                        int removed = systemExclusiveRecoveryStream.replaceLastByte(midiEvent);
-                        if (removed >= 0) {
-                            timestamp = ((header & 0x3f) << 7) | (removed & 0x7f);
-
-                            addEventToQueue(new MidiEventWithTiming(systemExclusiveRecoveryStream.toByteArray(), timestamp) {
-                                @Override
-                                public void run() {
-                                    if (midiInputEventListener != null) {
-                                        midiInputEventListener.onMidiSystemExclusive(sender, getArray());
-                                    }
-                                }
-                            });
-                        }
+        switch (midiState) {
+            case MIDI_STATE_TIMESTAMP:
+                if (midiEvent == 0xf7) {
+                    // is this end of SysEx???
+                    recoverSystemExclusive(timestampHigh);
+                    // process next byte with state: MIDI_STATE_TIMESTAMP
+                    return;
+                }
 
+                // there is no error. reset the stream for recovery
+                if (systemExclusiveRecoveryStream.size() > 0) {
+                    synchronized (systemExclusiveLock) {
                         systemExclusiveRecoveryStream.reset();
                     }
                 }
 
-                // process next byte with state: MIDI_STATE_TIMESTAMP
+                if ((midiEvent & 0x80) != 0) {
+                    timestamp = timestampHigh | (midiEvent & 0x7f);
+                    midiState = MIDI_STATE_WAIT;
+                    return;
+                }
+
+                // running status without timestamp
+                midiState = MIDI_STATE_WAIT;
+                parseRunningStatus(midiEvent);
+                return;
+            case MIDI_STATE_WAIT:
+                if ((midiEvent & 0x80) == 0) {
+                    parseRunningStatus(midiEvent);
+                    return;
+                }
+
+                switch (STATUS_ACTIONS[midiEvent]) {
+                    case STATUS_1BYTE:
+                        addEventToQueue(midiEvent, 0, 0, null, timestamp);
+                        midiState = MIDI_STATE_TIMESTAMP;
+                        break;
+                    case STATUS_2BYTES:
+                    case STATUS_3BYTES:
+                    case STATUS_CONTROL_CHANGE:
+                        midiEventKind = midiEvent;
+                        midiState = MIDI_STATE_DATA_1;
+                        break;
+                    case STATUS_SYSEX:
+                        startSystemExclusive();
+                        break;
+                    case STATUS_IGNORE:
+                    default:
+                        break;
+                }
+                return;
+            case MIDI_STATE_DATA_1:
+                midiEventNote = midiEvent;
+                if (STATUS_ACTIONS[midiEventKind] == STATUS_2BYTES) {
+                    addEventToQueue(midiEventKind, midiEventNote, 0, null, timestamp);
+                    midiState = MIDI_STATE_TIMESTAMP;
+                } else {
+                    midiState = MIDI_STATE_DATA_2;
+                }
+                return;
+            case MIDI_STATE_DATA_2:
+                switch (STATUS_ACTIONS[midiEventKind]) {
+                    case STATUS_3BYTES:
+                        midiEventVelocity = midiEvent;
+                        addEventToQueue(midiEventKind, midiEventNote, midiEventVelocity, null, timestamp);
+                        break;
+                    case STATUS_CONTROL_CHANGE:
+                        midiEventVelocity = midiEvent;
+                        addControlChange();
+                        break;
+                    default:
+                        // illegal state: running status of 2bytes pattern, or no previous status
+                        break;
+                }
                 midiState = MIDI_STATE_TIMESTAMP;
                 return;
-            } else {
-                // there is no error. reset the stream for recovery
-                synchronized (systemExclusiveLock) {
-                    if (systemExclusiveRecoveryStream.size() > 0) {
-                        systemExclusiveRecoveryStream.reset();
+            case MIDI_STATE_SIGNAL_SYSEX:
+                if (midiEvent >= 0xf8 && parseSystemExclusiveRealtime(timestampHigh, midiEvent)) {
+                    return;
+                }
+                if (systemExclusiveStreamListener != null) {
+                    parseSystemExclusiveStream(midiEvent);
+                } else {
+                    parseSystemExclusive(timestampHigh, midiEvent);
+                }
+                return;
+            case MIDI_STATE_SIGNAL_SYSEX_END:
+                if (midiEvent == 0xf7) {
+                    // the previous 0xF7 was the timestamp
+                    if (systemExclusiveSize >= maxSystemExclusiveSize) {
+                        abortSystemExclusive();
+                        midiState = MIDI_STATE_TIMESTAMP;
+                        return;
                     }
+                    appendSystemExclusiveChunk(systemExclusivePendingByte);
+                    timestamp = timestampHigh | 0x77;
+                    endSystemExclusiveStream();
+                } else {
+                    timestamp = timestampHigh | (systemExclusivePendingByte & 0x7f);
+                    endSystemExclusiveStream();
+                    // the byte after SysEx
+                    parseMidiEvent(timestampHigh, event);
                 }
-            }
+                return;
+            case MIDI_STATE_SIGNAL_SYSEX_ABORTED:
+                if (midiEvent == 0xf7) {
+                    midiState = MIDI_STATE_TIMESTAMP;
+                }
+                return;
+            default:
+                break;
         }
+    }
 
-        if (midiState == MIDI_STATE_TIMESTAMP) {
-            timestamp = ((header & 0x3f) << 7) | (midiEvent & 0x7f);
-            midiState = MIDI_STATE_WAIT;
-        } else if (midiState == MIDI_STATE_WAIT) {
-            switch (midiEvent & 0xf0) {
-                case 0xf0: {
-                    switch (midiEvent) {
-                        case 0xf0:
-                            synchronized (systemExclusiveLock) {
-                                systemExclusiveStream.reset();
-                                systemExclusiveStream.write(midiEvent);
-                                systemExclusiveRecoveryStream.reset();
-                            }
-                            midiState = MIDI_STATE_SIGNAL_SYSEX;
-                            break;
-
-                        case 0xf1:
-                        case 0xf3:
-                            // 0xf1 MIDI Time Code Quarter Frame. : 2bytes
-                            // 0xf3 Song Select. : 2bytes
-                            midiEventKind = midiEvent;
-                            midiState = MIDI_STATE_SIGNAL_2BYTES_2;
-                            break;
-
-                        case 0xf2:
-                            // 0xf2 Song Position Pointer. : 3bytes
-                            midiEventKind = midiEvent;
-                            midiState = MIDI_STATE_SIGNAL_3BYTES_2;
-                            break;
-
-                        case 0xf6:
-                            // 0xf6 Tune Request : 1byte
-                            addEventToQueue(new MidiEventWithTiming(timestamp) {
-                                @Override
-                                public void run() {
-                                    if (midiInputEventListener != null) {
-                                        midiInputEventListener.onMidiTuneRequest(sender);
-                                    }
-                                }
-                            });
-                            midiState = MIDI_STATE_TIMESTAMP;
-                            break;
-                        case 0xf8:
-                            // 0xf8 Timing Clock : 1byte
-                            addEventToQueue(new MidiEventWithTiming(timestamp) {
-                                @Override
-                                public void run() {
-                                    if (midiInputEventListener != null) {
-                                        midiInputEventListener.onMidiTimingClock(sender);
-                                    }
-                                }
-                            });
-                            midiState = MIDI_STATE_TIMESTAMP;
-                            break;
-                        case 0xfa:
-                            // 0xfa Start : 1byte
-                            addEventToQueue(new MidiEventWithTiming(timestamp) {
-                                @Override
-                                public void run() {
-                                    if (midiInputEventListener != null) {
-                                        midiInputEventListener.onMidiStart(sender);
-                                    }
-                                }
-                            });
-                            midiState = MIDI_STATE_TIMESTAMP;
-                            break;
-                        case 0xfb:
-                            // 0xfb Continue : 1byte
-                            addEventToQueue(new MidiEventWithTiming(timestamp) {
-                                @Override
-                                public void run() {
-                                    if (midiInputEventListener != null) {
-                                        midiInputEventListener.onMidiContinue(sender);
-                                    }
-                                }
-                            });
-                            midiState = MIDI_STATE_TIMESTAMP;
-                            break;
-                        case 0xfc:
-                            // 0xfc Stop : 1byte
-                            addEventToQueue(new MidiEventWithTiming(timestamp) {
-                                @Override
-                                public void run() {
-                                    if (midiInputEventListener != null) {
-                                        midiInputEventListener.onMidiStop(sender);
-                                    }
-                                }
-                            });
-                            midiState = MIDI_STATE_TIMESTAMP;
-                            break;
-                        case 0xfe:
-                            // 0xfe Active Sensing : 1byte
-                            addEventToQueue(new MidiEventWithTiming(timestamp) {
-                                @Override
-                                public void run() {
-                                    if (midiInputEventListener != null) {
-                                        midiInputEventListener.onMidiActiveSensing(sender);
-                                    }
-                                }
-                            });
-                            midiState = MIDI_STATE_TIMESTAMP;
-                            break;
-                        case 0xff:
-                            // 0xff Reset : 1byte
-                            addEventToQueue(new MidiEventWithTiming(timestamp) {
-                                @Override
-                                public void run() {
-                                    if (midiInputEventListener != null) {
-                                        midiInputEventListener.onMidiReset(sender);
-                                    }
-                                }
-                            });
-                            midiState = MIDI_STATE_TIMESTAMP;
-                            break;
-
-                        default:
-                            break;
-                    }
+    /**
+     * Parses the data byte without status byte
+     *
+     * @param midiEvent the data byte
+     */
+    private void parseRunningStatus(final int midiEvent) {
+        if ((midiEventKind & 0xf0) != 0xf0) {
+            // previous event kind is multi-bytes pattern
+            midiEventNote = midiEvent;
+            midiState = MIDI_STATE_DATA_2;
+        }
+    }
+
+    /**
+     * Processes Control Change, with RPN/NRPN messages
+     */
+    private void addControlChange() {
+        // process RPN/NRPN messages
+        switch (midiEventNote) {
+            case 6: {
+                // RPN/NRPN value MSB
+                rpnNrpnValueMsb = midiEventVelocity & 0x7f;
+                if (rpnStatus == RPN_STATUS_RPN) {
+                    rpnNrpnFunction = ((rpnFunctionMsb & 0x7f) << 7) | (rpnFunctionLsb & 0x7f);
+                    rpnCacheMsb.put(rpnNrpnFunction, rpnNrpnValueMsb);
+                    rpnNrpnValueLsb = rpnCacheLsb.get(rpnNrpnFunction, 0/*if not found*/);
+                    addEventToQueue(EVENT_RPN | midiEventKind, rpnNrpnFunction, (rpnNrpnValueMsb << 7 | rpnNrpnValueLsb), null, timestamp);
+                } else if (rpnStatus == RPN_STATUS_NRPN) {
+                    rpnNrpnFunction = ((nrpnFunctionMsb & 0x7f) << 7) | (nrpnFunctionLsb & 0x7f);
+                    nrpnCacheMsb.put(rpnNrpnFunction, rpnNrpnValueMsb);
+                    rpnNrpnValueLsb = nrpnCacheLsb.get(rpnNrpnFunction, 0/*if not found*/);
+                    addEventToQueue(EVENT_NRPN | midiEventKind, rpnNrpnFunction, (rpnNrpnValueMsb << 7 | rpnNrpnValueLsb), null, timestamp);
                 }
                 break;
-                case 0x80:
-                case 0x90:
-                case 0xa0:
-                case 0xb0:
-                case 0xe0:
-                    // 3bytes pattern
-                    midiEventKind = midiEvent;
-                    midiState = MIDI_STATE_SIGNAL_3BYTES_2;
-                    break;
-                case 0xc0: // program change
-                case 0xd0: // channel after-touch
-                    // 2bytes pattern
-                    midiEventKind = midiEvent;
-                    midiState = MIDI_STATE_SIGNAL_2BYTES_2;
-                    break;
-                default:
-                    // 0x00 - 0x70: running status
-                    if ((midiEventKind & 0xf0) != 0xf0) {
-                        // previous event kind is multi-bytes pattern
-                        midiEventNote = midiEvent;
-                        midiState = MIDI_STATE_SIGNAL_3BYTES_3;
-                    }
-                    break;
             }
-        } else if (midiState == MIDI_STATE_SIGNAL_2BYTES_2) {
-            switch (midiEventKind & 0xf0) {
-                // 2bytes pattern
-                case 0xc0: // program change
-                    midiEventNote = midiEvent;
-                    addEventToQueue(new MidiEventWithTiming(midiEventKind, midiEventNote, timestamp) {
-                        @Override
-                        public void run() {
-                            if (midiInputEventListener != null) {
-                                midiInputEventListener.onMidiProgramChange(sender, getArg1() & 0xf, getArg2());
-                            }
-                        }
-                    });
-                    midiState = MIDI_STATE_TIMESTAMP;
-                    break;
-                case 0xd0: // channel after-touch
-                    midiEventNote = midiEvent;
-                    addEventToQueue(new MidiEventWithTiming(midiEventKind, midiEventNote, timestamp) {
-                        @Override
-                        public void run() {
-                            if (midiInputEventListener != null) {
-                                midiInputEventListener.onMidiChannelAftertouch(sender, getArg1() & 0xf, getArg2());
-                            }
-                        }
-                    });
-                    midiState = MIDI_STATE_TIMESTAMP;
-                    break;
-                case 0xf0: {
-                    switch (midiEventKind) {
-                        case 0xf1:
-                            // 0xf1 MIDI Time Code Quarter Frame. : 2bytes
-                            midiEventNote = midiEvent;
-                            addEventToQueue(new MidiEventWithTiming(midiEventNote, timestamp) {
-                                @Override
-                                public void run() {
-                                    if (midiInputEventListener != null) {
-                                        midiInputEventListener.onMidiTimeCodeQuarterFrame(sender, getArg1());
-                                    }
-                                }
-                            });
-                            midiState = MIDI_STATE_TIMESTAMP;
-                            break;
-                        case 0xf3:
-                            // 0xf3 Song Select. : 2bytes
-                            midiEventNote = midiEvent;
-                            addEventToQueue(new MidiEventWithTiming(midiEventNote, timestamp) {
-                                @Override
-                                public void run() {
-                                    if (midiInputEventListener != null) {
-                                        midiInputEventListener.onMidiSongSelect(sender, getArg1());
-                                    }
-                                }
-                            });
-                            midiState = MIDI_STATE_TIMESTAMP;
-                            break;
-                        default:
-                            // illegal state
-                            midiState = MIDI_STATE_TIMESTAMP;
-                            break;
-                    }
+            case 38: {
+                // RPN/NRPN value LSB
+                rpnNrpnValueLsb = midiEventVelocity & 0x7f;
+                if (rpnStatus == RPN_STATUS_RPN) {
+                    rpnNrpnFunction = ((rpnFunctionMsb & 0x7f) << 7) | (rpnFunctionLsb & 0x7f);
+                    rpnNrpnValueMsb = rpnCacheMsb.get(rpnNrpnFunction, 0/*if not found*/);
+                    rpnCacheLsb.put(rpnNrpnFunction, rpnNrpnValueLsb);
+                    addEventToQueue(EVENT_RPN | midiEventKind, rpnNrpnFunction, (rpnNrpnValueMsb << 7 | rpnNrpnValueLsb), null, timestamp);
+                } else if (rpnStatus == RPN_STATUS_NRPN) {
+                    rpnNrpnFunction = ((nrpnFunctionMsb & 0x7f) << 7) | (nrpnFunctionLsb & 0x7f);
+                    rpnNrpnValueMsb = nrpnCacheMsb.get(rpnNrpnFunction, 0/*if not found*/);
+                    nrpnCacheLsb.put(rpnNrpnFunction, rpnNrpnValueLsb);
+                    addEventToQueue(EVENT_NRPN | midiEventKind, rpnNrpnFunction, (rpnNrpnValueMsb << 7 | rpnNrpnValueLsb), null, timestamp);
                 }
                 break;
-                default:
-                    // illegal state
-                    midiState = MIDI_STATE_TIMESTAMP;
-                    break;
             }
-        } else if (midiState == MIDI_STATE_SIGNAL_3BYTES_2) {
-            switch (midiEventKind & 0xf0) {
-                case 0x80:
-                case 0x90:
-                case 0xa0:
-                case 0xb0:
-                case 0xe0:
-                case 0xf0:
-                    // 3bytes pattern
-                    midiEventNote = midiEvent;
-                    midiState = MIDI_STATE_SIGNAL_3BYTES_3;
-                    break;
-                default:
-                    // illegal state
-                    midiState = MIDI_STATE_TIMESTAMP;
-                    break;
+            case 98: {
+                // NRPN parameter number LSB
+                nrpnFunctionLsb = midiEventVelocity & 0x7f;
+                rpnStatus = RPN_STATUS_NRPN;
+                break;
             }
-        } else if (midiState == MIDI_STATE_SIGNAL_3BYTES_3) {
-            switch (midiEventKind & 0xf0) {
-                // 3bytes pattern
-                case 0x80: // note off
-                    midiEventVelocity = midiEvent;
-                    addEventToQueue(new MidiEventWithTiming(midiEventKind, midiEventNote, midiEventVelocity, timestamp) {
-                        @Override
-                        public void run() {
-                            if (midiInputEventListener != null) {
-                                midiInputEventListener.onMidiNoteOff(sender, getArg1() & 0xf, getArg2(), getArg3());
-                            }
-                        }
-                    });
-                    midiState = MIDI_STATE_TIMESTAMP;
-                    break;
-                case 0x90: // note on
-                    midiEventVelocity = midiEvent;
-                    addEventToQueue(new MidiEventWithTiming(midiEventKind, midiEventNote, midiEventVelocity, timestamp) {
-                        @Override
-                        public void run() {
-                            if (midiInputEventListener != null) {
-                                if (getArg3() == 0) {
-                                    midiInputEventListener.onMidiNoteOff(sender, getArg1() & 0xf, getArg2(), getArg3());
-                                } else {
-                                    midiInputEventListener.onMidiNoteOn(sender, getArg1() & 0xf, getArg2(), getArg3());
-                                }
-                            }
-                        }
-                    });
-                    midiState = MIDI_STATE_TIMESTAMP;
-                    break;
-                case 0xa0: // control polyphonic key pressure
-                    midiEventVelocity = midiEvent;
-                    addEventToQueue(new MidiEventWithTiming(midiEventKind, midiEventNote, midiEventVelocity, timestamp) {
-                        @Override
-                        public void run() {
-                            if (midiInputEventListener != null) {
-                                midiInputEventListener.onMidiPolyphonicAftertouch(sender, getArg1() & 0xf, getArg2(), getArg3());
-                            }
-                        }
-                    });
-                    midiState = MIDI_STATE_TIMESTAMP;
-                    break;
-                case 0xb0: // control change
-                    midiEventVelocity = midiEvent;
-
-                    // process RPN/NRPN messages
-                    switch (midiEventNote) {
-                        case 6: {
-                            // RPN/NRPN value MSB
-                            rpnNrpnValueMsb = midiEventVelocity & 0x7f;
-                            if (rpnStatus == RPN_STATUS_RPN) {
-                                rpnNrpnFunction = ((rpnFunctionMsb & 0x7f) << 7) | (rpnFunctionLsb & 0x7f);
-                                rpnCacheMsb.put(rpnNrpnFunction, rpnNrpnValueMsb);
-                                rpnNrpnValueLsb = rpnCacheLsb.get(rpnNrpnFunction, 0/*if not found*/);
-                                addEventToQueue(new MidiEventWithTiming(midiEventKind, rpnNrpnFunction, (rpnNrpnValueMsb << 7 | rpnNrpnValueLsb), timestamp) {
-                                    @Override
-                                    public void run() {
-                                        if (midiInputEventListener != null) {
-                                            midiInputEventListener.onRPNMessage(sender, getArg1() & 0xf, getArg2() & 0x3fff, getArg3() & 0x3fff);
-                                        }
-                                    }
-                                });
-                            } else if (rpnStatus == RPN_STATUS_NRPN) {
-                                rpnNrpnFunction = ((nrpnFunctionMsb & 0x7f) << 7) | (nrpnFunctionLsb & 0x7f);
-                                nrpnCacheMsb.put(rpnNrpnFunction, rpnNrpnValueMsb);
-                                rpnNrpnValueLsb = nrpnCacheLsb.get(rpnNrpnFunction, 0/*if not found*/);
-                                addEventToQueue(new MidiEventWithTiming(midiEventKind, rpnNrpnFunction, (rpnNrpnValueMsb << 7 | rpnNrpnValueLsb), timestamp) {
-                                    @Override
-                                    public void run() {
-                                        if (midiInputEventListener != null) {
-                                            midiInputEventListener.onNRPNMessage(sender, getArg1() & 0xf, getArg2() & 0x3fff, getArg3() & 0x3fff);
-                                        }
-                                    }
-                                });
-                            }
-                            break;
-                        }
-                        case 38: {
-                            // RPN/NRPN value LSB
-                            rpnNrpnValueLsb = midiEventVelocity & 0x7f;
-                            if (rpnStatus == RPN_STATUS_RPN) {
-                                rpnNrpnFunction = ((rpnFunctionMsb & 0x7f) << 7) | (rpnFunctionLsb & 0x7f);
-                                rpnNrpnValueMsb = rpnCacheMsb.get(rpnNrpnFunction, 0/*if not found*/);
-                                rpnCacheLsb.put(rpnNrpnFunction, rpnNrpnValueLsb);
-                                addEventToQueue(new MidiEventWithTiming(midiEventKind, rpnNrpnFunction, (rpnNrpnValueMsb << 7 | rpnNrpnValueLsb), timestamp) {
-                                    @Override
-                                    public void run() {
-                                        if (midiInputEventListener != null) {
-                                            midiInputEventListener.onRPNMessage(sender, getArg1() & 0xf, getArg2() & 0x3fff, getArg3() & 0x3fff);
-                                        }
-                                    }
-                                });
-                            } else if (rpnStatus == RPN_STATUS_NRPN) {
-                                rpnNrpnFunction = ((nrpnFunctionMsb & 0x7f) << 7) | (nrpnFunctionLsb & 0x7f);
-                                rpnNrpnValueMsb = nrpnCacheMsb.get(rpnNrpnFunction, 0/*if not found*/);
-                                nrpnCacheLsb.put(rpnNrpnFunction, rpnNrpnValueLsb);
-                                addEventToQueue(new MidiEventWithTiming(midiEventKind, rpnNrpnFunction, (rpnNrpnValueMsb << 7 | rpnNrpnValueLsb), timestamp) {
-                                    @Override
-                                    public void run() {
-                                        if (midiInputEventListener != null) {
-                                            midiInputEventListener.onNRPNMessage(sender, getArg1() & 0xf, getArg2() & 0x3fff, getArg3() & 0x3fff);
-                                        }
-                                    }
-                                });
-                            }
-                            break;
-                        }
-                        case 98: {
-                            // NRPN parameter number LSB
-                            nrpnFunctionLsb = midiEventVelocity & 0x7f;
-                            rpnStatus = RPN_STATUS_NRPN;
-                            break;
-                        }
-                        case 99: {
-                            // NRPN parameter number MSB
-                            nrpnFunctionMsb = midiEventVelocity & 0x7f;
-                            rpnStatus = RPN_STATUS_NRPN;
-                            break;
-                        }
-                        case 100: {
-                            // RPN parameter number LSB
-                            rpnFunctionLsb = midiEventVelocity & 0x7f;
-                            if (rpnFunctionMsb == 0x7f && rpnFunctionLsb == 0x7f) {
-                                rpnStatus = RPN_STATUS_NONE;
-                            } else {
-                                rpnStatus = RPN_STATUS_RPN;
-                            }
-                            break;
-                        }
-                        case 101: {
-                            // RPN parameter number MSB
-                            rpnFunctionMsb = midiEventVelocity & 0x7f;
-                            if (rpnFunctionMsb == 0x7f && rpnFunctionLsb == 0x7f) {
-                                rpnStatus = RPN_STATUS_NONE;
-                            } else {
-                                rpnStatus = RPN_STATUS_RPN;
-                            }
-                            break;
-                        }
-                        default:
-                            // do nothing
-                            break;
-                    }
-
-                    addEventToQueue(new MidiEventWithTiming(midiEventKind, midiEventNote, midiEventVelocity, timestamp) {
-                        @Override
-                        public void run() {
-                            if (midiInputEventListener != null) {
-                                midiInputEventListener.onMidiControlChange(sender, getArg1() & 0xf, getArg2(), getArg3());
-                            }
-                        }
-                    });
-                    midiState = MIDI_STATE_TIMESTAMP;
-                    break;
-                case 0xe0: // pitch bend
-                    midiEventVelocity = midiEvent;
-                    addEventToQueue(new MidiEventWithTiming(midiEventKind, midiEventNote, midiEventVelocity, timestamp) {
-                        @Override
-                        public void run() {
-                            if (midiInputEventListener != null) {
-                                midiInputEventListener.onMidiPitchWheel(sender, getArg1() & 0xf, (getArg2() & 0x7f) | ((getArg3() & 0x7f) << 7));
-                            }
-                        }
-                    });
-                    midiState = MIDI_STATE_TIMESTAMP;
-                    break;
-                case 0xf0: // Song Position Pointer.
-                    midiEventVelocity = midiEvent;
-                    addEventToQueue(new MidiEventWithTiming(midiEventNote, midiEventVelocity, timestamp) {
-                        @Override
-                        public void run() {
-                            if (midiInputEventListener != null) {
-                                midiInputEventListener.onMidiSongPositionPointer(sender, (getArg1() & 0x7f) | ((getArg2() & 0x7f) << 7));
-                            }
-                        }
-                    });
-                    midiState = MIDI_STATE_TIMESTAMP;
-                    break;
-                default:
-                    // illegal state
-                    midiState = MIDI_STATE_TIMESTAMP;
-                    break;
+            case 99: {
+                // NRPN parameter number MSB
+                nrpnFunctionMsb = midiEventVelocity & 0x7f;
+                rpnStatus = RPN_STATUS_NRPN;
+                break;
             }
-        } else if (midiState == MIDI_STATE_SIGNAL_SYSEX) {
-            if (midiEvent == 0xf7) {
-                // the end of message
-                synchronized (systemExclusiveLock) {
-                    // last written byte is for timestamp
-                    int replacedEvent = systemExclusiveStream.replaceLastByte(midiEvent);
-                    if (replacedEvent >= 0) {
-                        timestamp = ((header & 0x3f) << 7) | (replacedEvent & 0x7f);
-                    }
-                    addEventToQueue(new MidiEventWithTiming(systemExclusiveStream.toByteArray(), timestamp) {
-                        @Override
-                        public void run() {
-                            if (midiInputEventListener != null) {
-                                midiInputEventListener.onMidiSystemExclusive(sender, getArray());
-                            }
-                        }
-                    });
-
-                    // for error recovery
-                    systemExclusiveRecoveryStream.reset();
-                    try {
-                        systemExclusiveStream.writeTo(systemExclusiveRecoveryStream);
-                    } catch (IOException ignored) {
-                    }
-                    systemExclusiveRecoveryStream.replaceLastByte(replacedEvent);
-                    systemExclusiveRecoveryStream.write(midiEvent);
+            case 100: {
+                // RPN parameter number LSB
+                rpnFunctionLsb = midiEventVelocity & 0x7f;
+                if (rpnFunctionMsb == 0x7f && rpnFunctionLsb == 0x7f) {
+                    rpnStatus = RPN_STATUS_NONE;
+                } else {
+                    rpnStatus = RPN_STATUS_RPN;
                 }
-                midiState = MIDI_STATE_TIMESTAMP;
-            } else {
-                synchronized (systemExclusiveLock) {
-                    systemExclusiveStream.write(midiEvent);
+                break;
+            }
+            case 101: {
+                // RPN parameter number MSB
+                rpnFunctionMsb = midiEventVelocity & 0x7f;
+                if (rpnFunctionMsb == 0x7f && rpnFunctionLsb == 0x7f) {
+                    rpnStatus = RPN_STATUS_NONE;
+                } else {
+                    rpnStatus = RPN_STATUS_RPN;
                 }
+                break;
             }
+            default:
+                // do nothing
+                break;
         }
+
+        addEventToQueue(midiEventKind, midiEventNote, midiEventVelocity, null, timestamp);
     }
 
     /**
-     * Updates incoming data
-     *
-     * @param data incoming data
+     * Starts SysEx message, with streaming if {@link OnMidiSystemExclusiveStreamListener} is attached
      */
-    public synchronized void parse(@NonNull byte[] data) {
-        if (data.length > 1) {
-            int header = data[0] & 0xff;
-            for (int i = 1; i < data.length; i++) {
-                parseMidiEvent(header, data[i]);
+    private void startSystemExclusive() {
+        maxSystemExclusiveSize = sender.getMaxSystemExclusiveSize();
+        systemExclusiveStreamListener = sender.getOnMidiSystemExclusiveStreamListener();
+
+        synchronized (systemExclusiveLock) {
+            systemExclusiveStream.reset();
+            if (systemExclusiveStreamListener == null) {
+                systemExclusiveStream.write(0xf0);
             }
+            systemExclusiveRecoveryStream.reset();
         }
+
+        if (systemExclusiveStreamListener != null) {
+            systemExclusiveChunkLength = 0;
+            systemExclusivePendingByte = 0xf0;
+            systemExclusiveSize = 1;
+            flushQueuedEvents();
+            systemExclusiveStreamListener.onMidiSystemExclusiveStart(sender);
+        }
+        midiState = MIDI_STATE_SIGNAL_SYSEX;
     }
 
     /**
-     * Add a event to event queue
+     * Parses streaming SysEx message body
      *
-     * @param event the MIDI Event
+     * @param midiEvent the event byte
      */
-    private void addEventToQueue(MidiEventWithTiming event) {
-        synchronized (queuedEventList) {
-            queuedEventList.add(event);
+    private void parseSystemExclusiveStream(final int midiEvent) {
+        if (midiEvent == 0xf7) {
+            if (systemExclusivePendingByte < 0) {
+                // no timestamp, just after System Real Time message
+                endSystemExclusiveStream();
+                return;
+            }
+            // wait for the next byte, to check the 0xF7 is not the timestamp
+            midiState = MIDI_STATE_SIGNAL_SYSEX_END;
+            return;
+        }
+
+        if (systemExclusiveSize >= maxSystemExclusiveSize) {
+            abortSystemExclusive();
+            return;
+        }
+        if (systemExclusivePendingByte >= 0) {
+            appendSystemExclusiveChunk(systemExclusivePendingByte);
+        }
+        systemExclusivePendingByte = midiEvent;
+        systemExclusiveSize++;
+    }
+
+    private void appendSystemExclusiveChunk(final int midiEvent) {
+        if (systemExclusiveChunkLength == systemExclusiveChunk.length) {
+            flushSystemExclusiveChunk();
+        }
+        systemExclusiveChunk[systemExclusiveChunkLength++] = (byte) midiEvent;
+    }
+
+    private void flushSystemExclusiveChunk() {
+        if (systemExclusiveChunkLength > 0) {
+            flushQueuedEvents();
+            systemExclusiveStreamListener.onMidiSystemExclusiveChunk(sender, systemExclusiveChunk, 0, systemExclusiveChunkLength);
+            systemExclusiveChunkLength = 0;
         }
-        eventDequeueThread.interrupt();
     }
 
     /**
-     * {@link Runnable} with MIDI event data, and firing timing
+     * Completes streaming SysEx message, the held byte has been processed as the timestamp
      */
-    private abstract class MidiEventWithTiming implements Runnable {
-        private static final int INVALID = -1;
-
-        private final long timing;
-        private final int arg1;
-        private final int arg2;
-        private final int arg3;
-        private final byte[] array;
-
-        private MidiEventWithTiming(int arg1, int arg2, int arg3, byte[] array, int timestamp) {
-            this.arg1 = arg1;
-            this.arg2 = arg2;
-            this.arg3 = arg3;
-            this.array = array;
-            timing = calculateEventFireTime(timestamp);
-        }
-
-        /**
-         * Constructor with no arguments
-         *
-         * @param timestamp BLE MIDI timestamp
-         */
-        MidiEventWithTiming(int timestamp) {
-            this(INVALID, INVALID, INVALID, null, timestamp);
-        }
-
-        /**
-         * Constructor with 1 argument
-         *
-         * @param arg1      argument 1
-         * @param timestamp BLE MIDI timestamp
-         */
-        MidiEventWithTiming(int arg1, int timestamp) {
-            this(arg1, INVALID, INVALID, null, timestamp);
-        }
-
-        /**
-         * Constructor with 2 arguments
-         *
-         * @param arg1      argument 1
-         * @param arg2      argument 2
-         * @param timestamp BLE MIDI timestamp
-         */
-        MidiEventWithTiming(int arg1, int arg2, int timestamp) {
-            this(arg1, arg2, INVALID, null, timestamp);
-        }
-
-        /**
-         * Constructor with 3 arguments
-         *
-         * @param arg1      argument 1
-         * @param arg2      argument 2
-         * @param arg3      argument 3
-         * @param timestamp BLE MIDI timestamp
-         */
-        MidiEventWithTiming(int arg1, int arg2, int arg3, int timestamp) {
-            this(arg1, arg2, arg3, null, timestamp);
-        }
-
-        /**
-         * Constructor with array
-         *
-         * @param array     data
-         * @param timestamp BLE MIDI timestamp
-         */
-        MidiEventWithTiming(@NonNull byte[] array, int timestamp) {
-            this(INVALID, INVALID, INVALID, array, timestamp);
-        }
-
-        /**
-         * Calculate `time to wait` for the event's timestamp
-         *
-         * @param timestamp the event's timestamp
-         * @return time to wait
-         */
-        private long calculateEventFireTime(final int timestamp) {
-            final long currentTimeMillis = System.currentTimeMillis();
-
-            // checks timestamp value is always zero
-            if (isTimestampAlwaysZero != null) {
-                if (isTimestampAlwaysZero) {
-                    if (timestamp != 0) {
-                        // timestamp comes with non-zero. prevent misdetection
-                        isTimestampAlwaysZero = false;
-                        zeroTimestampCount = 0;
-                        lastTimestampRecorded = 0;
-                    } else {
-                        // event fires immediately
-                        return currentTimeMillis;
-                    }
-                } else {
-                    if (timestamp == 0) {
-                        // recheck timestamp value on next time
-                        isTimestampAlwaysZero = null;
-                        zeroTimestampCount = 0;
-                        // event fires immediately
-                        return currentTimeMillis;
-                    }
+    private void endSystemExclusiveStream() {
+        appendSystemExclusiveChunk(0xf7);
+        flushSystemExclusiveChunk();
+        systemExclusiveStreamListener.onMidiSystemExclusiveEnd(sender);
+        systemExclusiveStreamListener = null;
+        midiState = MIDI_STATE_TIMESTAMP;
+    }
+
+    /**
+     * Aborts SysEx message exceeded the maximum size, the rest is discarded until 0xF7
+     */
+    private void abortSystemExclusive() {
+        if (systemExclusiveStreamListener != null) {
+            systemExclusiveChunkLength = 0;
+            flushQueuedEvents();
+            systemExclusiveStreamListener.onMidiSystemExclusiveAbort(sender);
+            systemExclusiveStreamListener = null;
+        }
+        synchronized (systemExclusiveLock) {
+            systemExclusiveStream.reset();
+        }
+        midiState = MIDI_STATE_SIGNAL_SYSEX_ABORTED;
+    }
+
+    /**
+     * Parses System Real Time message interleaved in SysEx message<br />
+     * The message must follow its timestamp: the last byte of SysEx is taken back as the timestamp.
+     * Otherwise the byte is the timestamp of the following message, not System Real Time message.
+     *
+     * @param timestampHigh the header bits, shifted to the upper part of timestamp
+     * @param midiEvent     the byte: 0xF8-0xFF
+     * @return true if processed as System Real Time message
+     */
+    private boolean parseSystemExclusiveRealtime(final int timestampHigh, final int midiEvent) {
+        if (STATUS_ACTIONS[midiEvent] != STATUS_1BYTE) {
+            // undefined
+            return false;
+        }
+
+        if (systemExclusiveStreamListener != null) {
+            if (systemExclusiveSize <= 1 || systemExclusivePendingByte < 0x80) {
+                return false;
+            }
+            timestamp = timestampHigh | (systemExclusivePendingByte & 0x7f);
+            systemExclusivePendingByte = -1;
+            systemExclusiveSize--;
+        } else {
+            synchronized (systemExclusiveLock) {
+                if (systemExclusiveStream.size() <= 1) {
+                    return false;
                 }
-            } else {
-                if (timestamp == 0) {
-                    if (zeroTimestampCount >= 3) {
-                        // decides timestamp is always zero
-                        isTimestampAlwaysZero = true;
-                    } else {
-                        zeroTimestampCount++;
-                    }
-                    // event fires immediately
-                    return currentTimeMillis;
-                } else {
-                    isTimestampAlwaysZero = false;
-                    zeroTimestampCount = 0;
-                    lastTimestampRecorded = 0;
+                final int lastByte = systemExclusiveStream.removeLastByte();
+                if ((lastByte & 0x80) == 0) {
+                    // data byte, put back
+                    systemExclusiveStream.write(lastByte);
+                    return false;
                 }
+                timestamp = timestampHigh | (lastByte & 0x7f);
             }
+        }
+        addEventToQueue(midiEvent, 0, 0, null, timestamp);
+        return true;
+    }
 
-            if (lastTimestampRecorded == 0) {
-                // first time: event fires immediately
-                lastTimestamp = timestamp;
-                lastTimestampRecorded = currentTimeMillis;
-                return currentTimeMillis;
-            }
+    /**
+     * Delivers the streaming SysEx received in the packet
+     *
+     * @param timestampHigh the header bits, shifted to the upper part of timestamp
+     */
+    private void finishPacket(final int timestampHigh) {
+        if (midiState == MIDI_STATE_SIGNAL_SYSEX_END) {
+            // 0xF7 at the end of packet: the end of message
+            timestamp = timestampHigh | (systemExclusivePendingByte & 0x7f);
+            endSystemExclusiveStream();
+        } else if (midiState == MIDI_STATE_SIGNAL_SYSEX && systemExclusiveStreamListener != null) {
+            flushSystemExclusiveChunk();
+        }
+    }
+
+    /**
+     * Parses SysEx message body
+     *
+     * @param timestampHigh the header bits, shifted to the upper part of timestamp
+     * @param midiEvent     the event byte
+     */
+    private void parseSystemExclusive(final int timestampHigh, final int midiEvent) {
+        if (midiEvent == 0xf7) {
+            // the end of message
+            synchronized (systemExclusiveLock) {
+                // last written byte is for timestamp
+                int replacedEvent = systemExclusiveStream.replaceLastByte(midiEvent);
+                if (replacedEvent >= 0) {
+                    timestamp = timestampHigh | (replacedEvent & 0x7f);
+                }
+                addEventToQueue(0xf0, 0, 0, systemExclusiveStream.toByteArray(), timestamp);
 
-            if (currentTimeMillis - lastTimestampRecorded >= MAX_TIMESTAMP) {
-                // the event comes after long pause
-                lastTimestamp = timestamp;
-                lastTimestampRecorded = currentTimeMillis;
-                return currentTimeMillis;
+                // for error recovery
+                systemExclusiveRecoveryStream.reset();
+                try {
+                    systemExclusiveStream.writeTo(systemExclusiveRecoveryStream);
+                } catch (IOException ignored) {
+                }
+                systemExclusiveRecoveryStream.replaceLastByte(replacedEvent);
+                systemExclusiveRecoveryStream.write(midiEvent);
+            }
+            midiState = MIDI_STATE_TIMESTAMP;
+        } else if (systemExclusiveStream.size() >= maxSystemExclusiveSize) {
+            abortSystemExclusive();
+        } else {
+            synchronized (systemExclusiveLock) {
+                systemExclusiveStream.write(midiEvent);
             }
+        }
+    }
+
+    /**
+     * Processes the SysEx again, when the previous SysEx has been terminated by the timestamp byte 0xF7
+     *
+     * @param timestampHigh the header bits, shifted to the upper part of timestamp
+     */
+    private void recoverSystemExclusive(final int timestampHigh) {
+        synchronized (systemExclusiveLock) {
+            if (systemExclusiveRecoveryStream.size() > 0) {
+                // previous SysEx has been failed, due to timestamp was 0xF7
+                // process SysEx again
+
+                // last written byte is for timestamp
+                int removed = systemExclusiveRecoveryStream.replaceLastByte(0xf7);
+                if (removed >= 0) {
+                    timestamp = timestampHigh | (removed & 0x7f);
+
+                    addEventToQueue(0xf0, 0, 0, systemExclusiveRecoveryStream.toByteArray(), timestamp);
+                }
 
-            final long elapsedRealtime = currentTimeMillis - lastTimestampRecorded;
-            // realTimestampPeriod: how many times MAX_TIMESTAMP passed
-            long realTimestampPeriod = (lastTimestamp + elapsedRealtime) / MAX_TIMESTAMP;
-            if (realTimestampPeriod > 0 && timestamp > 7000) {
-                realTimestampPeriod--;
+                systemExclusiveRecoveryStream.reset();
             }
-            final long lastTimestampStarted = lastTimestampRecorded - lastTimestamp;
-            // result: time to wait
-            final long result = BUFFER_LENGTH_MILLIS // buffer
-                    + lastTimestampStarted + realTimestampPeriod * MAX_TIMESTAMP + timestamp // time to fire event
-                    - currentTimeMillis; // current time
+        }
+    }
+
+    /**
+     * Updates incoming data
+     *
+     * @param data incoming data
+     */
+    public void parse(@NonNull byte[] data) {
+        parse(data, 0, data.length);
+    }
 
-            lastTimestamp = timestamp;
-            lastTimestampRecorded = currentTimeMillis;
-            return result;
+    /**
+     * Updates incoming data, from the part of array<br />
+     * The array is not retained, so the caller can reuse it after this method returns.
+     *
+     * @param data   incoming data
+     * @param offset the start offset of BLE MIDI packet
+     * @param length the length of BLE MIDI packet
+     * @throws IndexOutOfBoundsException the offset or length is out of the array
+     */
+    public synchronized void parse(@NonNull byte[] data, int offset, int length) throws IndexOutOfBoundsException {
+        if (offset < 0 || length < 0 || offset > data.length - length) {
+            throw new IndexOutOfBoundsException("offset: " + offset + ", length: " + length + ", array length: " + data.length);
         }
 
-        public long getTiming() {
-            return timing;
+        if (length > 1) {
+            final int timestampHigh = (data[offset] & 0x3f) << 7;
+            final int end = offset + length;
+            for (int i = offset + 1; i < end; i++) {
+                parseMidiEvent(timestampHigh, data[i]);
+            }
+            finishPacket(timestampHigh);
         }
+    }
 
-        public int getArg1() {
-            return arg1;
+    /**
+     * Updates incoming data, from the buffer's position to its limit<br />
+     * Both heap and direct buffers are read without copying, and the buffer's position is moved to its limit.
+     *
+     * @param buffer incoming data
+     */
+    public synchronized void parse(@NonNull ByteBuffer buffer) {
+        final int position = buffer.position();
+        final int limit = buffer.limit();
+
+        if (buffer.hasArray()) {
+            parse(buffer.array(), buffer.arrayOffset() + position, limit - position);
+        } else if (limit - position > 1) {
+            final int timestampHigh = (buffer.get(position) & 0x3f) << 7;
+            for (int i = position + 1; i < limit; i++) {
+                parseMidiEvent(timestampHigh, buffer.get(i));
+            }
+            finishPacket(timestampHigh);
+        }
+        buffer.position(limit);
+    }
+
+    /**
+     * Add a event to event queue, or fire it immediately with {@link MidiInputDevice#isImmediateDispatch()}
+     *
+     * @param kind      the event kind: MIDI status byte, with {@link #EVENT_RPN} or {@link #EVENT_NRPN} flag
+     * @param data1     the first argument
+     * @param data2     the second argument
+     * @param array     the data of SysEx
+     * @param timestamp BLE MIDI timestamp
+     */
+    private void addEventToQueue(int kind, int data1, int data2, @Nullable byte[] array, int timestamp) {
+        if (sender.isImmediateDispatch()) {
+            // no queueing, fire event on this thread
+            dispatchEvent(kind, data1, data2, array);
+            return;
         }
 
-        public int getArg2() {
-            return arg2;
+        final MidiInputDispatcher.Worker worker = dispatchWorker;
+        if (worker == null) {
+            // stopped
+            return;
         }
 
-        public int getArg3() {
-            return arg3;
+        final long currentTime = clock.nanoTime();
+        long timing = calculateEventFireTime(timestamp, currentTime);
+        if (timing < lastEventTiming) {
+            // don't fire before the events already received
+            timing = lastEventTiming;
         }
+        lastEventTiming = timing;
 
-        public byte[] getArray() {
-            return array;
+        synchronized (queuedEventList) {
+            queuedEventList.add(kind, data1, data2, array, timing);
         }
+        worker.onEventQueued(timing - currentTime);
     }
 
     /**
-     * Runnable for MIDI event queueing
+     * Fires the queued events whose firing time has come, called from {@link MidiInputDispatcher}
+     *
+     * @param maxEvents the maximum number of events to fire
+     * @return the time until the next event fires in nanoseconds, 0 if more events are due, {@link Long#MAX_VALUE} if the queue is empty
      */
-    private class EventDequeueRunnable implements Runnable {
-        private final List<MidiEventWithTiming> dequeuedEvents = new ArrayList<>();
-        private final Comparator<MidiEventWithTiming> midiTimerTaskComparator = new Comparator<MidiEventWithTiming>() {
-            @Override
-            public int compare(final MidiEventWithTiming lhs, final MidiEventWithTiming rhs) {
-                // sort by tick
-                int tickDifference = (int) (lhs.getTiming() - rhs.getTiming());
-                if (tickDifference != 0) {
-                    return tickDifference * 256;
-                }
+    long dispatchEvents(int maxEvents) {
+        return dispatchEvents(maxEvents, false);
+    }
 
-                int lhsMessage = lhs.getArg1();
-                int rhsMessage = rhs.getArg1();
+    /**
+     * Fires all of the queued events on this thread, before calling {@link OnMidiSystemExclusiveStreamListener}<br />
+     * The streaming SysEx is not queued, so the events received earlier must not fire after it.
+     * They fire without waiting for their firing time.
+     */
+    private void flushQueuedEvents() {
+        dispatchEvents(Integer.MAX_VALUE, true);
+    }
 
-                // apply zero if message is empty
-                if (lhsMessage == MidiEventWithTiming.INVALID) {
-                    final byte[] lhsArray = lhs.getArray();
-                    if (lhsArray == null || lhsArray.length < 1) {
-                        lhsMessage = 0;
-                    } else {
-                        lhsMessage = lhsArray[0];
+    /**
+     * Fires the queued events
+     *
+     * @param maxEvents the maximum number of events to fire
+     * @param flush     true: fires the events before their firing time
+     * @return the time until the next event fires in nanoseconds, 0 if more events are due, {@link Long#MAX_VALUE} if the queue is empty
+     */
+    private long dispatchEvents(int maxEvents, boolean flush) {
+        synchronized (dispatchLock) {
+            for (int i = 0; i < maxEvents; i++) {
+                final int kind;
+                final int data1;
+                final int data2;
+                final byte[] array;
+                synchronized (queuedEventList) {
+                    if (queuedEventList.isEmpty()) {
+                        return Long.MAX_VALUE;
                     }
-                }
-                if (rhsMessage == MidiEventWithTiming.INVALID) {
-                    final byte[] rhsArray = rhs.getArray();
-                    if (rhsArray == null || rhsArray.length < 1) {
-                        rhsMessage = 0;
-                    } else {
-                        rhsMessage = rhsArray[0];
+                    final long waitNanos = flush ? 0 : queuedEventList.firstTiming() - clock.nanoTime();
+                    if (waitNanos > 0) {
+                        return waitNanos;
                     }
+
+                    // deque the past event
+                    kind = queuedEventList.firstKind();
+                    data1 = queuedEventList.firstData1();
+                    data2 = queuedEventList.firstData2();
+                    array = queuedEventList.firstArray();
+                    queuedEventList.removeFirst();
                 }
 
-                // same timing
-                // sort by the MIDI data priority order, as:
-                // system message > control messages > note on > note off
-                // swap the priority of note on, and note off
-                int lhsInt = lhsMessage & 0xf0;
-                int rhsInt = rhsMessage & 0xf0;
+                // fire event
+                dispatchEvent(kind, data1, data2, array);
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * Calculate the firing time for the event's timestamp
+     *
+     * @param timestamp   the event's timestamp
+     * @param currentTime the current time, in {@link MidiClock#nanoTime()}
+     * @return the time to fire the event, in {@link MidiClock#nanoTime()}
+     */
+    private long calculateEventFireTime(final int timestamp, final long currentTime) {
 
-                if ((lhsInt & 0x90) == 0x80) {
-                    lhsInt |= 0x10;
+        // checks timestamp value is always zero
+        if (isTimestampAlwaysZero != null) {
+            if (isTimestampAlwaysZero) {
+                if (timestamp != 0) {
+                    // timestamp comes with non-zero. prevent misdetection
+                    isTimestampAlwaysZero = false;
+                    zeroTimestampCount = 0;
+                    jitterBuffer.restart();
                 } else {
-                    lhsInt &= ~0x10;
+                    // event fires immediately
+                    return currentTime;
                 }
-                if ((rhsInt & 0x90) == 0x80) {
-                    rhsInt |= 0x10;
-                } else {
-                    rhsInt &= ~0x10;
+            } else {
+                if (timestamp == 0) {
+                    // recheck timestamp value on next time
+                    isTimestampAlwaysZero = null;
+                    zeroTimestampCount = 0;
+                    // event fires immediately
+                    return currentTime;
                 }
-
-                return -(lhsInt - rhsInt);
             }
-        };
-        private volatile boolean isRunning = true;
-
-        @Override
-        public void run() {
-            while (isRunning) {
-                // deque events
-                dequeuedEvents.clear();
-                final long currentTime = System.currentTimeMillis();
-                synchronized (queuedEventList) {
-                    for (MidiEventWithTiming event : queuedEventList) {
-                        if (event.getTiming() <= currentTime) {
-                            // collect past events
-                            dequeuedEvents.add(event);
-                        }
-                    }
-                    queuedEventList.removeAll(dequeuedEvents);
+        } else {
+            if (timestamp == 0) {
+                if (zeroTimestampCount >= 3) {
+                    // decides timestamp is always zero
+                    isTimestampAlwaysZero = true;
+                } else {
+                    zeroTimestampCount++;
                 }
+                // event fires immediately
+                return currentTime;
+            } else {
+                isTimestampAlwaysZero = false;
+                zeroTimestampCount = 0;
+                jitterBuffer.restart();
+            }
+        }
 
-                if (!dequeuedEvents.isEmpty()) {
-                    // sort event order
-                    Collections.sort(dequeuedEvents, midiTimerTaskComparator);
+        return jitterBuffer.calculateFireTime(timestamp, currentTime);
+    }
 
-                    // fire events
-                    for (MidiEventWithTiming event : dequeuedEvents) {
-                        event.run();
-                    }
-                }
+    /**
+     * Fires the event to {@link OnMidiInputEventListener}
+     *
+     * @param kind  the event kind: MIDI status byte, with {@link #EVENT_RPN} or {@link #EVENT_NRPN} flag
+     * @param data1 the first argument
+     * @param data2 the second argument
+     * @param array the data of SysEx
+     */
+    private void dispatchEvent(int kind, int data1, int data2, @Nullable byte[] array) {
+        final OnMidiInputEventListener listener = midiInputEventListener;
+        if (listener == null) {
+            return;
+        }
 
-                // sleep until interrupt
-                try {
-                    boolean isEmpty;
-                    synchronized (queuedEventList) {
-                        isEmpty = queuedEventList.isEmpty();
-                    }
-                    if (isEmpty) {
-                        Thread.sleep(1000);
-                    } else {
-                        Thread.sleep(1);
-                    }
-                } catch (InterruptedException ignored) {
+        if ((kind & EVENT_RPN) != 0) {
+            listener.onRPNMessage(sender, kind & 0xf, data1 & 0x3fff, data2 & 0x3fff);
+            return;
+        }
+        if ((kind & EVENT_NRPN) != 0) {
+            listener.onNRPNMessage(sender, kind & 0xf, data1 & 0x3fff, data2 & 0x3fff);
+            return;
+        }
+
+        switch (kind & 0xf0) {
+            case 0x80:
+                listener.onMidiNoteOff(sender, kind & 0xf, data1, data2);
+                break;
+            case 0x90:
+                if (data2 == 0) {
+                    listener.onMidiNoteOff(sender, kind & 0xf, data1, data2);
+                } else {
+                    listener.onMidiNoteOn(sender, kind & 0xf, data1, data2);
                 }
-            }
+                break;
+            case 0xa0:
+                listener.onMidiPolyphonicAftertouch(sender, kind & 0xf, data1, data2);
+                break;
+            case 0xb0:
+                listener.onMidiControlChange(sender, kind & 0xf, data1, data2);
+                break;
+            case 0xc0:
+                listener.onMidiProgramChange(sender, kind & 0xf, data1);
+                break;
+            case 0xd0:
+                listener.onMidiChannelAftertouch(sender, kind & 0xf, data1);
+                break;
+            case 0xe0:
+                listener.onMidiPitchWheel(sender, kind & 0xf, (data1 & 0x7f) | ((data2 & 0x7f) << 7));
+                break;
+            case 0xf0:
+                switch (kind) {
+                    case 0xf0:
+                        if (array != null) {
+                            listener.onMidiSystemExclusive(sender, array);
+                        }
+                        break;
+                    case 0xf1:
+                        listener.onMidiTimeCodeQuarterFrame(sender, data1);
+                        break;
+                    case 0xf2:
+                        listener.onMidiSongPositionPointer(sender, (data1 & 0x7f) | ((data2 & 0x7f) << 7));
+                        break;
+                    case 0xf3:
+                        listener.onMidiSongSelect(sender, data1);
+                        break;
+                    case 0xf6:
+                        listener.onMidiTuneRequest(sender);
+                        break;
+                    case 0xf8:
+                        listener.onMidiTimingClock(sender);
+                        break;
+                    case 0xfa:
+                        listener.onMidiStart(sender);
+                        break;
+                    case 0xfb:
+                        listener.onMidiContinue(sender);
+                        break;
+                    case 0xfc:
+                        listener.onMidiStop(sender);
+                        break;
+                    case 0xfe:
+                        listener.onMidiActiveSensing(sender);
+                        break;
+                    case 0xff:
+                        listener.onMidiReset(sender);
+                        break;
+                    default:
+                        break;
+                }
+                break;
+            default:
+                break;
         }
     }
 }
@@ -0,0 +1,163 @@
+package renetik.android.midi.bluetooth.util;
+
+import android.content.Context;
+import android.content.res.Resources;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import jp.kshoji.blemidi.R;
+
+/**
+ * Index of the UUIDs of the BLE MIDI services and characteristics<br />
+ * Built once per process from the uuidList* resources, and extended by {@link #register(int, UUID)} for the vendor UUIDs.<br />
+ * The lookup is O(1) and doesn't allocate, matching the short (16 bits) style UUIDs as {@link BleUuidUtils#matches(UUID, UUID)}.
+ */
+public final class BleUuidIndex {
+    public static final int TYPE_SERVICE = 0;
+    public static final int TYPE_INPUT_CHARACTERISTIC = 1;
+    public static final int TYPE_OUTPUT_CHARACTERISTIC = 2;
+    private static final int TYPE_COUNT = 3;
+
+    private static volatile BleUuidIndex instance = null;
+
+    /**
+     * The immutable UUID set of one type
+     */
+    private static final class UuidSet {
+        final List<UUID> uuids;
+        final Set<UUID> uuidSet;
+        // the 16 bits values of all of the UUIDs, to match the short style UUID
+        final long[] shortValues = new long[65536 / 64];
+        // the 16 bits values of the short style UUIDs, null if none
+        final long[] shortStyleValues;
+
+        UuidSet(@NonNull List<UUID> uuids) {
+            this.uuids = Collections.unmodifiableList(uuids);
+            this.uuidSet = new HashSet<>(uuids);
+            long[] shortStyleValues = null;
+            for (UUID uuid : uuids) {
+                final int shortValue = BleUuidUtils.toShortValue(uuid);
+                setBit(shortValues, shortValue);
+                if (BleUuidUtils.isShortUuid(uuid)) {
+                    if (shortStyleValues == null) {
+                        shortStyleValues = new long[65536 / 64];
+                    }
+                    setBit(shortStyleValues, shortValue);
+                }
+            }
+            this.shortStyleValues = shortStyleValues;
+        }
+
+        boolean contains(@NonNull UUID uuid) {
+            final int shortValue = BleUuidUtils.toShortValue(uuid);
+            if (BleUuidUtils.isShortUuid(uuid)) {
+                // check only 16bits
+                return getBit(shortValues, shortValue);
+            }
+            return uuidSet.contains(uuid) || (shortStyleValues != null && getBit(shortStyleValues, shortValue));
+        }
+    }
+
+    private volatile UuidSet[] uuidSets;
+
+    private BleUuidIndex(@NonNull Resources resources) {
+        uuidSets = new UuidSet[TYPE_COUNT];
+        uuidSets[TYPE_SERVICE] = new UuidSet(fromStringArray(resources.getStringArray(R.array.uuidListForService)));
+        uuidSets[TYPE_INPUT_CHARACTERISTIC] = new UuidSet(fromStringArray(resources.getStringArray(R.array.uuidListForInputCharacteristic)));
+        uuidSets[TYPE_OUTPUT_CHARACTERISTIC] = new UuidSet(fromStringArray(resources.getStringArray(R.array.uuidListForOutputCharacteristic)));
+    }
+
+    /**
+     * Obtains the index, built at the first call
+     *
+     * @param context the context
+     * @return the index
+     */
+    @NonNull
+    public static BleUuidIndex getInstance(@NonNull Context context) {
+        BleUuidIndex result = instance;
+        if (result == null) {
+            synchronized (BleUuidIndex.class) {
+                result = instance;
+                if (result == null) {
+                    result = new BleUuidIndex(context.getResources());
+                    instance = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Checks the UUID is a BLE MIDI UUID of the type
+     *
+     * @param type TYPE_*
+     * @param uuid the UUID of the service, or the characteristic
+     * @return true if matches
+     */
+    public boolean contains(int type, @NonNull UUID uuid) {
+        return uuidSets[type].contains(uuid);
+    }
+
+    /**
+     * Obtains the UUIDs of the type
+     *
+     * @param type TYPE_*
+     * @return the unmodifiable list, in the order of registration
+     */
+    @NonNull
+    public List<UUID> getUuids(int type) {
+        return uuidSets[type].uuids;
+    }
+
+    /**
+     * Registers the vendor UUID<br />
+     * The connections and the scans started after this use the UUID.
+     *
+     * @param type TYPE_*
+     * @param uuid the UUID
+     * @throws IllegalArgumentException if the type is invalid
+     */
+    public synchronized void register(int type, @NonNull UUID uuid) throws IllegalArgumentException {
+        if (type < 0 || type >= TYPE_COUNT) {
+            throw new IllegalArgumentException("type must be TYPE_SERVICE, TYPE_INPUT_CHARACTERISTIC or TYPE_OUTPUT_CHARACTERISTIC");
+        }
+        final UuidSet[] currentUuidSets = uuidSets;
+        if (currentUuidSets[type].uuidSet.contains(uuid)) {
+            return;
+        }
+
+        final List<UUID> uuids = new ArrayList<>(currentUuidSets[type].uuids);
+        uuids.add(uuid);
+        final UuidSet[] newUuidSets = currentUuidSets.clone();
+        newUuidSets[type] = new UuidSet(uuids);
+        uuidSets = newUuidSets;
+    }
+
+    @NonNull
+    private static List<UUID> fromStringArray(@NonNull String[] uuidStringArray) {
+        final List<UUID> uuids = new ArrayList<>();
+        for (String uuidString : uuidStringArray) {
+            final UUID uuid = BleUuidUtils.fromString(uuidString);
+            if (!uuids.contains(uuid)) {
+                uuids.add(uuid);
+            }
+        }
+        return uuids;
+    }
+
+    private static void setBit(@NonNull long[] bits, int index) {
+        bits[index >>> 6] |= 1L << index;
+    }
+
+    private static boolean getBit(@NonNull long[] bits, int index) {
+        return (bits[index >>> 6] & (1L << index)) != 0;
+    }
+}
@@ -88,7 +88,7 @@ public final class BleUuidUtils {
      * @param src the UUID
      * @return true if the UUID is short style
      */
-    private static boolean isShortUuid(@NonNull final UUID src) {
+    static boolean isShortUuid(@NonNull final UUID src) {
         return ((src.getMostSignificantBits() & 0xffff0000ffffffffL) == 0L) && (src.getLeastSignificantBits() == 0L);
     }
 }
@@ -0,0 +1,243 @@
+package renetik.android.midi.bluetooth.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * De-jitter buffer for BLE MIDI input<br />
+ * Reconstructs the sender's time line from BLE MIDI timestamps, and delays events to cancel the arrival jitter.<br />
+ * One JitterBuffer instance belongs to one MidiInputDevice instance.
+ */
+public final class JitterBuffer {
+    /**
+     * Events fire immediately when they arrive, no timing reconstruction.
+     */
+    public static final int MODE_NONE = 0;
+    /**
+     * Events fire with the fixed latency after the sender's timestamp.
+     */
+    public static final int MODE_FIXED = 1;
+    /**
+     * Events fire with the latency sized from the measured arrival jitter.
+     */
+    public static final int MODE_ADAPTIVE = 2;
+
+    private static final int MAX_TIMESTAMP = 8192;
+    private static final long MAX_TIMESTAMP_NANOS = TimeUnit.MILLISECONDS.toNanos(MAX_TIMESTAMP);
+    private static final long NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final int DEFAULT_FIXED_LATENCY_MILLIS = 50;
+    private static final int DEFAULT_MAX_LATENCY_MILLIS = 100;
+    private static final int DEFAULT_TARGET_PERCENTILE = 95;
+    // jitter measurement window, must be power of two
+    private static final int SAMPLE_COUNT = 128;
+    // the statistics are updated every UPDATE_INTERVAL samples
+    private static final int UPDATE_INTERVAL = 8;
+
+    // configurations
+    private volatile int mode = MODE_FIXED;
+    private volatile long fixedLatencyNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_FIXED_LATENCY_MILLIS);
+    private volatile long maxLatencyNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_MAX_LATENCY_MILLIS);
+    private volatile int targetPercentile = DEFAULT_TARGET_PERCENTILE;
+
+    // measurement results
+    private volatile long jitterNanos = 0;
+    private volatile long depthNanos = fixedLatencyNanos;
+
+    // sender's time line, accessed from the parser thread only
+    private final long[] transitSamples = new long[SAMPLE_COUNT];
+    // the sorted window of the last update, accessed with synchronized(sortedSamples)
+    private final long[] sortedSamples = new long[SAMPLE_COUNT];
+    private int sortedCount = 0;
+    private int sampleCount = 0;
+    private int sampleIndex = 0;
+    private long minTransit = 0;
+    private boolean isStarted = false;
+    private int lastTimestamp;
+    private long lastArrivalTime;
+    private long senderTime;
+
+    /**
+     * Sets the buffering mode
+     *
+     * @param mode {@link #MODE_NONE}, {@link #MODE_FIXED}, or {@link #MODE_ADAPTIVE}
+     * @throws IllegalArgumentException the mode is unknown
+     */
+    public void setMode(int mode) throws IllegalArgumentException {
+        if (mode != MODE_NONE && mode != MODE_FIXED && mode != MODE_ADAPTIVE) {
+            throw new IllegalArgumentException("Unknown jitter buffer mode: " + mode);
+        }
+        this.mode = mode;
+        updateDepth();
+    }
+
+    /**
+     * Obtains the buffering mode
+     *
+     * @return {@link #MODE_NONE}, {@link #MODE_FIXED}, or {@link #MODE_ADAPTIVE}
+     */
+    public int getMode() {
+        return mode;
+    }
+
+    /**
+     * Sets the latency used with {@link #MODE_FIXED}, default 50 milliseconds
+     *
+     * @param latencyMillis the latency
+     */
+    public void setFixedLatencyMillis(int latencyMillis) {
+        fixedLatencyNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(latencyMillis, 0));
+        updateDepth();
+    }
+
+    /**
+     * Sets the upper limit of the latency used with {@link #MODE_ADAPTIVE}, default 100 milliseconds
+     *
+     * @param latencyMillis the latency
+     */
+    public void setMaxLatencyMillis(int latencyMillis) {
+        maxLatencyNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(latencyMillis, 0));
+        updateDepth();
+    }
+
+    /**
+     * Sets the percentile of the arrival jitter to be absorbed with {@link #MODE_ADAPTIVE}, default 95<br />
+     * The jitter and the buffer depth are recalculated immediately, with the samples measured so far.
+     *
+     * @param percentile 1-100
+     * @throws IllegalArgumentException the percentile is out of range
+     */
+    public void setTargetPercentile(int percentile) throws IllegalArgumentException {
+        if (percentile < 1 || percentile > 100) {
+            throw new IllegalArgumentException("Percentile out of range: " + percentile);
+        }
+        targetPercentile = percentile;
+        synchronized (sortedSamples) {
+            if (sortedCount > 0) {
+                updateJitter();
+            }
+        }
+    }
+
+    /**
+     * Obtains the current buffer depth: the latency added to the sender's timestamp
+     *
+     * @return the buffer depth in nanoseconds
+     */
+    public long getDepthNanos() {
+        return depthNanos;
+    }
+
+    /**
+     * Obtains the measured arrival jitter, at the target percentile
+     *
+     * @return the jitter in nanoseconds
+     */
+    public long getJitterNanos() {
+        return jitterNanos;
+    }
+
+    private void updateDepth() {
+        switch (mode) {
+            case MODE_NONE:
+                depthNanos = 0;
+                break;
+            case MODE_ADAPTIVE:
+                depthNanos = Math.min(jitterNanos, maxLatencyNanos);
+                break;
+            case MODE_FIXED:
+            default:
+                depthNanos = fixedLatencyNanos;
+                break;
+        }
+    }
+
+    /**
+     * Restarts the timing reconstruction with the next event, keeps the jitter measurement
+     */
+    void restart() {
+        isStarted = false;
+    }
+
+    /**
+     * Calculate the firing time for the event's timestamp
+     *
+     * @param timestamp   13bits BLE MIDI timestamp, in milliseconds
+     * @param arrivalTime the time the event arrived, in {@link MidiClock#nanoTime()}
+     * @return the time to fire the event, in {@link MidiClock#nanoTime()}
+     */
+    long calculateFireTime(int timestamp, long arrivalTime) {
+        if (!isStarted || arrivalTime - lastArrivalTime >= MAX_TIMESTAMP_NANOS) {
+            // first time, or the event comes after long pause: the timestamp may have wrapped around several times.
+            // assume the event arrived with the least delay
+            senderTime = arrivalTime - minTransit;
+            isStarted = true;
+        } else {
+            // advance the sender's time with the timestamp difference,
+            // the wrap around count is chosen to be the nearest to the elapsed time
+            final long elapsedMillis = (arrivalTime - lastArrivalTime) / NANOS_PER_MILLI;
+            final int timestampDifference = timestamp - lastTimestamp;
+            final long wrapDistance = elapsedMillis - timestampDifference + MAX_TIMESTAMP / 2;
+            final long wrapCount = wrapDistance >= 0 ? wrapDistance / MAX_TIMESTAMP : -((MAX_TIMESTAMP - 1 - wrapDistance) / MAX_TIMESTAMP);
+            senderTime += (timestampDifference + wrapCount * MAX_TIMESTAMP) * NANOS_PER_MILLI;
+        }
+        lastTimestamp = timestamp;
+        lastArrivalTime = arrivalTime;
+
+        addTransitSample(arrivalTime - senderTime);
+
+        if (mode == MODE_NONE) {
+            // event fires immediately
+            return arrivalTime;
+        }
+        return senderTime + minTransit + depthNanos;
+    }
+
+    private void addTransitSample(long transit) {
+        transitSamples[sampleIndex] = transit;
+        sampleIndex = (sampleIndex + 1) & (SAMPLE_COUNT - 1);
+        if (sampleCount < SAMPLE_COUNT) {
+            sampleCount++;
+        }
+
+        if (sampleCount == 1 || transit < minTransit) {
+            // less delayed than ever: follow immediately
+            minTransit = transit;
+        }
+
+        if (sampleIndex % UPDATE_INTERVAL == 0) {
+            // recalculate with the window, the older minimum may have gone
+            synchronized (sortedSamples) {
+                System.arraycopy(transitSamples, 0, sortedSamples, 0, sampleCount);
+                sortedCount = sampleCount;
+                sortSamples(sortedCount);
+                minTransit = sortedSamples[0];
+                updateJitter();
+            }
+        }
+    }
+
+    /**
+     * Calculates the jitter at the target percentile of the sorted window, with synchronized(sortedSamples)
+     */
+    private void updateJitter() {
+        jitterNanos = sortedSamples[(sortedCount - 1) * targetPercentile / 100] - sortedSamples[0];
+        updateDepth();
+    }
+
+    /**
+     * Sorts the samples in place<br />
+     * Arrays.sort of the recent JDKs allocates the buffer to merge the ascending runs, which the transit samples often are.
+     *
+     * @param count the number of samples to sort
+     */
+    private void sortSamples(int count) {
+        for (int i = 1; i < count; i++) {
+            final long sample = sortedSamples[i];
+            int j = i - 1;
+            while (j >= 0 && sortedSamples[j] > sample) {
+                sortedSamples[j + 1] = sortedSamples[j];
+                j--;
+            }
+            sortedSamples[j + 1] = sample;
+        }
+    }
+}
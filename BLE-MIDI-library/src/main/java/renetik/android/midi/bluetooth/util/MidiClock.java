@@ -0,0 +1,24 @@
+package renetik.android.midi.bluetooth.util;
+
+/**
+ * Monotonic time source, used for BLE MIDI timestamp reconstruction and encoding.<br />
+ * Replace it with a virtual clock to run the timing logic without real time passing.
+ */
+public interface MidiClock {
+    /**
+     * The clock based on {@link System#nanoTime()}, not affected by wall clock adjustments.
+     */
+    MidiClock SYSTEM = new MidiClock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    /**
+     * Obtains the current time
+     *
+     * @return the current time in nanoseconds, only the difference between two values is meaningful
+     */
+    long nanoTime();
+}
@@ -0,0 +1,223 @@
+package renetik.android.midi.bluetooth.util;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Priority queue of pending MIDI events, stored in primitive arrays.<br />
+ * The events are ordered by its firing time, then by the MIDI data priority, then by the arrival order.<br />
+ * Without the MIDI data priority, the events of the same time keep the arrival order.<br />
+ * Adding and removing events does not allocate, except when the queue has to grow.<br />
+ * Not thread safe, callers must synchronize.
+ */
+public final class MidiEventQueue {
+    private static final int DEFAULT_CAPACITY = 64;
+
+    private int[] kinds;
+    private int[] data1s;
+    private int[] data2s;
+    private long[] timings;
+    private long[] sequences;
+    private byte[][] arrays;
+    private int size = 0;
+    private long sequence = 0;
+    private final boolean dataPriority;
+
+    /**
+     * Constructor with default capacity
+     */
+    public MidiEventQueue() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param capacity the initial capacity
+     */
+    public MidiEventQueue(int capacity) {
+        this(capacity, true);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param capacity     the initial capacity
+     * @param dataPriority true to order the events of the same time by the MIDI data priority, false to keep the arrival order
+     */
+    public MidiEventQueue(int capacity, boolean dataPriority) {
+        this.dataPriority = dataPriority;
+        allocate(Math.max(capacity, 2));
+    }
+
+    private void allocate(int capacity) {
+        kinds = new int[capacity];
+        data1s = new int[capacity];
+        data2s = new int[capacity];
+        timings = new long[capacity];
+        sequences = new long[capacity];
+        arrays = new byte[capacity][];
+    }
+
+    /**
+     * Adds the event to the queue
+     *
+     * @param kind   the event kind, MIDI status byte
+     * @param data1  the first argument
+     * @param data2  the second argument
+     * @param array  the data array, used by SysEx
+     * @param timing the firing time
+     */
+    public void add(int kind, int data1, int data2, @Nullable byte[] array, long timing) {
+        if (size == kinds.length) {
+            grow();
+        }
+
+        int index = size;
+        set(index, kind, data1, data2, array, timing, sequence++);
+        size++;
+
+        // sift up
+        while (index > 0) {
+            final int parent = (index - 1) >>> 1;
+            if (compare(parent, index) <= 0) {
+                break;
+            }
+            swap(parent, index);
+            index = parent;
+        }
+    }
+
+    /**
+     * Removes the first event
+     */
+    public void removeFirst() {
+        size--;
+        if (size > 0) {
+            swap(0, size);
+        }
+        arrays[size] = null;
+
+        // sift down
+        int index = 0;
+        while (true) {
+            final int left = (index << 1) + 1;
+            if (left >= size) {
+                break;
+            }
+            final int right = left + 1;
+            final int child = (right < size && compare(right, left) < 0) ? right : left;
+            if (compare(index, child) <= 0) {
+                break;
+            }
+            swap(index, child);
+            index = child;
+        }
+    }
+
+    /**
+     * Removes all of the events
+     */
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            arrays[i] = null;
+        }
+        size = 0;
+    }
+
+    private int compare(int lhs, int rhs) {
+        // sort by tick
+        if (timings[lhs] != timings[rhs]) {
+            return timings[lhs] < timings[rhs] ? -1 : 1;
+        }
+
+        // same timing
+        // sort by the MIDI data priority order, as:
+        // system message > control messages > note off > note on
+        if (dataPriority) {
+            final int priorityDifference = priority(kinds[rhs]) - priority(kinds[lhs]);
+            if (priorityDifference != 0) {
+                return priorityDifference;
+            }
+        }
+
+        // same priority: keep the arrival order
+        return sequences[lhs] < sequences[rhs] ? -1 : 1;
+    }
+
+    private static int priority(int kind) {
+        int priority = kind & 0xf0;
+        // swap the priority of note on, and note off
+        if ((priority & 0x90) == 0x80) {
+            priority |= 0x10;
+        } else {
+            priority &= ~0x10;
+        }
+        return priority;
+    }
+
+    private void set(int index, int kind, int data1, int data2, @Nullable byte[] array, long timing, long sequence) {
+        kinds[index] = kind;
+        data1s[index] = data1;
+        data2s[index] = data2;
+        arrays[index] = array;
+        timings[index] = timing;
+        sequences[index] = sequence;
+    }
+
+    private void swap(int i, int j) {
+        final int kind = kinds[i];
+        final int data1 = data1s[i];
+        final int data2 = data2s[i];
+        final byte[] array = arrays[i];
+        final long timing = timings[i];
+        final long sequence = sequences[i];
+        set(i, kinds[j], data1s[j], data2s[j], arrays[j], timings[j], sequences[j]);
+        set(j, kind, data1, data2, array, timing, sequence);
+    }
+
+    private void grow() {
+        final int[] oldKinds = kinds;
+        final int[] oldData1s = data1s;
+        final int[] oldData2s = data2s;
+        final long[] oldTimings = timings;
+        final long[] oldSequences = sequences;
+        final byte[][] oldArrays = arrays;
+
+        allocate(oldKinds.length << 1);
+        System.arraycopy(oldKinds, 0, kinds, 0, size);
+        System.arraycopy(oldData1s, 0, data1s, 0, size);
+        System.arraycopy(oldData2s, 0, data2s, 0, size);
+        System.arraycopy(oldTimings, 0, timings, 0, size);
+        System.arraycopy(oldSequences, 0, sequences, 0, size);
+        System.arraycopy(oldArrays, 0, arrays, 0, size);
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long firstTiming() {
+        return timings[0];
+    }
+
+    public int firstKind() {
+        return kinds[0];
+    }
+
+    public int firstData1() {
+        return data1s[0];
+    }
+
+    public int firstData2() {
+        return data2s[0];
+    }
+
+    @Nullable
+    public byte[] firstArray() {
+        return arrays[0];
+    }
+}
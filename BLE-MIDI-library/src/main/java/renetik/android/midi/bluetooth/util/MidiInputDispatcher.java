@@ -0,0 +1,299 @@
+package renetik.android.midi.bluetooth.util;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Shared dispatcher for MIDI input events<br />
+ * Every {@link BleMidiParser} registers to this dispatcher, and its queued events are fired on the dispatcher threads at the firing time.<br />
+ * One parser is served by one thread, so the events from one device keep its order.<br />
+ * The threads start with the first registered parser, and finish with the last unregistered parser.
+ * The last one waits for the threads to finish.<br />
+ * An exception thrown by the listener is logged, and doesn't stop the events of the other devices.<br />
+ * The threads are daemon threads, a device not stopped doesn't keep the process alive.
+ */
+public final class MidiInputDispatcher {
+    private static final MidiInputDispatcher instance = new MidiInputDispatcher();
+    private static final int DEFAULT_THREAD_COUNT = 1;
+    // the events fired from one parser at once, for fairness between devices
+    private static final int MAX_EVENTS_PER_PASS = 64;
+    // the thread is firing events, not parked
+    private static final long BUSY = Long.MIN_VALUE;
+
+    private final List<BleMidiParser> parsers = new ArrayList<>();
+    private Worker[] workers = new Worker[0];
+    private int threadCount = DEFAULT_THREAD_COUNT;
+    private int threadPriority = Thread.NORM_PRIORITY;
+
+    private MidiInputDispatcher() {
+    }
+
+    /**
+     * Obtains the dispatcher instance
+     *
+     * @return the dispatcher shared with all of the MIDI input devices
+     */
+    @NonNull
+    public static MidiInputDispatcher getInstance() {
+        return instance;
+    }
+
+    /**
+     * Sets the number of dispatcher threads, default 1<br />
+     * When the threads are running, the registered devices are redistributed to the new threads.
+     *
+     * @param threadCount 1 or more
+     * @throws IllegalArgumentException the thread count is less than 1
+     */
+    public void setThreadCount(int threadCount) throws IllegalArgumentException {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("Thread count must be 1 or more: " + threadCount);
+        }
+        final Worker[] stoppedWorkers;
+        synchronized (this) {
+            if (this.threadCount == threadCount) {
+                return;
+            }
+            this.threadCount = threadCount;
+
+            if (workers.length == 0) {
+                return;
+            }
+            stoppedWorkers = stopWorkers();
+            startWorkers();
+        }
+        join(stoppedWorkers);
+    }
+
+    /**
+     * Obtains the number of dispatcher threads
+     *
+     * @return the thread count
+     */
+    public synchronized int getThreadCount() {
+        return threadCount;
+    }
+
+    /**
+     * Sets the priority of dispatcher threads, default {@link Thread#NORM_PRIORITY}
+     *
+     * @param threadPriority {@link Thread#MIN_PRIORITY} - {@link Thread#MAX_PRIORITY}
+     * @throws IllegalArgumentException the priority is out of range
+     */
+    public synchronized void setThreadPriority(int threadPriority) throws IllegalArgumentException {
+        if (threadPriority < Thread.MIN_PRIORITY || threadPriority > Thread.MAX_PRIORITY) {
+            throw new IllegalArgumentException("Thread priority out of range: " + threadPriority);
+        }
+        this.threadPriority = threadPriority;
+
+        for (Worker worker : workers) {
+            worker.thread.setPriority(threadPriority);
+        }
+    }
+
+    /**
+     * Obtains the priority of dispatcher threads
+     *
+     * @return the thread priority
+     */
+    public synchronized int getThreadPriority() {
+        return threadPriority;
+    }
+
+    /**
+     * Obtains the number of registered devices
+     *
+     * @return the number of parsers, served by the dispatcher
+     */
+    public synchronized int getRegisteredDeviceCount() {
+        return parsers.size();
+    }
+
+    /**
+     * Registers the parser, and starts the threads if needed
+     *
+     * @param parser the parser
+     */
+    synchronized void register(@NonNull BleMidiParser parser) {
+        if (parsers.contains(parser)) {
+            return;
+        }
+        parsers.add(parser);
+
+        if (workers.length == 0) {
+            startWorkers();
+        } else {
+            assign(parser);
+        }
+    }
+
+    /**
+     * Unregisters the parser, and stops the threads if no parser remains<br />
+     * The stopped threads are joined, unless called from the dispatcher thread.
+     *
+     * @param parser the parser
+     */
+    void unregister(@NonNull BleMidiParser parser) {
+        Worker[] stoppedWorkers = null;
+        synchronized (this) {
+            if (!parsers.remove(parser)) {
+                return;
+            }
+
+            final Worker worker = parser.dispatchWorker;
+            parser.dispatchWorker = null;
+            if (worker != null) {
+                worker.remove(parser);
+            }
+
+            if (parsers.isEmpty()) {
+                stoppedWorkers = stopWorkers();
+            }
+        }
+        if (stoppedWorkers != null) {
+            join(stoppedWorkers);
+        }
+    }
+
+    private void startWorkers() {
+        workers = new Worker[threadCount];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker("MidiInputDispatcher-" + i, threadPriority);
+        }
+        for (BleMidiParser parser : parsers) {
+            assign(parser);
+        }
+        for (Worker worker : workers) {
+            worker.thread.start();
+        }
+    }
+
+    @NonNull
+    private Worker[] stopWorkers() {
+        final Worker[] stoppedWorkers = workers;
+        for (Worker worker : stoppedWorkers) {
+            worker.isRunning = false;
+            LockSupport.unpark(worker.thread);
+        }
+        workers = new Worker[0];
+        return stoppedWorkers;
+    }
+
+    /**
+     * Waits for the threads to finish, without the lock of the dispatcher
+     *
+     * @param stoppedWorkers the stopped threads
+     */
+    private static void join(@NonNull Worker[] stoppedWorkers) {
+        for (Worker worker : stoppedWorkers) {
+            if (worker.thread == Thread.currentThread()) {
+                // stopped from the listener, the thread finishes after returning
+                continue;
+            }
+            try {
+                worker.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void assign(@NonNull BleMidiParser parser) {
+        // the least loaded thread
+        Worker target = workers[0];
+        for (Worker worker : workers) {
+            if (worker.parsers.length < target.parsers.length) {
+                target = worker;
+            }
+        }
+        target.add(parser);
+        parser.dispatchWorker = target;
+    }
+
+    /**
+     * The thread fires the events of assigned parsers
+     */
+    static final class Worker implements Runnable {
+        private final Thread thread;
+        private volatile boolean isRunning = true;
+        // replaced on change, not to allocate while iterating
+        private volatile BleMidiParser[] parsers = new BleMidiParser[0];
+        // the time the thread is parked until, in System.nanoTime()
+        private volatile long scheduledTime = BUSY;
+
+        Worker(@NonNull String name, int priority) {
+            thread = new Thread(this, name);
+            thread.setPriority(priority);
+            thread.setDaemon(true);
+        }
+
+        private void add(@NonNull BleMidiParser parser) {
+            final BleMidiParser[] newParsers = new BleMidiParser[parsers.length + 1];
+            System.arraycopy(parsers, 0, newParsers, 0, parsers.length);
+            newParsers[parsers.length] = parser;
+            parsers = newParsers;
+            LockSupport.unpark(thread);
+        }
+
+        private void remove(@NonNull BleMidiParser parser) {
+            final List<BleMidiParser> newParsers = new ArrayList<>();
+            for (BleMidiParser registered : parsers) {
+                if (registered != parser) {
+                    newParsers.add(registered);
+                }
+            }
+            parsers = newParsers.toArray(new BleMidiParser[0]);
+        }
+
+        /**
+         * Called when a event has been queued
+         *
+         * @param delayNanos the time until the event fires
+         */
+        void onEventQueued(long delayNanos) {
+            final long scheduled = scheduledTime;
+            if (scheduled == BUSY || System.nanoTime() + delayNanos < scheduled) {
+                // the thread is parked until later time
+                LockSupport.unpark(thread);
+            }
+        }
+
+        @Override
+        public void run() {
+            while (isRunning) {
+                scheduledTime = BUSY;
+
+                long waitNanos = Long.MAX_VALUE;
+                for (BleMidiParser parser : parsers) {
+                    try {
+                        waitNanos = Math.min(waitNanos, parser.dispatchEvents(MAX_EVENTS_PER_PASS));
+                    } catch (RuntimeException e) {
+                        // the listener of this device failed, the thread keeps serving the others
+                        Log.e(Constants.TAG, "MIDI input listener threw an exception", e);
+                        waitNanos = 0;
+                    }
+                }
+                if (waitNanos <= 0) {
+                    // more events to fire
+                    continue;
+                }
+
+                if (waitNanos == Long.MAX_VALUE) {
+                    // sleep until an event comes
+                    scheduledTime = Long.MAX_VALUE;
+                    LockSupport.park(this);
+                } else {
+                    // sleep until the event's timing, or an earlier event comes
+                    scheduledTime = System.nanoTime() + waitNanos;
+                    LockSupport.parkNanos(this, waitNanos);
+                }
+            }
+        }
+    }
+}
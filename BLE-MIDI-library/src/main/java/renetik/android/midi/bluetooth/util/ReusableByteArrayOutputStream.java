@@ -46,6 +46,19 @@ public final class ReusableByteArrayOutputStream extends ByteArrayOutputStream {
         }
     }
 
+    /**
+     * Removes last written byte
+     *
+     * @return removed value; -1 if {@link #size()} == 0
+     */
+    public synchronized int removeLastByte() {
+        if (count > 0) {
+            count--;
+            return buf[count] & 0xff;
+        }
+        return -1;
+    }
+
     @Override
     public synchronized void reset() {
         super.reset();
@@ -1,8 +1,11 @@
 package renetik.android.midi.javax.sound.midi.ble;
 
+import android.util.Log;
+
 import androidx.annotation.NonNull;
 
 import renetik.android.midi.bluetooth.device.MidiOutputDevice;
+import renetik.android.midi.bluetooth.util.Constants;
 import jp.kshoji.javax.sound.midi.MetaMessage;
 import jp.kshoji.javax.sound.midi.MidiDevice;
 import jp.kshoji.javax.sound.midi.MidiDeviceReceiver;
@@ -46,7 +49,12 @@ public final class BleMidiReceiver implements MidiDeviceReceiver {
             // ignored
         } else if (message instanceof SysexMessage) {
             final SysexMessage sysexMessage = (SysexMessage) message;
-            outputDevice.sendMidiSystemExclusive(sysexMessage.getData());
+            try {
+                // the whole message with 'F0', the continuation of SysEx can't be sent alone
+                outputDevice.sendMidiSystemExclusive(sysexMessage.getMessage());
+            } catch (final IllegalArgumentException e) {
+                Log.d(Constants.TAG, "Invalid SysEx", e);
+            }
         } else if (message instanceof ShortMessage) {
             final ShortMessage shortMessage = (ShortMessage) message;
             switch (shortMessage.getCommand()) {